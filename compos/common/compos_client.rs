@@ -22,6 +22,7 @@ use crate::{
     COMPOS_APEX_ROOT, COMPOS_VSOCK_PORT,
 };
 use android_system_virtualizationservice::aidl::android::system::virtualizationservice::{
+    CpuCluster::CpuCluster,
     CpuTopology::CpuTopology,
     IVirtualizationService::IVirtualizationService,
     VirtualMachineAppConfig::{DebugLevel::DebugLevel, Payload::Payload, VirtualMachineAppConfig},
@@ -128,8 +129,14 @@ impl ComposClient {
             protectedVm: protected_vm,
             memoryMib: parameters.memory_mib.unwrap_or(0), // 0 means use the default
             cpuTopology: cpu_topology,
+            cpuCount: 0, // 0 means use cpuTopology
+            cpuAffinityMask: 0,
+            cpuCluster: CpuCluster::ANY,
             taskProfiles: parameters.task_profiles.clone(),
             gdbPort: 0, // Don't start gdb-server
+            restoreSnapshot: None,
+            sharedMemory: None,
+            dataDisks: vec![],
         });
 
         // Let logs go to logcat.
@@ -21,17 +21,20 @@
 use anyhow::{ensure, Context, Result};
 use clap::arg;
 use dm::{crypt::CipherType, util};
-use log::info;
+use log::{info, warn};
 use std::ffi::CString;
-use std::fs::{create_dir_all, OpenOptions};
+use std::fs::{create_dir_all, File, OpenOptions};
 use std::io::{Error, Read, Write};
 use std::os::unix::ffi::OsStrExt;
 use std::os::unix::fs::FileTypeExt;
+use std::os::unix::io::AsRawFd;
 use std::path::{Path, PathBuf};
 use std::process::Command;
 
 const MK2FS_BIN: &str = "/system/bin/mke2fs";
 const UNFORMATTED_STORAGE_MAGIC: &str = "UNFORMATTED-STORAGE";
+// Must match the block size passed to mke2fs in format_ext4.
+const EXT4_BLOCK_SIZE: u64 = 4096;
 
 fn main() -> Result<()> {
     android_logger::init_once(
@@ -46,8 +49,9 @@ fn main() -> Result<()> {
     let blkdevice = Path::new(matches.get_one::<String>("blkdevice").unwrap());
     let key = matches.get_one::<String>("key").unwrap();
     let mountpoint = Path::new(matches.get_one::<String>("mountpoint").unwrap());
+    let allow_discards = matches.get_flag("allow-discards");
     // Note this error context is used in MicrodroidTests.
-    encryptedstore_init(blkdevice, key, mountpoint).context(format!(
+    encryptedstore_init(blkdevice, key, mountpoint, allow_discards).context(format!(
         "Unable to initialize encryptedstore on {:?} & mount at {:?}",
         blkdevice, mountpoint
     ))?;
@@ -59,10 +63,16 @@ fn clap_command() -> clap::Command {
         arg!(--blkdevice <FILE> "the block device backing the encrypted storage").required(true),
         arg!(--key <KEY> "key (in hex) equivalent to 32 bytes)").required(true),
         arg!(--mountpoint <MOUNTPOINT> "mount point for the storage").required(true),
+        arg!(--"allow-discards" "pass discards of freed blocks through to the backing device"),
     ])
 }
 
-fn encryptedstore_init(blkdevice: &Path, key: &str, mountpoint: &Path) -> Result<()> {
+fn encryptedstore_init(
+    blkdevice: &Path,
+    key: &str,
+    mountpoint: &Path,
+    allow_discards: bool,
+) -> Result<()> {
     ensure!(
         std::fs::metadata(blkdevice)
             .context(format!("Failed to get metadata of {:?}", blkdevice))?
@@ -74,31 +84,50 @@ fn encryptedstore_init(blkdevice: &Path, key: &str, mountpoint: &Path) -> Result
 
     let needs_formatting =
         needs_formatting(blkdevice).context("Unable to check if formatting is required")?;
-    let crypt_device =
-        enable_crypt(blkdevice, key, "cryptdev").context("Unable to map crypt device")?;
+    let crypt_device = enable_crypt(blkdevice, key, "cryptdev", allow_discards)
+        .context("Unable to map crypt device")?;
 
     // We might need to format it with filesystem if this is a "seen-for-the-first-time" device.
     if needs_formatting {
         info!("Freshly formatting the crypt device");
         format_ext4(&crypt_device)?;
     }
-    mount(&crypt_device, mountpoint).context(format!("Unable to mount {:?}", crypt_device))?;
+    mount(&crypt_device, mountpoint, allow_discards)
+        .context(format!("Unable to mount {:?}", crypt_device))?;
+    if !needs_formatting {
+        // The backing device may have been grown since the filesystem was created, in which case
+        // the filesystem is extended to fill it. Failing to do so leaves the storage usable with
+        // its previous size, so it is not fatal.
+        if let Err(e) = resize_ext4(&crypt_device, mountpoint) {
+            warn!("Unable to resize the filesystem on {:?}: {:?}", crypt_device, e);
+        }
+    }
     Ok(())
 }
 
-fn enable_crypt(data_device: &Path, key: &str, name: &str) -> Result<PathBuf> {
+fn enable_crypt(
+    data_device: &Path,
+    key: &str,
+    name: &str,
+    allow_discards: bool,
+) -> Result<PathBuf> {
     let dev_size = util::blkgetsize64(data_device)?;
     let key = hex::decode(key).context("Unable to decode hex key")?;
 
     // Create the dm-crypt spec
-    let target = dm::crypt::DmCryptTargetBuilder::default()
+    let mut builder = dm::crypt::DmCryptTargetBuilder::default();
+    builder
         .data_device(data_device, dev_size)
         .cipher(CipherType::AES256HCTR2)
         .key(&key)
         .opt_param("sector_size:4096")
-        .opt_param("iv_large_sectors")
-        .build()
-        .context("Couldn't build the DMCrypt target")?;
+        .opt_param("iv_large_sectors");
+    if allow_discards {
+        // Pass discards through so that the host can release the space of deleted data. This
+        // reveals which blocks are unused, but not their contents.
+        builder.opt_param("allow_discards");
+    }
+    let target = builder.build().context("Couldn't build the DMCrypt target")?;
     let dm = dm::DeviceMapper::new()?;
     dm.create_crypt_device(name, &target).context("Failed to create dm-crypt device")
 }
@@ -143,12 +172,31 @@ fn format_ext4(device: &Path) -> Result<()> {
     Ok(())
 }
 
-fn mount(source: &Path, mountpoint: &Path) -> Result<()> {
+// EXT4_IOC_RESIZE_FS, from include/uapi/linux/ext4.h.
+nix::ioctl_write_ptr!(ext4_ioc_resize_fs, b'f', 16, u64);
+
+// Grows the ext4 filesystem mounted at `mountpoint` online to fill `device`. This is a no-op if the
+// filesystem already covers the whole device.
+fn resize_ext4(device: &Path, mountpoint: &Path) -> Result<()> {
+    let block_count = util::blkgetsize64(device)? / EXT4_BLOCK_SIZE;
+    let dir = File::open(mountpoint).context(format!("Failed to open {:?}", mountpoint))?;
+    // SAFETY: The ioctl only reads the block count from the given pointer, which is valid for the
+    // duration of the call.
+    unsafe { ext4_ioc_resize_fs(dir.as_raw_fd(), &block_count) }
+        .context("EXT4_IOC_RESIZE_FS failed")?;
+    info!("Filesystem on {:?} covers {} blocks", device, block_count);
+    Ok(())
+}
+
+fn mount(source: &Path, mountpoint: &Path, discard: bool) -> Result<()> {
     create_dir_all(mountpoint).context(format!("Failed to create {:?}", &mountpoint))?;
-    let mount_options = CString::new(
+    let mut mount_options = String::from(
         "fscontext=u:object_r:encryptedstore_fs:s0,context=u:object_r:encryptedstore_file:s0",
-    )
-    .unwrap();
+    );
+    if discard {
+        mount_options.push_str(",discard");
+    }
+    let mount_options = CString::new(mount_options).unwrap();
     let source = CString::new(source.as_os_str().as_bytes())?;
     let mountpoint = CString::new(mountpoint.as_os_str().as_bytes())?;
     let fstype = CString::new("ext4").unwrap();
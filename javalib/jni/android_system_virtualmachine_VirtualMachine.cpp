@@ -17,30 +17,58 @@
 #define LOG_TAG "VirtualMachine"
 
 #include <aidl/android/system/virtualizationservice/IVirtualMachine.h>
+#include <android-base/unique_fd.h>
 #include <android/binder_auto_utils.h>
 #include <android/binder_ibinder_jni.h>
+#include <errno.h>
+#include <fcntl.h>
 #include <jni.h>
+#include <linux/fs.h>
 #include <log/log.h>
+#include <nativehelper/JNIHelp.h>
+#include <sys/ioctl.h>
+#include <sys/sendfile.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
+#include <algorithm>
 #include <binder_rpc_unstable.hpp>
 #include <tuple>
+#include <vector>
 
 #include "common.h"
 
+// Adds a ParcelFileDescriptor which owns fd to the java.util.List connections.
+static bool addConnection(JNIEnv* env, jobject connections, android::base::unique_fd fd) {
+    jclass pfdClass = env->FindClass("android/os/ParcelFileDescriptor");
+    jmethodID adoptFd =
+            env->GetStaticMethodID(pfdClass, "adoptFd", "(I)Landroid/os/ParcelFileDescriptor;");
+    jobject pfd = env->CallStaticObjectMethod(pfdClass, adoptFd, fd.release());
+    if (env->ExceptionCheck()) return false;
+    jclass listClass = env->FindClass("java/util/List");
+    jmethodID add = env->GetMethodID(listClass, "add", "(Ljava/lang/Object;)Z");
+    env->CallBooleanMethod(connections, add, pfd);
+    return !env->ExceptionCheck();
+}
+
 extern "C" JNIEXPORT jobject JNICALL
 Java_android_system_virtualmachine_VirtualMachine_nativeConnectToVsockServer(
-        JNIEnv* env, [[maybe_unused]] jclass clazz, jobject vmBinder, jint port) {
+        JNIEnv* env, [[maybe_unused]] jclass clazz, jobject vmBinder, jint port,
+        jobject connections) {
     using aidl::android::system::virtualizationservice::IVirtualMachine;
+    using android::base::unique_fd;
     using ndk::ScopedFileDescriptor;
     using ndk::SpAIBinder;
 
     auto vm = IVirtualMachine::fromBinder(SpAIBinder{AIBinder_fromJavaBinder(env, vmBinder)});
 
-    std::tuple args{env, vm.get(), port};
+    // Duplicates of the sockets of the session, if the caller asked for them.
+    std::vector<unique_fd> dups;
+    std::tuple args{env, vm.get(), port, connections != nullptr ? &dups : nullptr};
     using Args = decltype(args);
 
     auto requestFunc = [](void* param) {
-        auto [env, vm, port] = *static_cast<Args*>(param);
+        auto [env, vm, port, dups] = *static_cast<Args*>(param);
 
         ScopedFileDescriptor fd;
         if (auto status = vm->connectVsock(port, &fd); !status.isOk()) {
@@ -53,6 +81,10 @@ Java_android_system_virtualmachine_VirtualMachine_nativeConnectToVsockServer(
         int ret = fd.get();
         *fd.getR() = -1;
 
+        if (dups != nullptr) {
+            unique_fd dup(fcntl(ret, F_DUPFD_CLOEXEC, 0));
+            if (dup.ok()) dups->push_back(std::move(dup));
+        }
         return ret;
     };
 
@@ -63,5 +95,107 @@ Java_android_system_virtualmachine_VirtualMachine_nativeConnectToVsockServer(
     // the server-side default (mMaxThreads on RpcServer).
     ARpcSession_setMaxIncomingThreads(session.get(), 1);
     auto client = ARpcSession_setupPreconnectedClient(session.get(), requestFunc, &args);
+    if (client == nullptr || env->ExceptionCheck()) {
+        return AIBinder_toJavaBinder(env, client);
+    }
+    for (auto& dup : dups) {
+        if (!addConnection(env, connections, std::move(dup))) return nullptr;
+    }
     return AIBinder_toJavaBinder(env, client);
 }
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_android_system_virtualmachine_VirtualMachine_nativeReflink(
+        JNIEnv* env, [[maybe_unused]] jclass clazz, jint srcFd, jint dstFd) {
+    if (ioctl(dstFd, FICLONE, srcFd) == 0) {
+        return true;
+    }
+    switch (errno) {
+        // The filesystem can't share extents between these files; the caller should copy instead.
+        case EOPNOTSUPP:
+        case ENOTTY:
+        case EXDEV:
+        case EINVAL:
+            return false;
+        default:
+            jniThrowIOException(env, errno);
+            return false;
+    }
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_android_system_virtualmachine_VirtualMachine_nativeSparseCopy(
+        JNIEnv* env, [[maybe_unused]] jclass clazz, jint srcFd, jint dstFd) {
+    struct stat st;
+    if (fstat(srcFd, &st) != 0) {
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+    const off_t size = st.st_size;
+
+    // Only the data regions of the source are copied, so that holes stay holes in the copy.
+    std::vector<char> buf(1024 * 1024);
+    jlong copied = 0;
+    off_t offset = 0;
+    while (offset < size) {
+        off_t data = lseek(srcFd, offset, SEEK_DATA);
+        if (data < 0) {
+            if (errno == ENXIO) break; // No more data before the end of the file.
+            jniThrowIOException(env, errno);
+            return -1;
+        }
+        off_t hole = lseek(srcFd, data, SEEK_HOLE);
+        if (hole < 0) {
+            jniThrowIOException(env, errno);
+            return -1;
+        }
+        for (off_t pos = data; pos < hole;) {
+            size_t len = std::min(buf.size(), static_cast<size_t>(hole - pos));
+            ssize_t n = TEMP_FAILURE_RETRY(pread(srcFd, buf.data(), len, pos));
+            if (n < 0) {
+                jniThrowIOException(env, errno);
+                return -1;
+            }
+            if (n == 0) break;
+            for (ssize_t written = 0; written < n;) {
+                ssize_t w = TEMP_FAILURE_RETRY(
+                        pwrite(dstFd, buf.data() + written, n - written, pos + written));
+                if (w < 0) {
+                    jniThrowIOException(env, errno);
+                    return -1;
+                }
+                written += w;
+            }
+            pos += n;
+            copied += n;
+        }
+        offset = hole;
+    }
+    if (ftruncate(dstFd, size) != 0) {
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+    return copied;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_android_system_virtualmachine_VirtualMachine_nativeSendFile(
+        JNIEnv* env, [[maybe_unused]] jclass clazz, jint srcFd, jint dstFd, jlong count) {
+    // The data goes from the page cache straight to the socket, without being copied through
+    // user space.
+    jlong sent = 0;
+    while (sent < count) {
+        ssize_t n = TEMP_FAILURE_RETRY(sendfile(dstFd, srcFd, nullptr, count - sent));
+        if (n < 0) {
+            if (sent == 0 && (errno == EINVAL || errno == ENOSYS)) {
+                // The source can't be mapped, e.g. it is a pipe. The caller copies it instead.
+                return -1;
+            }
+            jniThrowIOException(env, errno);
+            return -1;
+        }
+        if (n == 0) break; // End of the source.
+        sent += n;
+    }
+    return sent;
+}
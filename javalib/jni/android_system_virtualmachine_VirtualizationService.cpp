@@ -20,7 +20,6 @@
 #include <android/binder_ibinder_jni.h>
 #include <jni.h>
 #include <log/log.h>
-#include <poll.h>
 
 #include <string>
 
@@ -87,17 +86,3 @@ Java_android_system_virtualmachine_VirtualizationService_nativeConnect(JNIEnv* e
     auto client = ARpcSession_setupUnixDomainBootstrapClient(session.get(), clientFd);
     return AIBinder_toJavaBinder(env, client);
 }
-
-extern "C" JNIEXPORT jboolean JNICALL
-Java_android_system_virtualmachine_VirtualizationService_nativeIsOk(JNIEnv* env,
-                                                                    [[maybe_unused]] jobject obj,
-                                                                    int clientFd) {
-    /* Setting events=0 only returns POLLERR, POLLHUP or POLLNVAL. */
-    struct pollfd pfds[] = {{.fd = clientFd, .events = 0}};
-    if (poll(pfds, /*nfds*/ 1, /*timeout*/ 0) < 0) {
-        env->ThrowNew(env->FindClass("android/system/virtualmachine/VirtualMachineException"),
-                      ("Failed to poll client FD: " + std::string(strerror(errno))).c_str());
-        return false;
-    }
-    return pfds[0].revents == 0;
-}
@@ -57,9 +57,17 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.system.virtualizationcommon.DeathReason;
 import android.system.virtualizationcommon.ErrorCode;
 import android.system.virtualizationservice.IVirtualMachine;
@@ -69,12 +77,15 @@ import android.system.virtualizationservice.MemoryTrimLevel;
 import android.system.virtualizationservice.PartitionType;
 import android.system.virtualizationservice.VirtualMachineAppConfig;
 import android.system.virtualizationservice.VirtualMachineState;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.JsonReader;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -83,19 +94,39 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.zip.ZipFile;
 
 /**
@@ -157,7 +188,8 @@ public class VirtualMachine implements AutoCloseable {
     @IntDef(prefix = "STATUS_", value = {
             STATUS_STOPPED,
             STATUS_RUNNING,
-            STATUS_DELETED
+            STATUS_DELETED,
+            STATUS_PAUSED
     })
     public @interface Status {}
 
@@ -174,12 +206,124 @@ public class VirtualMachine implements AutoCloseable {
      */
     public static final int STATUS_DELETED = 2;
 
+    /**
+     * The virtual machine has been {@linkplain #pause paused}: it is not using any CPU time, but
+     * its memory and connections are intact, and it continues where it left off when {@linkplain
+     * #resume resumed}.
+     */
+    public static final int STATUS_PAUSED = 3;
+
     private static final String TAG = "VirtualMachine";
 
     /** Name of the directory under the files directory where all VMs created for the app exist. */
     private static final String VM_DIR = "vm";
 
+    /**
+     * Name of the directory under the data directory holding initialized partition images, which
+     * are copied into new VMs instead of initializing each one. It is not under {@link #VM_DIR}, so
+     * that it can't collide with a VM name.
+     */
+    private static final String TEMPLATE_DIR = "vm_template";
+
+    /**
+     * Name of the directory under the data directory to which deleted VMs are moved, so that they
+     * can be deleted in the background. Like {@link #TEMPLATE_DIR}, it is not under {@link
+     * #VM_DIR}.
+     */
+    private static final String TRASH_DIR = "vm_trash";
+
+    /** Deletes the contents of {@link #TRASH_DIR}, one VM at a time, at background priority. */
+    private static final ExecutorService sTrashExecutor =
+            Executors.newSingleThreadExecutor(
+                    newDaemonThreadFactory(
+                            "VirtualMachineTrash", Process.THREAD_PRIORITY_BACKGROUND));
+
+    /** The chunk size used by {@link #sendFile(ParcelFileDescriptor, long)}. */
+    private static final int DEFAULT_SEND_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Samples the resource usage of VMs for {@link #setResourceUsageSamplingPeriod}. Cancelled
+     * tasks are removed at once, so that they don't keep their {@link ResourceUsageSampler} queued.
+     */
+    private static final ScheduledThreadPoolExecutor sResourceUsageExecutor =
+            newResourceUsageExecutor();
+
+    /**
+     * Runs the timeouts and retry delays of {@link #connectToVsockServerAsync}. It never blocks, so
+     * a timeout fires on time however long a connection attempt hangs.
+     */
+    private static final ScheduledExecutorService sVsockConnectScheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                    newDaemonThreadFactory("VirtualMachineVsockConnectTimer"));
+
+    /**
+     * Runs the blocking connection attempts of {@link #connectToVsockServerAsync}, each on its own
+     * thread, so that an attempt that hangs doesn't hold up those for other VMs.
+     */
+    private static final ExecutorService sVsockConnectExecutor =
+            Executors.newCachedThreadPool(newDaemonThreadFactory("VirtualMachineVsockConnect"));
+
+    /** Delay before the first retry of {@link #connectToVsockServerAsync}; it doubles each time. */
+    private static final Duration VSOCK_CONNECT_INITIAL_RETRY_DELAY = Duration.ofMillis(10);
+
+    /** Longest delay between retries of {@link #connectToVsockServerAsync}. */
+    private static final Duration VSOCK_CONNECT_MAX_RETRY_DELAY = Duration.ofSeconds(1);
+
+    /** The shortest period accepted by {@link #setResourceUsageSamplingPeriod}. */
+    private static final Duration MIN_RESOURCE_USAGE_SAMPLING_PERIOD = Duration.ofSeconds(1);
+
+    private static ScheduledThreadPoolExecutor newResourceUsageExecutor() {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(
+                        1, newDaemonThreadFactory("VirtualMachineResourceUsage"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Returns a factory of daemon threads with the given name, for the static executors of this
+     * class, which must not keep the app's process alive.
+     */
+    @NonNull
+    private static ThreadFactory newDaemonThreadFactory(@NonNull String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns a factory of daemon threads with the given name, which run at the given priority, as
+     * defined by {@link Process#setThreadPriority(int)}.
+     */
+    @NonNull
+    private static ThreadFactory newDaemonThreadFactory(@NonNull String name, int priority) {
+        ThreadFactory factory = newDaemonThreadFactory(name);
+        return runnable ->
+                factory.newThread(
+                        () -> {
+                            Process.setThreadPriority(priority);
+                            runnable.run();
+                        });
+    }
+
+    /**
+     * Disk usage of the files of stopped VMs, keyed by VM directory; see {@link
+     * #getStorageUsage(File)}. Entries are removed whenever the files may change.
+     */
+    @GuardedBy("sStorageUsageCache")
+    private static final Map<File, DiskUsage> sStorageUsageCache = new ArrayMap<>();
+
+    /** Trash directories which have been swept by this process; see {@link #sweepTrash}. */
+    @GuardedBy("sSweptTrashDirs")
+    private static final Set<File> sSweptTrashDirs = new ArraySet<>();
+
+    /** Serializes the creation of partition templates, which may happen on several threads. */
+    private static final Object sTemplateLock = new Object();
+
     /** Name of the persisted config file for a VM. */
+    // The name predates the binary config encoding; it is kept so that existing VMs are found.
     private static final String CONFIG_FILE = "config.xml";
 
     /** Name of the instance image file for a VM. (Not implemented) */
@@ -194,9 +338,21 @@ public class VirtualMachine implements AutoCloseable {
     /** Size of the instance image. 10 MB. */
     private static final long INSTANCE_FILE_SIZE = 10 * 1024 * 1024;
 
+    /** Name of the file holding a snapshot of the VM; see {@link #snapshot}. */
+    private static final String SNAPSHOT_FILE = "snapshot";
+
     /** Name of the file backing the encrypted storage */
     private static final String ENCRYPTED_STORE_FILE = "storage.img";
 
+    /** Prefix of the names of data disk images imported from a {@link VirtualMachineDescriptor}. */
+    private static final String DATA_DISK_FILE_PREFIX = "data_disk_";
+
+    /** Maximum number of clones whose images {@link #cloneAs} copies concurrently. */
+    private static final int CLONE_PARALLELISM = 4;
+
+    /** Returned by {@link #cloneFile} when the clone shares the storage of the original. */
+    private static final long REFLINKED = -1;
+
     /** The package which owns this VM. */
     @NonNull private final String mPackageName;
 
@@ -219,6 +375,9 @@ public class VirtualMachine implements AutoCloseable {
     /** Path to the idsig file for this VM. */
     @NonNull private final File mIdsigFilePath;
 
+    /** Path to the snapshot of this VM, which only exists if one has been taken. */
+    @NonNull private final File mSnapshotFilePath;
+
     /** File that backs the encrypted storage - Will be null if not enabled. */
     @Nullable private final File mEncryptedStoreFilePath;
 
@@ -304,6 +463,18 @@ public class VirtualMachine implements AutoCloseable {
     @Nullable
     private IVirtualMachine mVirtualMachine;
 
+    /** Receives the callbacks of {@link #mVirtualMachine}. */
+    @GuardedBy("mLock")
+    @Nullable
+    private CallbackTranslator mCallbackTranslator;
+
+    /**
+     * Identities of each APK signature file and of the APK it was last generated from, keyed by
+     * signature file; see {@link #updateIdsig}.
+     */
+    @GuardedBy("mLock")
+    private final Map<File, String> mIdsigSources = new ArrayMap<>();
+
     @GuardedBy("mLock")
     @Nullable
     private ParcelFileDescriptor mConsoleReader;
@@ -323,6 +494,21 @@ public class VirtualMachine implements AutoCloseable {
     @GuardedBy("mLock")
     private boolean mWasDeleted = false;
 
+    /** The memory set by {@link #setSharedMemory}, if any. */
+    @GuardedBy("mLock")
+    @Nullable
+    private SharedMemory mSharedMemory;
+
+    /** The period set by {@link #setResourceUsageSamplingPeriod}, if any. */
+    @GuardedBy("mLock")
+    @Nullable
+    private Duration mResourceUsageSamplingPeriod;
+
+    /** The periodic task sampling the resource usage while the VM is running, if any. */
+    @GuardedBy("mLock")
+    @Nullable
+    private ScheduledFuture<?> mResourceUsageSampling;
+
     /** The registered callback */
     @GuardedBy("mCallbackLock")
     @Nullable
@@ -363,6 +549,7 @@ public class VirtualMachine implements AutoCloseable {
         mConfigFilePath = new File(thisVmDir, CONFIG_FILE);
         mInstanceFilePath = new File(thisVmDir, INSTANCE_IMAGE_FILE);
         mIdsigFilePath = new File(thisVmDir, IDSIG_FILE);
+        mSnapshotFilePath = new File(thisVmDir, SNAPSHOT_FILE);
         mExtraApks = setupExtraApks(context, config, thisVmDir);
         mMemoryManagementCallbacks = new MemoryManagementCallbacks();
         mContext = context;
@@ -396,7 +583,10 @@ public class VirtualMachine implements AutoCloseable {
             VirtualMachine vm;
             try (vmDescriptor) {
                 VirtualMachineConfig config = VirtualMachineConfig.from(vmDescriptor.getConfigFd());
-                vm = new VirtualMachine(context, name, config, VirtualizationService.getInstance());
+                config = importDataDisks(vmDir, config, vmDescriptor.getDataDiskFds());
+                vm =
+                        new VirtualMachine(
+                                context, name, config, VirtualizationService.getInstance(name));
                 config.serialize(vm.mConfigFilePath);
                 try {
                     vm.mInstanceFilePath.createNewFile();
@@ -427,6 +617,36 @@ public class VirtualMachine implements AutoCloseable {
         }
     }
 
+    /**
+     * Copies the data disks of a VM being imported into its directory, since the importing app
+     * can't be assumed to have access to the originals, and returns its config updated to match.
+     */
+    @NonNull
+    private static VirtualMachineConfig importDataDisks(
+            @NonNull File vmDir,
+            @NonNull VirtualMachineConfig config,
+            @NonNull List<ParcelFileDescriptor> dataDiskFds)
+            throws VirtualMachineException {
+        List<VirtualMachineConfig.DataDisk> dataDisks = config.getDataDisks();
+        if (dataDisks.size() != dataDiskFds.size()) {
+            throw new VirtualMachineException("Data disks don't match the config");
+        }
+        if (dataDisks.isEmpty()) {
+            return config;
+        }
+        List<VirtualMachineConfig.DataDisk> imported = new ArrayList<>(dataDisks.size());
+        for (int i = 0; i < dataDisks.size(); i++) {
+            File image = new File(vmDir, DATA_DISK_FILE_PREFIX + i + ".img");
+            try {
+                cloneFile(dataDiskFds.get(i), image);
+            } catch (IOException e) {
+                throw new VirtualMachineException("failed to transfer data disk", e);
+            }
+            imported.add(dataDisks.get(i).withImage(image));
+        }
+        return config.withDataDisks(imported);
+    }
+
     /**
      * Creates a virtual machine with the given name and config. Once a virtual machine is created
      * it is persisted until it is deleted by calling {@link #delete}. The created virtual machine
@@ -437,65 +657,408 @@ public class VirtualMachine implements AutoCloseable {
     static VirtualMachine create(
             @NonNull Context context, @NonNull String name, @NonNull VirtualMachineConfig config)
             throws VirtualMachineException {
-        File vmDir = createVmDir(context, name);
+        VirtualMachine vm = reserve(context, name, config);
+        try {
+            vm.initializePartitions();
+        } catch (VirtualMachineException | RuntimeException e) {
+            vm.deleteAfterFailedCreate(e);
+            throw e;
+        }
+        return vm;
+    }
 
+    /**
+     * Creates the directory and config of a new VM, but not its partitions, which must then be
+     * created by {@link #initializePartitions}. This is cheap, so that many VMs can be reserved
+     * atomically and have their partitions initialized in parallel.
+     */
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    @NonNull
+    static VirtualMachine reserve(
+            @NonNull Context context, @NonNull String name, @NonNull VirtualMachineConfig config)
+            throws VirtualMachineException {
+        File vmDir = createVmDir(context, name);
         try {
             VirtualMachine vm =
-                    new VirtualMachine(context, name, config, VirtualizationService.getInstance());
+                    new VirtualMachine(
+                            context, name, config, VirtualizationService.getInstance(name));
             config.serialize(vm.mConfigFilePath);
+            return vm;
+        } catch (VirtualMachineException | RuntimeException e) {
+            deleteAfterFailedCreate(vmDir, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the writable partitions of a VM returned by {@link #reserve}, in the format of the
+     * virtmgr instance the VM is assigned to. This doesn't need the create lock, so it may be
+     * called for several VMs concurrently.
+     */
+    void initializePartitions() throws VirtualMachineException {
+        VirtualMachineConfig config;
+        synchronized (mLock) {
+            config = mConfig;
+        }
+        int formatVersion = mVirtualizationService.getWritablePartitionFormatVersion();
+        initializePartition(
+                mContext,
+                mVirtualizationService,
+                formatVersion,
+                mInstanceFilePath,
+                INSTANCE_FILE_SIZE,
+                PartitionType.ANDROID_VM_INSTANCE);
+        if (config.isEncryptedStorageEnabled()) {
+            initializePartition(
+                    mContext,
+                    mVirtualizationService,
+                    formatVersion,
+                    mEncryptedStoreFilePath,
+                    config.getEncryptedStorageBytes(),
+                    PartitionType.ENCRYPTEDSTORE);
+        }
+    }
+
+    /** Deletes the files of a VM whose creation failed, recording any error in {@code e}. */
+    void deleteAfterFailedCreate(@NonNull Exception e) {
+        deleteAfterFailedCreate(mVmRootPath, e);
+    }
+
+    private static void deleteAfterFailedCreate(@NonNull File vmDir, @NonNull Exception e) {
+        try {
+            deleteRecursively(vmDir);
+        } catch (IOException innerException) {
+            e.addSuppressed(innerException);
+        }
+    }
+
+    /**
+     * Creates new VMs with the given names which are clones of this one, which must be stopped.
+     * Either all the clones are created or, if any of them fails, none is.
+     *
+     * <p>The clones share this VM's config file, which is replaced rather than modified when a
+     * config changes. Their instance and encrypted storage images are reflinked to this VM's
+     * where the filesystem supports that, so that they share storage until written, and otherwise
+     * copied without their holes. Each clone's images are copied on its own thread.
+     *
+     * <p>Data disks which the VM may write to, or which are kept in its directory (and so deleted
+     * with it), are cloned into each clone's directory the same way. A clone with such disks gets
+     * its own config pointing at its copies.
+     */
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    @NonNull
+    List<VirtualMachineManager.CloneResult> cloneAs(@NonNull List<String> names)
+            throws VirtualMachineException {
+        // Holding the lock keeps this VM stopped while its images are read.
+        synchronized (mLock) {
+            if (getStatus() != STATUS_STOPPED) {
+                throw new VirtualMachineException("only a stopped VM can be cloned");
+            }
+            List<VirtualMachine> clones = new ArrayList<>();
             try {
-                vm.mInstanceFilePath.createNewFile();
-            } catch (IOException e) {
-                throw new VirtualMachineException("failed to create instance image", e);
+                for (String name : names) {
+                    clones.add(reserveClone(name));
+                }
+                return cloneFilesTo(clones);
+            } catch (VirtualMachineException | RuntimeException e) {
+                for (VirtualMachine clone : clones) {
+                    clone.deleteAfterFailedCreate(e);
+                }
+                throw e;
+            }
+        }
+    }
+
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    @NonNull
+    private VirtualMachine reserveClone(@NonNull String name) throws VirtualMachineException {
+        File vmDir = createVmDir(mContext, name);
+        try {
+            VirtualMachineConfig config = configForClone(vmDir);
+            VirtualMachine clone =
+                    new VirtualMachine(
+                            mContext, name, config, VirtualizationService.getInstance(name));
+            if (config == mConfig) {
+                Files.createLink(clone.mConfigFilePath.toPath(), mConfigFilePath.toPath());
+            } else {
+                config.serialize(clone.mConfigFilePath);
+            }
+            return clone;
+        } catch (IOException e) {
+            VirtualMachineException failure =
+                    new VirtualMachineException("failed to share config", e);
+            deleteAfterFailedCreate(vmDir, failure);
+            throw failure;
+        } catch (VirtualMachineException | RuntimeException e) {
+            deleteAfterFailedCreate(vmDir, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the config for a clone of this VM in {@code cloneDir}: this VM's own config, unless
+     * the clone needs its own copies of some data disks.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private VirtualMachineConfig configForClone(@NonNull File cloneDir) {
+        List<VirtualMachineConfig.DataDisk> dataDisks = mConfig.getDataDisks();
+        List<VirtualMachineConfig.DataDisk> cloneDataDisks = new ArrayList<>(dataDisks.size());
+        boolean copied = false;
+        for (int i = 0; i < dataDisks.size(); i++) {
+            File cloneImage = getCloneDataDiskImage(dataDisks.get(i), i, cloneDir);
+            if (cloneImage == null) {
+                cloneDataDisks.add(dataDisks.get(i));
+            } else {
+                cloneDataDisks.add(dataDisks.get(i).withImage(cloneImage));
+                copied = true;
+            }
+        }
+        return copied ? mConfig.withDataDisks(cloneDataDisks) : mConfig;
+    }
+
+    /**
+     * Returns where a clone in {@code cloneDir} keeps its own copy of the given data disk, or null
+     * if the clone shares this VM's image. A writable image must not be shared, and an image in
+     * this VM's directory would be deleted with it.
+     */
+    @Nullable
+    private File getCloneDataDiskImage(
+            @NonNull VirtualMachineConfig.DataDisk dataDisk, int index, @NonNull File cloneDir) {
+        Path image = dataDisk.getImage().toPath().normalize();
+        if (dataDisk.isReadOnly() && !image.startsWith(mVmRootPath.toPath().normalize())) {
+            return null;
+        }
+        return new File(cloneDir, DATA_DISK_FILE_PREFIX + index + ".img");
+    }
+
+    @GuardedBy("mLock")
+    @NonNull
+    private List<VirtualMachineManager.CloneResult> cloneFilesTo(
+            @NonNull List<VirtualMachine> clones) throws VirtualMachineException {
+        List<VirtualMachineConfig.DataDisk> dataDisks = mConfig.getDataDisks();
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(clones.size(), CLONE_PARALLELISM));
+        try {
+            List<Future<VirtualMachineManager.CloneResult>> futures = new ArrayList<>();
+            for (VirtualMachine clone : clones) {
+                futures.add(executor.submit(() -> cloneImagesTo(clone, dataDisks)));
             }
-            if (config.isEncryptedStorageEnabled()) {
+            List<VirtualMachineManager.CloneResult> results = new ArrayList<>();
+            for (Future<VirtualMachineManager.CloneResult> future : futures) {
                 try {
-                    vm.mEncryptedStoreFilePath.createNewFile();
-                } catch (IOException e) {
-                    throw new VirtualMachineException(
-                            "failed to create encrypted storage image", e);
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw (cause instanceof VirtualMachineException)
+                            ? (VirtualMachineException) cause
+                            : new VirtualMachineException("failed to clone virtual machine", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new VirtualMachineException("interrupted", e);
                 }
             }
+            return results;
+        } finally {
+            // Stop the other copies if one failed, but let them all finish before the clones are
+            // deleted, so that none is still writing to a clone's directory as it is rolled back.
+            executor.shutdownNow();
+            awaitTerminationUninterruptibly(executor);
+        }
+    }
 
-            IVirtualizationService service = vm.mVirtualizationService.getBinder();
-
+    /** Waits for all the tasks of {@code executor}, which has been shut down, to finish. */
+    static void awaitTerminationUninterruptibly(@NonNull ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
             try {
-                service.initializeWritablePartition(
-                        ParcelFileDescriptor.open(vm.mInstanceFilePath, MODE_READ_WRITE),
-                        INSTANCE_FILE_SIZE,
-                        PartitionType.ANDROID_VM_INSTANCE);
-            } catch (FileNotFoundException e) {
-                throw new VirtualMachineException("instance image missing", e);
-            } catch (RemoteException e) {
-                throw e.rethrowAsRuntimeException();
-            } catch (ServiceSpecificException | IllegalArgumentException e) {
-                throw new VirtualMachineException("failed to create instance partition", e);
+                if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @NonNull
+    private VirtualMachineManager.CloneResult cloneImagesTo(
+            @NonNull VirtualMachine clone, @NonNull List<VirtualMachineConfig.DataDisk> dataDisks)
+            throws VirtualMachineException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<File> sources = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        sources.add(mInstanceFilePath);
+        targets.add(clone.mInstanceFilePath);
+        if (mEncryptedStoreFilePath != null && mEncryptedStoreFilePath.exists()) {
+            sources.add(mEncryptedStoreFilePath);
+            targets.add(clone.mEncryptedStoreFilePath);
+        }
+        for (int i = 0; i < dataDisks.size(); i++) {
+            File target = getCloneDataDiskImage(dataDisks.get(i), i, clone.mVmRootPath);
+            if (target != null) {
+                sources.add(dataDisks.get(i).getImage());
+                targets.add(target);
+            }
+        }
+        long bytesCopied = 0;
+        long bytesShared = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            File source = sources.get(i);
+            long copied = cloneFile(source, targets.get(i));
+            if (copied == REFLINKED) {
+                bytesShared += allocatedBytes(source);
+            } else {
+                bytesCopied += copied;
+            }
+        }
+        Duration duration = Duration.ofNanos(SystemClock.elapsedRealtimeNanos() - start);
+        return new VirtualMachineManager.CloneResult(clone, duration, bytesCopied, bytesShared);
+    }
+
+    /**
+     * Makes {@code target} a copy of {@code source}, sharing its storage if the filesystem
+     * supports reflinks.
+     *
+     * @return {@link #REFLINKED} if the storage is shared, otherwise the number of bytes copied.
+     */
+    private static long cloneFile(@NonNull File source, @NonNull File target)
+            throws VirtualMachineException {
+        try (ParcelFileDescriptor in = ParcelFileDescriptor.open(source, MODE_READ_ONLY)) {
+            return cloneFile(in, target);
+        } catch (IOException e) {
+            throw new VirtualMachineException("failed to clone " + source.getName(), e);
+        }
+    }
+
+    /** Makes {@code target} a copy of the file open as {@code in}; see {@link #cloneFile}. */
+    private static long cloneFile(@NonNull ParcelFileDescriptor in, @NonNull File target)
+            throws IOException {
+        try (ParcelFileDescriptor out =
+                ParcelFileDescriptor.open(
+                        target,
+                        MODE_READ_WRITE
+                                | ParcelFileDescriptor.MODE_CREATE
+                                | ParcelFileDescriptor.MODE_TRUNCATE)) {
+            if (nativeReflink(in.getFd(), out.getFd())) {
+                return REFLINKED;
             }
+            return nativeSparseCopy(in.getFd(), out.getFd());
+        }
+    }
+
+    /** Returns the amount of storage allocated to {@code file}, which may be sparse. */
+    private static long allocatedBytes(@NonNull File file) throws VirtualMachineException {
+        try {
+            return Os.stat(file.getPath()).st_blocks * 512;
+        } catch (ErrnoException e) {
+            throw new VirtualMachineException("failed to stat " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Shares the storage of {@code srcFd}'s file with {@code dstFd}'s file. Returns false, leaving
+     * the files unchanged, if their filesystem doesn't support that.
+     */
+    private static native boolean nativeReflink(int srcFd, int dstFd) throws IOException;
+
+    /**
+     * Copies the data regions of {@code srcFd}'s file to {@code dstFd}'s file, leaving holes
+     * unallocated, and returns the number of bytes copied.
+     */
+    private static native long nativeSparseCopy(int srcFd, int dstFd) throws IOException;
+
+    /**
+     * Creates {@code file} as an initialized writable partition of the given size and type.
+     *
+     * <p>The partition is copied from a template, which is initialized by the service the first
+     * time it is needed. Templates are keyed by the format version reported by the service, so a
+     * service update which changes the format makes stale templates unused; they are deleted when
+     * the replacement template is created.
+     */
+    private static void initializePartition(
+            @NonNull Context context,
+            @NonNull VirtualizationService service,
+            int formatVersion,
+            @NonNull File file,
+            long sizeBytes,
+            int partitionType)
+            throws VirtualMachineException {
+        File templateDir = new File(context.getDataDir(), TEMPLATE_DIR);
+        String prefix = "type" + partitionType + "_" + sizeBytes + "_v";
+        File template = new File(templateDir, prefix + formatVersion + ".img");
 
-            if (config.isEncryptedStorageEnabled()) {
+        synchronized (sTemplateLock) {
+            if (!template.exists()) {
                 try {
-                    service.initializeWritablePartition(
-                            ParcelFileDescriptor.open(vm.mEncryptedStoreFilePath, MODE_READ_WRITE),
-                            config.getEncryptedStorageBytes(),
-                            PartitionType.ENCRYPTEDSTORE);
-                } catch (FileNotFoundException e) {
-                    throw new VirtualMachineException("encrypted storage image missing", e);
-                } catch (RemoteException e) {
-                    throw e.rethrowAsRuntimeException();
-                } catch (ServiceSpecificException | IllegalArgumentException e) {
-                    throw new VirtualMachineException(
-                            "failed to create encrypted storage partition", e);
+                    Files.createDirectories(templateDir.toPath());
+                    // Initialize a temporary file and rename it into place, so that a partially
+                    // initialized template is never used, even if we crash.
+                    File tmp = File.createTempFile(prefix, ".tmp", templateDir);
+                    try {
+                        initializePartitionWithService(service, tmp, sizeBytes, partitionType);
+                        Files.move(
+                                tmp.toPath(),
+                                template.toPath(),
+                                StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } finally {
+                        tmp.delete();
+                    }
+                } catch (IOException e) {
+                    throw new VirtualMachineException("failed to create partition template", e);
                 }
+                deleteStaleTemplates(templateDir, prefix, template);
             }
-            return vm;
-        } catch (VirtualMachineException | RuntimeException e) {
-            // If anything goes wrong, delete any files created so far and the VM's directory
-            try {
-                deleteRecursively(vmDir);
-            } catch (IOException innerException) {
-                e.addSuppressed(innerException);
+        }
+
+        try {
+            // An initialized partition is a QCOW2 image holding only metadata, so it is small
+            // regardless of its virtual size.
+            Files.copy(template.toPath(), file.toPath());
+        } catch (IOException e) {
+            throw new VirtualMachineException("failed to copy partition template", e);
+        }
+    }
+
+    private static void initializePartitionWithService(
+            @NonNull VirtualizationService service,
+            @NonNull File file,
+            long sizeBytes,
+            int partitionType)
+            throws VirtualMachineException {
+        try {
+            service.getBinder()
+                    .initializeWritablePartition(
+                            ParcelFileDescriptor.open(file, MODE_READ_WRITE),
+                            sizeBytes,
+                            partitionType);
+        } catch (FileNotFoundException e) {
+            throw new VirtualMachineException("partition image missing", e);
+        } catch (RemoteException e) {
+            throw e.rethrowAsRuntimeException();
+        } catch (ServiceSpecificException | IllegalArgumentException e) {
+            throw new VirtualMachineException("failed to initialize partition", e);
+        }
+    }
+
+    /** Deletes templates of the same type and size as {@code current} but another version. */
+    private static void deleteStaleTemplates(
+            @NonNull File templateDir, @NonNull String prefix, @NonNull File current) {
+        File[] templates = templateDir.listFiles();
+        if (templates == null) {
+            return;
+        }
+        for (File template : templates) {
+            String name = template.getName();
+            if (name.startsWith(prefix) && name.endsWith(".img") && !template.equals(current)) {
+                if (!template.delete()) {
+                    Log.w(TAG, "Failed to delete stale partition template " + template);
+                }
             }
-            throw e;
         }
     }
 
@@ -512,7 +1075,8 @@ public class VirtualMachine implements AutoCloseable {
         File configFilePath = new File(thisVmDir, CONFIG_FILE);
         VirtualMachineConfig config = VirtualMachineConfig.from(configFilePath);
         VirtualMachine vm =
-                new VirtualMachine(context, name, config, VirtualizationService.getInstance());
+                new VirtualMachine(
+                        context, name, config, VirtualizationService.getInstance(name));
 
         if (!vm.mInstanceFilePath.exists()) {
             throw new VirtualMachineException("instance image missing");
@@ -530,31 +1094,84 @@ public class VirtualMachine implements AutoCloseable {
             // Once we explicitly delete a VM it must remain permanently in the deleted state;
             // if a new VM is created with the same name (and files) that's unrelated.
             mWasDeleted = true;
+            mResourceUsageSamplingPeriod = null;
+            cancelResourceUsageSampling();
         }
         deleteVmDirectory(context, name);
     }
 
+    /**
+     * Deletes the files of a VM. The VM directory is atomically moved to the trash, so the name can
+     * be reused immediately, and the files are then deleted in the background.
+     */
     static void deleteVmDirectory(Context context, String name) throws VirtualMachineException {
+        File vmDir = getVmDir(context, name);
+        invalidateStorageUsage(vmDir);
+        File trashDir = new File(context.getDataDir(), TRASH_DIR);
+        File trashedVmDir = new File(trashDir, name + "-" + UUID.randomUUID());
         try {
-            deleteRecursively(getVmDir(context, name));
-        } catch (IOException e) {
+            Files.createDirectories(trashDir.toPath());
+            Files.move(vmDir.toPath(), trashedVmDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
             throw new VirtualMachineException(e);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to move " + vmDir + " to the trash, deleting it in place", e);
+            try {
+                deleteRecursively(vmDir);
+            } catch (IOException innerException) {
+                throw new VirtualMachineException(innerException);
+            }
+            return;
         }
+        sTrashExecutor.execute(() -> deleteTrashed(trashedVmDir));
     }
 
-    @GuardedBy("VirtualMachineManager.sCreateLock")
-    @NonNull
-    private static File createVmDir(@NonNull Context context, @NonNull String name)
-            throws VirtualMachineException {
-        File vmDir = getVmDir(context, name);
-        try {
-            // We don't need to undo this even if VM creation fails.
-            Files.createDirectories(vmDir.getParentFile().toPath());
-
-            // The checking of the existence of this directory and the creation of it is done
-            // atomically. If the directory already exists (i.e. the VM with the same name was
-            // already created), FileAlreadyExistsException is thrown.
-            Files.createDirectory(vmDir.toPath());
+    /**
+     * Deletes anything left in the trash, for example because the process died before it finished
+     * deleting a VM. This is done once per process for each data directory.
+     */
+    static void sweepTrash(@NonNull Context context) {
+        File trashDir = new File(context.getDataDir(), TRASH_DIR);
+        synchronized (sSweptTrashDirs) {
+            if (!sSweptTrashDirs.add(trashDir)) {
+                return;
+            }
+        }
+        sTrashExecutor.execute(
+                () -> {
+                    File[] trashedVmDirs = trashDir.listFiles();
+                    if (trashedVmDirs == null) {
+                        return;
+                    }
+                    for (File trashedVmDir : trashedVmDirs) {
+                        deleteTrashed(trashedVmDir);
+                    }
+                });
+    }
+
+    private static void deleteTrashed(@NonNull File trashedVmDir) {
+        try {
+            deleteRecursively(trashedVmDir);
+        } catch (NoSuchFileException e) {
+            // Another process of this app got there first.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to delete " + trashedVmDir, e);
+        }
+    }
+
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    @NonNull
+    private static File createVmDir(@NonNull Context context, @NonNull String name)
+            throws VirtualMachineException {
+        File vmDir = getVmDir(context, name);
+        try {
+            // We don't need to undo this even if VM creation fails.
+            Files.createDirectories(vmDir.getParentFile().toPath());
+
+            // The checking of the existence of this directory and the creation of it is done
+            // atomically. If the directory already exists (i.e. the VM with the same name was
+            // already created), FileAlreadyExistsException is thrown.
+            Files.createDirectory(vmDir.toPath());
         } catch (FileAlreadyExistsException e) {
             throw new VirtualMachineException("virtual machine already exists", e);
         } catch (IOException e) {
@@ -563,11 +1180,20 @@ public class VirtualMachine implements AutoCloseable {
         return vmDir;
     }
 
-    @NonNull
-    private static File getVmDir(@NonNull Context context, @NonNull String name) {
+    /**
+     * Checks that {@code name} can be used as the name of a VM.
+     *
+     * @throws IllegalArgumentException if it can't.
+     */
+    static void checkName(@NonNull String name) {
         if (name.contains(File.separator) || name.equals(".") || name.equals("..")) {
             throw new IllegalArgumentException("Invalid VM name: " + name);
         }
+    }
+
+    @NonNull
+    private static File getVmDir(@NonNull Context context, @NonNull String name) {
+        checkName(name);
         File vmRoot = new File(context.getDataDir(), VM_DIR);
         return new File(vmRoot, name);
     }
@@ -623,7 +1249,8 @@ public class VirtualMachine implements AutoCloseable {
         }
 
         int status;
-        if (virtualMachine == null) {
+        if (virtualMachine == null || !mVirtualizationService.isOk()) {
+            // If virtmgr has died, so has the VM, and asking it for the state would fail.
             status = STATUS_STOPPED;
         } else {
             try {
@@ -650,6 +1277,8 @@ public class VirtualMachine implements AutoCloseable {
             case VirtualMachineState.READY:
             case VirtualMachineState.FINISHED:
                 return STATUS_RUNNING;
+            case VirtualMachineState.PAUSED:
+                return STATUS_PAUSED;
             case VirtualMachineState.NOT_STARTED:
             case VirtualMachineState.DEAD:
             default:
@@ -684,8 +1313,13 @@ public class VirtualMachine implements AutoCloseable {
      */
     @GuardedBy("mLock")
     private void dropVm() {
+        cancelResourceUsageSampling();
         mContext.unregisterComponentCallbacks(mMemoryManagementCallbacks);
+        if (mCallbackTranslator != null) {
+            mCallbackTranslator.unlinkFromService();
+        }
         mVirtualMachine = null;
+        mCallbackTranslator = null;
     }
 
     /** If we have an IVirtualMachine in the running state return it, otherwise throw. */
@@ -755,11 +1389,37 @@ public class VirtualMachine implements AutoCloseable {
         }
     }
 
+    /**
+     * Sets memory to share with the guest the next times this virtual machine is run, or stops
+     * sharing memory if {@code memory} is null. The memory is provided to the guest as a
+     * virtio-pmem device, so that the app and the payload can exchange data through it without
+     * going through a socket. The app accesses it with {@link SharedMemory#mapReadWrite}, and the
+     * payload with {@code AVmPayload_openSharedMemory}. As with any shared memory, the app and the
+     * payload need to agree on how to synchronize their accesses.
+     *
+     * <p>The setting is not part of the {@link VirtualMachineConfig}, and is not persisted. The
+     * app remains responsible for closing {@code memory}, but must not do so while it is set.
+     *
+     * <p>Shared memory is not supported for protected virtual machines, whose memory is private
+     * to the guest.
+     *
+     * @hide
+     */
+    @SystemApi
+    public void setSharedMemory(@Nullable SharedMemory memory) {
+        synchronized (mLock) {
+            mSharedMemory = memory;
+        }
+    }
+
     /**
      * Runs this virtual machine. The returning of this method however doesn't mean that the VM has
      * actually started running or the OS has booted there. Such events can be notified by
      * registering a callback using {@link #setCallback} before calling {@code run()}.
      *
+     * <p>The virtual machine is booted from scratch, and any {@linkplain #snapshot snapshot} of it
+     * is discarded; see {@link #runFromSnapshot}.
+     *
      * <p>NOTE: This method may block and should not be called on the main thread.
      *
      * @throws VirtualMachineException if the virtual machine is not stopped or could not be
@@ -770,8 +1430,73 @@ public class VirtualMachine implements AutoCloseable {
     @WorkerThread
     @RequiresPermission(MANAGE_VIRTUAL_MACHINE_PERMISSION)
     public void run() throws VirtualMachineException {
+        run(/* restoreSnapshot= */ false);
+    }
+
+    /**
+     * Runs this virtual machine from the snapshot saved by {@link #snapshot}, instead of booting
+     * it. The virtual machine resumes in the state it was in when the snapshot was taken; for
+     * example, if its payload was ready then, it is immediately ready again, and {@link
+     * VirtualMachineCallback#onPayloadReady} is not called a second time.
+     *
+     * <p>The snapshot is consumed: once the virtual machine is running again it diverges from the
+     * snapshot, so the snapshot is discarded. It is also discarded if the virtual machine can't be
+     * run from it.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not stopped, there is no snapshot,
+     *     the snapshot was taken by another process, or the virtual machine could not be started.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @RequiresPermission(MANAGE_VIRTUAL_MACHINE_PERMISSION)
+    public void runFromSnapshot() throws VirtualMachineException {
+        run(/* restoreSnapshot= */ true);
+    }
+
+    /**
+     * Restarts this virtual machine: if it is running it is {@linkplain #stop stopped}, and then it
+     * is {@linkplain #run run} again. This is cheaper than calling those methods separately when
+     * nothing else has changed, since only the virtual machine itself is recreated. The APK
+     * signature files are kept unless an APK has changed, and any captured console and log
+     * output streams remain valid.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine could not be stopped or started.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @RequiresPermission(MANAGE_VIRTUAL_MACHINE_PERMISSION)
+    public void restart() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (mVirtualMachine != null) {
+                try {
+                    // The VM may already have stopped by itself, e.g. if its payload crashed.
+                    if (stateToStatus(mVirtualMachine.getState()) != STATUS_STOPPED) {
+                        mVirtualMachine.stop();
+                    }
+                } catch (RemoteException e) {
+                    throw e.rethrowAsRuntimeException();
+                } catch (ServiceSpecificException e) {
+                    throw new VirtualMachineException(e);
+                }
+                dropVm();
+            }
+            run(/* restoreSnapshot= */ false);
+        }
+    }
+
+    private void run(boolean restoreSnapshot) throws VirtualMachineException {
         synchronized (mLock) {
             checkStopped();
+            if (restoreSnapshot && !mSnapshotFilePath.exists()) {
+                throw new VirtualMachineException("VM has no snapshot");
+            }
+            invalidateStorageUsage(mVmRootPath);
 
             try {
                 mIdsigFilePath.createNewFile();
@@ -785,6 +1510,8 @@ public class VirtualMachine implements AutoCloseable {
 
             IVirtualizationService service = mVirtualizationService.getBinder();
 
+            // The service dups what it needs, so this is closed once the VM has been created.
+            ParcelFileDescriptor sharedMemory = null;
             try {
                 if (mVmOutputCaptured) {
                     createVmPipes();
@@ -796,36 +1523,133 @@ public class VirtualMachine implements AutoCloseable {
 
                 try {
                     createIdSigs(service, appConfig);
-                } catch (FileNotFoundException e) {
+                } catch (IOException e) {
                     throw new VirtualMachineException("Failed to generate APK signature", e);
                 }
 
+                if (mSharedMemory != null) {
+                    if (appConfig.protectedVm) {
+                        throw new VirtualMachineException(
+                                "Shared memory is not supported for protected VMs");
+                    }
+                    sharedMemory = dupFileDescriptor(mSharedMemory);
+                    appConfig.sharedMemory = sharedMemory;
+                }
+
+                if (restoreSnapshot) {
+                    try {
+                        appConfig.restoreSnapshot =
+                                ParcelFileDescriptor.open(mSnapshotFilePath, MODE_READ_ONLY);
+                    } catch (FileNotFoundException e) {
+                        throw new VirtualMachineException("Failed to open snapshot", e);
+                    }
+                    // The service can only restore a snapshot once, even if that fails.
+                    mSnapshotFilePath.delete();
+                }
+
                 android.system.virtualizationservice.VirtualMachineConfig vmConfigParcel =
                         android.system.virtualizationservice.VirtualMachineConfig.appConfig(
                                 appConfig);
 
                 mVirtualMachine = service.createVm(vmConfigParcel, mConsoleWriter, mLogWriter);
-                mVirtualMachine.registerCallback(new CallbackTranslator(service));
+                // The service holds its own reference to the snapshot, if any. Whichever way the
+                // VM runs, its state will no longer match any snapshot.
+                mSnapshotFilePath.delete();
+                mCallbackTranslator = new CallbackTranslator(service);
+                mVirtualMachine.registerCallback(mCallbackTranslator);
                 mContext.registerComponentCallbacks(mMemoryManagementCallbacks);
                 mVirtualMachine.start();
+                startResourceUsageSampling();
             } catch (IllegalStateException | ServiceSpecificException e) {
                 throw new VirtualMachineException(e);
             } catch (RemoteException e) {
                 throw e.rethrowAsRuntimeException();
+            } finally {
+                if (sharedMemory != null) {
+                    try {
+                        sharedMemory.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close shared memory", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates the APK signature file {@code idsig} for {@code apk}, unless neither has changed
+     * since it was last generated. Hashing a large APK is expensive, and is otherwise repeated
+     * every time the VM is run.
+     */
+    @GuardedBy("mLock")
+    private void updateIdsig(IVirtualizationService service, ParcelFileDescriptor apk, File idsig)
+            throws RemoteException, IOException {
+        try {
+            String apkIdentity = fileIdentity(Os.fstat(apk.getFileDescriptor()));
+            String source = mIdsigSources.get(idsig);
+            if (source != null && idsig.exists()) {
+                String idsigIdentity = fileIdentity(Os.stat(idsig.getPath()));
+                if (source.equals(apkIdentity + " " + idsigIdentity)) {
+                    return;
+                }
+            }
+            mIdsigSources.remove(idsig);
+            try (ParcelFileDescriptor output = ParcelFileDescriptor.open(idsig, MODE_READ_WRITE)) {
+                service.createOrUpdateIdsigFile(apk, output);
             }
+            String idsigIdentity = fileIdentity(Os.stat(idsig.getPath()));
+            mIdsigSources.put(idsig, apkIdentity + " " + idsigIdentity);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
         }
     }
 
+    /**
+     * Returns a string which changes whenever the file, or its contents, are replaced. The
+     * timestamps have nanosecond precision, so a rewrite within the same second is noticed; the
+     * change time also catches a modification time which was set back.
+     */
+    @NonNull
+    private static String fileIdentity(@NonNull StructStat stat) {
+        return stat.st_dev
+                + ":"
+                + stat.st_ino
+                + ":"
+                + stat.st_size
+                + ":"
+                + stat.st_mtim.tv_sec
+                + "."
+                + stat.st_mtim.tv_nsec
+                + ":"
+                + stat.st_ctim.tv_sec
+                + "."
+                + stat.st_ctim.tv_nsec;
+    }
+
+    /** Returns a new file descriptor for the memory region of {@code memory}. */
+    private static ParcelFileDescriptor dupFileDescriptor(SharedMemory memory) {
+        // SharedMemory doesn't expose its file descriptor, but it is parceled as one.
+        Parcel parcel = Parcel.obtain();
+        try {
+            memory.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return parcel.readFileDescriptor();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @GuardedBy("mLock")
     private void createIdSigs(IVirtualizationService service, VirtualMachineAppConfig appConfig)
-            throws RemoteException, FileNotFoundException {
+            throws RemoteException, IOException {
         // Fill the idsig file by hashing the apk
-        service.createOrUpdateIdsigFile(
-                appConfig.apk, ParcelFileDescriptor.open(mIdsigFilePath, MODE_READ_WRITE));
+        updateIdsig(service, appConfig.apk, mIdsigFilePath);
 
         for (ExtraApkSpec extraApk : mExtraApks) {
-            service.createOrUpdateIdsigFile(
-                    ParcelFileDescriptor.open(extraApk.apk, MODE_READ_ONLY),
-                    ParcelFileDescriptor.open(extraApk.idsig, MODE_READ_WRITE));
+            try (ParcelFileDescriptor apkFd =
+                    ParcelFileDescriptor.open(extraApk.apk, MODE_READ_ONLY)) {
+                updateIdsig(service, apkFd, extraApk.idsig);
+            }
         }
 
         // Re-open idsig files in read-only mode
@@ -922,9 +1746,9 @@ public class VirtualMachine implements AutoCloseable {
      * VirtualMachineConfig.Builder#setEncryptedStorageBytes encrypted storage} might not be
      * persisted, and the instance might be left in an inconsistent state.
      *
-     * <p>For a graceful shutdown, you could request the payload to call {@code exit()}, e.g. via a
-     * {@linkplain #connectToVsockServer binder request}, and wait for {@link
-     * VirtualMachineCallback#onPayloadFinished} to be called.
+     * <p>For a graceful shutdown, use {@link #shutdown} instead, or request the payload to call
+     * {@code exit()}, e.g. via a {@linkplain #connectToVsockServer binder request}, and wait for
+     * {@link VirtualMachineCallback#onPayloadFinished} to be called.
      *
      * <p>A stopped virtual machine can be re-started by calling {@link #run()}.
      *
@@ -952,6 +1776,644 @@ public class VirtualMachine implements AutoCloseable {
         }
     }
 
+    /**
+     * Shuts down this virtual machine cleanly if possible. The payload is sent {@code SIGTERM},
+     * and once it has exited, the {@linkplain VirtualMachineConfig.Builder#setEncryptedStorageBytes
+     * encrypted storage} is flushed and unmounted before the virtual machine powers off, so that
+     * the instance is left consistent. If the virtual machine hasn't stopped within the given
+     * timeout, or can't be asked to shut down (e.g. because it is paused), it is {@linkplain #stop
+     * stopped} forcibly instead.
+     *
+     * <p>Either way, the virtual machine is stopped when this returns, and {@link
+     * VirtualMachineCallback#onStopped} is called as usual.
+     *
+     * <p>NOTE: This method blocks for up to {@code timeout}, and should not be called on the main
+     * thread.
+     *
+     * @param timeout how long to wait for the virtual machine to shut down before stopping it
+     * @return whether the virtual machine shut down cleanly, and how long it took
+     * @throws VirtualMachineException if the virtual machine is not running or could not be
+     *     stopped.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public ShutdownResult shutdown(@NonNull Duration timeout) throws VirtualMachineException {
+        requireNonNull(timeout, "timeout must not be null");
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+
+        IVirtualMachine vm;
+        CallbackTranslator callbackTranslator;
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            vm = mVirtualMachine;
+            callbackTranslator = mCallbackTranslator;
+        }
+
+        // Don't hold the lock while waiting, so that callbacks and other calls can proceed.
+        boolean graceful = false;
+        try {
+            vm.requestShutdown();
+            graceful = callbackTranslator.awaitStopped(timeout);
+        } catch (RemoteException e) {
+            throw e.rethrowAsRuntimeException();
+        } catch (ServiceSpecificException e) {
+            Log.w(TAG, "Failed to request shutdown of " + mName + ", stopping it", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (mLock) {
+            if (mVirtualMachine == vm) {
+                if (!graceful) {
+                    try {
+                        try {
+                            vm.stop();
+                        } catch (ServiceSpecificException e) {
+                            // The VM may have shut down by itself just as we gave up waiting.
+                            if (stateToStatus(vm.getState()) != STATUS_STOPPED) {
+                                throw new VirtualMachineException(e);
+                            }
+                        }
+                    } catch (RemoteException e) {
+                        throw e.rethrowAsRuntimeException();
+                    }
+                }
+                dropVm();
+            }
+        }
+        Duration duration = Duration.ofNanos(SystemClock.elapsedRealtimeNanos() - startNanos);
+        return new ShutdownResult(graceful, duration);
+    }
+
+    /**
+     * The outcome of {@link #shutdown}.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final class ShutdownResult {
+        private final boolean mGraceful;
+        @NonNull private final Duration mDuration;
+
+        private ShutdownResult(boolean graceful, @NonNull Duration duration) {
+            mGraceful = graceful;
+            mDuration = duration;
+        }
+
+        /**
+         * Returns whether the virtual machine shut down by itself when asked to, rather than being
+         * stopped forcibly after the timeout.
+         *
+         * @hide
+         */
+        @SystemApi
+        public boolean isGraceful() {
+            return mGraceful;
+        }
+
+        /**
+         * Returns how long it took for the virtual machine to stop, including any time spent
+         * waiting before it was stopped forcibly.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Duration getDuration() {
+            return mDuration;
+        }
+    }
+
+    /**
+     * Pauses this running virtual machine. Its virtual CPUs stop being scheduled, so it uses no CPU
+     * time, but its memory, devices and connections are kept intact. This is much cheaper than
+     * stopping the virtual machine and booting it again later.
+     *
+     * <p>While paused, the virtual machine can't respond to anything. New connections to it, e.g.
+     * by {@link #connectToVsockServer}, fail, and existing ones stall until it is {@linkplain
+     * #resume resumed}. A virtual machine should not be paused before its payload is ready, since
+     * it is stopped if it fails to start its payload in time.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not running, is already paused, or
+     *     could not be paused.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    public void pause() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            try {
+                mVirtualMachine.pause();
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            } catch (ServiceSpecificException e) {
+                throw new VirtualMachineException(e);
+            }
+        }
+        executeCallback((cb) -> cb.onPaused(VirtualMachine.this));
+    }
+
+    /**
+     * Resumes this virtual machine after it was {@linkplain #pause paused}.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not paused, or could not be
+     *     resumed.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    public void resume() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            try {
+                mVirtualMachine.resume();
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            } catch (ServiceSpecificException e) {
+                throw new VirtualMachineException(e);
+            }
+        }
+        executeCallback((cb) -> cb.onResumed(VirtualMachine.this));
+    }
+
+    /**
+     * Memory usage of a running virtual machine, as reported by its balloon device.
+     *
+     * @see #getMemoryStats
+     * @hide
+     */
+    @SystemApi
+    public static final class MemoryStats {
+        private final long mTotalBytes;
+        private final long mReclaimedBytes;
+        private final long mFreeBytes;
+        private final long mAvailableBytes;
+
+        private MemoryStats(
+                long totalBytes, long reclaimedBytes, long freeBytes, long availableBytes) {
+            mTotalBytes = totalBytes;
+            mReclaimedBytes = reclaimedBytes;
+            mFreeBytes = freeBytes;
+            mAvailableBytes = availableBytes;
+        }
+
+        /**
+         * Returns the amount of memory the virtual machine was started with, in bytes.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        /**
+         * Returns the amount of memory currently reclaimed from the guest by the balloon, in
+         * bytes.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getReclaimedBytes() {
+            return mReclaimedBytes;
+        }
+
+        /**
+         * Returns the amount of memory the guest currently has, in bytes; that is, the total
+         * minus what has been reclaimed.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getCurrentBytes() {
+            return Math.max(mTotalBytes - mReclaimedBytes, 0);
+        }
+
+        /**
+         * Returns the amount of memory the guest reports as free, in bytes, or -1 if it hasn't
+         * reported it.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getFreeBytes() {
+            return mFreeBytes;
+        }
+
+        /**
+         * Returns the amount of memory the guest reports as available for new allocations without
+         * swapping, in bytes, or -1 if it hasn't reported it.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getAvailableBytes() {
+            return mAvailableBytes;
+        }
+    }
+
+    /**
+     * Asks the guest of this running virtual machine to give memory back to the host, or lets it
+     * take memory back, so that it is left with about {@code targetBytes} of the memory it was
+     * started with. This lets guests that are using less than their {@linkplain
+     * VirtualMachineConfig#getMemoryBytes memory size} be shrunk while the host is under memory
+     * pressure, and grown again when it is not.
+     *
+     * <p>Memory is reclaimed by inflating a balloon device in the guest, so the guest decides
+     * which of its pages to give up, and may take some time to do so; {@link #getMemoryStats}
+     * reports the progress. The system may also adjust the balloon in response to {@linkplain
+     * ComponentCallbacks2#onTrimMemory memory trim} events, which overrides this target.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not running or is paused, the
+     *     target is more than its memory size, or it does not support ballooning.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    public void setMemoryTarget(@IntRange(from = 1) long targetBytes)
+            throws VirtualMachineException {
+        if (targetBytes <= 0) {
+            throw new IllegalArgumentException("Memory target must be positive");
+        }
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            try {
+                mVirtualMachine.setMemoryTarget(targetBytes);
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            } catch (ServiceSpecificException e) {
+                throw new VirtualMachineException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the memory usage of this running virtual machine, including how much has been
+     * reclaimed from it by {@link #setMemoryTarget} or in response to memory pressure.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not running or is paused, or it
+     *     does not support ballooning.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public MemoryStats getMemoryStats() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            try {
+                android.system.virtualizationservice.MemoryStats stats =
+                        mVirtualMachine.getMemoryStats();
+                return new MemoryStats(
+                        stats.totalBytes,
+                        stats.balloonBytes,
+                        stats.freeBytes,
+                        stats.availableBytes);
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            } catch (ServiceSpecificException e) {
+                throw new VirtualMachineException(e);
+            }
+        }
+    }
+
+    /**
+     * Host resources used by a running virtual machine, sampled from the process running it.
+     *
+     * <p>Memory is split between the memory backing the guest and the memory used by the virtual
+     * machine monitor itself, and reported both as resident set size (RSS) and as proportional set
+     * size (PSS), which divides shared pages between the processes sharing them. CPU time and
+     * storage I/O are cumulative since the virtual machine was started.
+     *
+     * @see #getResourceUsage
+     * @hide
+     */
+    @SystemApi
+    public static final class ResourceUsage {
+        private final long mGuestRssBytes;
+        private final long mHostRssBytes;
+        private final long mGuestPssBytes;
+        private final long mHostPssBytes;
+        private final long mCpuTimeMillis;
+        private final long mVcpuTimeMillis;
+        private final long mBlockReadBytes;
+        private final long mBlockWriteBytes;
+
+        private ResourceUsage(@NonNull android.system.virtualizationservice.ResourceUsage usage) {
+            mGuestRssBytes = usage.guestRssBytes;
+            mHostRssBytes = usage.hostRssBytes;
+            mGuestPssBytes = usage.guestPssBytes;
+            mHostPssBytes = usage.hostPssBytes;
+            mCpuTimeMillis = usage.cpuTimeMillis;
+            mVcpuTimeMillis = usage.vcpuTimeMillis;
+            mBlockReadBytes = usage.blockReadBytes;
+            mBlockWriteBytes = usage.blockWriteBytes;
+        }
+
+        /**
+         * Returns the resident memory backing the guest's memory, in bytes.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getGuestRssBytes() {
+            return mGuestRssBytes;
+        }
+
+        /**
+         * Returns the resident memory used by the virtual machine monitor itself, excluding the
+         * guest's memory, in bytes.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getHostRssBytes() {
+            return mHostRssBytes;
+        }
+
+        /**
+         * Returns the proportional set size of the guest's memory, in bytes.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getGuestPssBytes() {
+            return mGuestPssBytes;
+        }
+
+        /**
+         * Returns the proportional set size of the virtual machine monitor itself, excluding the
+         * guest's memory, in bytes.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getHostPssBytes() {
+            return mHostPssBytes;
+        }
+
+        /**
+         * Returns the CPU time used by the virtual machine, including running its vCPUs, in
+         * milliseconds.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getCpuTimeMillis() {
+            return mCpuTimeMillis;
+        }
+
+        /**
+         * Returns the CPU time spent running the guest on the virtual machine's vCPUs, in
+         * milliseconds.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getVcpuTimeMillis() {
+            return mVcpuTimeMillis;
+        }
+
+        /**
+         * Returns the number of bytes read from storage on behalf of the virtual machine.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getBlockReadBytes() {
+            return mBlockReadBytes;
+        }
+
+        /**
+         * Returns the number of bytes written to storage on behalf of the virtual machine.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getBlockWriteBytes() {
+            return mBlockWriteBytes;
+        }
+    }
+
+    /**
+     * Returns the host resources used by this running virtual machine. The values are sampled by
+     * the system about once a second, so calling this often is cheap but doesn't give more recent
+     * values.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not running.
+     * @see #setResourceUsageSamplingPeriod
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public ResourceUsage getResourceUsage() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            try {
+                return new ResourceUsage(mVirtualMachine.getResourceUsage());
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            } catch (ServiceSpecificException e) {
+                throw new VirtualMachineException(e);
+            }
+        }
+    }
+
+    /**
+     * Sets how often the resource usage of this virtual machine is delivered to {@link
+     * VirtualMachineCallback#onResourceUsage} while it is running, or stops delivering it if
+     * {@code period} is null. The setting applies to later runs of this virtual machine too, until
+     * it is changed or the virtual machine is deleted.
+     *
+     * @param period the sampling period, which must be at least one second, or null.
+     * @see #getResourceUsage
+     * @hide
+     */
+    @SystemApi
+    public void setResourceUsageSamplingPeriod(@Nullable Duration period) {
+        if (period != null && period.compareTo(MIN_RESOURCE_USAGE_SAMPLING_PERIOD) < 0) {
+            throw new IllegalArgumentException("Sampling period must be at least one second");
+        }
+        synchronized (mLock) {
+            cancelResourceUsageSampling();
+            if (mWasDeleted) {
+                return;
+            }
+            mResourceUsageSamplingPeriod = period;
+            if (mVirtualMachine != null) {
+                startResourceUsageSampling();
+            }
+        }
+    }
+
+    /** Starts sampling the resource usage of the VM, which has just been started, if requested. */
+    @GuardedBy("mLock")
+    private void startResourceUsageSampling() {
+        if (mResourceUsageSamplingPeriod == null) {
+            return;
+        }
+        long periodMillis = mResourceUsageSamplingPeriod.toMillis();
+        ResourceUsageSampler sampler = new ResourceUsageSampler(this);
+        mResourceUsageSampling =
+                sResourceUsageExecutor.scheduleAtFixedRate(
+                        sampler, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        sampler.mTask = mResourceUsageSampling;
+    }
+
+    @GuardedBy("mLock")
+    private void cancelResourceUsageSampling() {
+        if (mResourceUsageSampling != null) {
+            mResourceUsageSampling.cancel(false);
+            mResourceUsageSampling = null;
+        }
+    }
+
+    /**
+     * Periodic task delivering the resource usage of a VM. It only holds a weak reference to the
+     * VM, so that the static executor doesn't keep a VM the app has dropped alive, and cancels
+     * itself once the VM has been collected.
+     */
+    private static class ResourceUsageSampler implements Runnable {
+        private final WeakReference<VirtualMachine> mVm;
+
+        /** The task running this; only null until scheduleAtFixedRate returns. */
+        @Nullable volatile ScheduledFuture<?> mTask;
+
+        ResourceUsageSampler(VirtualMachine vm) {
+            mVm = new WeakReference<>(vm);
+        }
+
+        @Override
+        public void run() {
+            VirtualMachine vm = mVm.get();
+            if (vm == null) {
+                ScheduledFuture<?> task = mTask;
+                if (task != null) {
+                    task.cancel(false);
+                }
+                return;
+            }
+            vm.sampleResourceUsage();
+        }
+    }
+
+    private void sampleResourceUsage() {
+        final IVirtualMachine vm;
+        synchronized (mLock) {
+            vm = mVirtualMachine;
+        }
+        if (vm == null) {
+            return;
+        }
+        final ResourceUsage usage;
+        try {
+            usage = new ResourceUsage(vm.getResourceUsage());
+        } catch (RemoteException | ServiceSpecificException e) {
+            // The VM has most likely stopped, in which case the task is about to be cancelled.
+            return;
+        }
+        executeCallback((cb) -> cb.onResourceUsage(VirtualMachine.this, usage));
+    }
+
+    /**
+     * Saves a snapshot of this running virtual machine, including the memory and device state of
+     * the guest, and then stops it. The virtual machine can later be resumed from the snapshot by
+     * calling {@link #runFromSnapshot}, which is much faster than booting it with {@link #run}.
+     *
+     * <p>The snapshot is only consistent with the virtual machine's storage as it is now. It is
+     * therefore discarded if the virtual machine is run again in any way, or its config is
+     * changed.
+     *
+     * <p>If the snapshot can't be saved, the virtual machine is left running, or paused if it was
+     * paused. The virtual machine restored from a snapshot keeps its vsock CID, which stays
+     * reserved for it until then. The snapshot can therefore only be restored while the process
+     * that took it is still running.
+     *
+     * <p>Snapshots are not supported for protected virtual machines.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the virtual machine is not running, is a protected
+     *     virtual machine, or the snapshot could not be saved.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    public void snapshot() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            if (mConfig.isProtectedVm()) {
+                throw new VirtualMachineException("Snapshots are not supported for protected VMs");
+            }
+            // Write to a temporary file, so that a failure can't leave a partial snapshot.
+            File tmp = new File(mVmRootPath, SNAPSHOT_FILE + ".tmp");
+            try (ParcelFileDescriptor snapshotFd =
+                    ParcelFileDescriptor.open(
+                            tmp,
+                            MODE_READ_WRITE
+                                    | ParcelFileDescriptor.MODE_CREATE
+                                    | ParcelFileDescriptor.MODE_TRUNCATE)) {
+                mVirtualMachine.snapshot(snapshotFd);
+                dropVm();
+            } catch (IOException e) {
+                tmp.delete();
+                throw new VirtualMachineException("Failed to write snapshot", e);
+            } catch (RemoteException e) {
+                tmp.delete();
+                throw e.rethrowAsRuntimeException();
+            } catch (ServiceSpecificException e) {
+                tmp.delete();
+                throw new VirtualMachineException(e);
+            }
+            if (!tmp.renameTo(mSnapshotFilePath)) {
+                tmp.delete();
+                throw new VirtualMachineException("Failed to save snapshot");
+            }
+        }
+    }
+
+    /**
+     * Returns whether this virtual machine has a snapshot that it can be {@linkplain
+     * #runFromSnapshot run from}.
+     *
+     * @hide
+     */
+    @SystemApi
+    public boolean hasSnapshot() {
+        return mSnapshotFilePath.exists();
+    }
+
     /**
      * Stops this virtual machine, if it is running.
      *
@@ -969,7 +2431,7 @@ public class VirtualMachine implements AutoCloseable {
                 return;
             }
             try {
-                if (stateToStatus(mVirtualMachine.getState()) == STATUS_RUNNING) {
+                if (stateToStatus(mVirtualMachine.getState()) != STATUS_STOPPED) {
                     mVirtualMachine.stop();
                     dropVm();
                 }
@@ -1037,13 +2499,319 @@ public class VirtualMachine implements AutoCloseable {
                 mConfigFilePath.delete();
                 newConfig.serialize(mConfigFilePath);
                 mConfig = newConfig;
+                // A snapshot is only valid for the config it was taken with.
+                mSnapshotFilePath.delete();
             }
             return oldConfig;
         }
     }
 
+    /**
+     * Grows the encrypted storage of this virtual machine to the given size, preserving its
+     * contents. The added space is not allocated on the host until the VM writes to it. The
+     * filesystem in the VM is extended to fill the storage the next time the VM is run.
+     *
+     * <p>The config of this virtual machine is updated with the new size, as if by {@link
+     * #setConfig}, so it is also reflected in any {@link VirtualMachineDescriptor} created
+     * afterwards.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @param newBytes the new size of the encrypted storage, in bytes
+     * @throws IllegalArgumentException if encrypted storage is not enabled for this virtual
+     *     machine, or {@code newBytes} is less than its current size.
+     * @throws VirtualMachineException if the virtual machine is not stopped, or the storage could
+     *     not be resized.
+     * @see VirtualMachineConfig.Builder#setEncryptedStorageBytes
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    public void resizeEncryptedStorage(@IntRange(from = 1) long newBytes)
+            throws VirtualMachineException {
+        synchronized (mLock) {
+            checkStopped();
+            VirtualMachineConfig oldConfig = mConfig;
+            if (!oldConfig.isEncryptedStorageEnabled()) {
+                throw new IllegalArgumentException("Encrypted storage is not enabled");
+            }
+            long oldBytes = oldConfig.getEncryptedStorageBytes();
+            if (newBytes < oldBytes) {
+                throw new IllegalArgumentException(
+                        "Encrypted storage cannot shrink from " + oldBytes + " to " + newBytes);
+            }
+            if (newBytes == oldBytes) {
+                return;
+            }
+
+            rewriteEncryptedStore(newBytes);
+
+            VirtualMachineConfig newConfig = oldConfig.withEncryptedStorageBytes(newBytes);
+            mConfigFilePath.delete();
+            newConfig.serialize(mConfigFilePath);
+            mConfig = newConfig;
+            // A snapshot is only valid for the storage it was taken with.
+            mSnapshotFilePath.delete();
+        }
+    }
+
+    /**
+     * Compacts the encrypted storage of this virtual machine, so that the space it takes on the
+     * host is proportional to the data it holds. In a non-protected VM, space freed in the VM is
+     * released as the VM discards it, but this also reclaims space that was freed while discards
+     * could not be passed through, and space the image holds for its own bookkeeping. A protected
+     * VM doesn't pass discards through, as they would show the host which blocks are unused. This
+     * also reduces the amount of data copied when the virtual machine is {@linkplain #toDescriptor
+     * shared}.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @return the disk usage of the encrypted storage after compaction
+     * @throws VirtualMachineException if the virtual machine is not stopped, encrypted storage is
+     *     not enabled for it, or the storage could not be compacted.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public DiskUsage compactStorage() throws VirtualMachineException {
+        synchronized (mLock) {
+            checkStopped();
+            if (!mConfig.isEncryptedStorageEnabled()) {
+                throw new VirtualMachineException("Encrypted storage is not enabled");
+            }
+            // Copying the image at its current size skips unallocated and zeroed space.
+            rewriteEncryptedStore(mConfig.getEncryptedStorageBytes());
+            return DiskUsage.of(mEncryptedStoreFilePath);
+        }
+    }
+
+    /**
+     * Replaces the encrypted storage image with a copy of it of the given size, which omits
+     * unallocated space.
+     */
+    @GuardedBy("mLock")
+    private void rewriteEncryptedStore(long sizeBytes) throws VirtualMachineException {
+        invalidateStorageUsage(mVmRootPath);
+        try {
+            // Copy into a temporary file and rename it into place, so that the storage is left
+            // intact if we fail or crash part way through. This also ensures any
+            // VirtualMachineDescriptor that refers to the old file does not see the new one.
+            File tmp = File.createTempFile(ENCRYPTED_STORE_FILE, ".tmp", mVmRootPath);
+            try {
+                resizePartitionWithService(
+                        mVirtualizationService, mEncryptedStoreFilePath, tmp, sizeBytes);
+                Files.move(
+                        tmp.toPath(),
+                        mEncryptedStoreFilePath.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            throw new VirtualMachineException("failed to rewrite encrypted storage", e);
+        }
+    }
+
+    /**
+     * Returns the space taken on the host by the files of this virtual machine: its instance image,
+     * encrypted storage, APK signature files, snapshot and imported data disks. Sparse files are
+     * counted by the space actually allocated to them.
+     *
+     * <p>The result is cached while the virtual machine is stopped, so repeated calls are cheap.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the usage could not be determined.
+     * @see VirtualMachineManager#getStorageUsage
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public DiskUsage getStorageUsage() throws VirtualMachineException {
+        synchronized (mLock) {
+            if (getStatus() == STATUS_STOPPED) {
+                return getStorageUsage(mVmRootPath);
+            }
+            // The files of a running VM keep changing, so there is no point caching their usage.
+            invalidateStorageUsage(mVmRootPath);
+            return DiskUsage.of(getStorageFiles(mVmRootPath));
+        }
+    }
+
+    /**
+     * Returns the space taken by the files of the stopped VM in the given directory, from the
+     * cache if possible.
+     */
+    @NonNull
+    static DiskUsage getStorageUsage(@NonNull File vmDir) throws VirtualMachineException {
+        synchronized (sStorageUsageCache) {
+            DiskUsage usage = sStorageUsageCache.get(vmDir);
+            if (usage == null) {
+                usage = DiskUsage.of(getStorageFiles(vmDir));
+                sStorageUsageCache.put(vmDir, usage);
+            }
+            return usage;
+        }
+    }
+
+    @NonNull
+    static DiskUsage getStorageUsage(@NonNull Context context, @NonNull String name)
+            throws VirtualMachineException {
+        return getStorageUsage(getVmDir(context, name));
+    }
+
+    private static void invalidateStorageUsage(@NonNull File vmDir) {
+        synchronized (sStorageUsageCache) {
+            sStorageUsageCache.remove(vmDir);
+        }
+    }
+
+    /** Returns the files in the given VM directory that count towards its storage usage. */
+    @NonNull
+    private static List<File> getStorageFiles(@NonNull File vmDir) {
+        List<File> files = new ArrayList<>();
+        File[] children = vmDir.listFiles();
+        if (children == null) {
+            return files;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (name.equals(INSTANCE_IMAGE_FILE)
+                    || name.equals(ENCRYPTED_STORE_FILE)
+                    || name.equals(IDSIG_FILE)
+                    || name.equals(SNAPSHOT_FILE)
+                    || name.startsWith(EXTRA_IDSIG_FILE_PREFIX)
+                    || name.startsWith(DATA_DISK_FILE_PREFIX)) {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+
+    /** Returns the names of all the VMs of the given context. */
+    @NonNull
+    static List<String> getVmNames(@NonNull Context context) {
+        List<String> names = new ArrayList<>();
+        File[] vmDirs = new File(context.getDataDir(), VM_DIR).listFiles();
+        if (vmDirs == null) {
+            return names;
+        }
+        for (File vmDir : vmDirs) {
+            if (vmDir.isDirectory()) {
+                names.add(vmDir.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The space taken on the host by one or more files of a virtual machine.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final class DiskUsage {
+        private final long mAllocatedBytes;
+        private final long mLogicalBytes;
+
+        private DiskUsage(long allocatedBytes, long logicalBytes) {
+            mAllocatedBytes = allocatedBytes;
+            mLogicalBytes = logicalBytes;
+        }
+
+        @NonNull
+        static DiskUsage of(@NonNull File file) throws VirtualMachineException {
+            try {
+                StructStat stat = Os.stat(file.getPath());
+                // st_blocks is always in units of 512 bytes, whatever the block size.
+                return new DiskUsage(stat.st_blocks * 512, stat.st_size);
+            } catch (ErrnoException e) {
+                throw new VirtualMachineException("failed to stat " + file, e);
+            }
+        }
+
+        /** Returns the total usage of the given files, ignoring any which no longer exist. */
+        @NonNull
+        static DiskUsage of(@NonNull List<File> files) throws VirtualMachineException {
+            List<DiskUsage> usages = new ArrayList<>(files.size());
+            for (File file : files) {
+                try {
+                    usages.add(of(file));
+                } catch (VirtualMachineException e) {
+                    if (file.exists()) {
+                        throw e;
+                    }
+                }
+            }
+            return sum(usages);
+        }
+
+        @NonNull
+        static DiskUsage sum(@NonNull List<DiskUsage> usages) {
+            long allocatedBytes = 0;
+            long logicalBytes = 0;
+            for (DiskUsage usage : usages) {
+                allocatedBytes += usage.mAllocatedBytes;
+                logicalBytes += usage.mLogicalBytes;
+            }
+            return new DiskUsage(allocatedBytes, logicalBytes);
+        }
+
+        /**
+         * Returns the number of bytes actually allocated on the host. This excludes holes in
+         * sparse files, so it may be much less than the {@linkplain #getLogicalBytes logical
+         * size}.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getAllocatedBytes() {
+            return mAllocatedBytes;
+        }
+
+        /**
+         * Returns the logical size in bytes, that is the apparent length of the files.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getLogicalBytes() {
+            return mLogicalBytes;
+        }
+    }
+
+    private static void resizePartitionWithService(
+            @NonNull VirtualizationService service,
+            @NonNull File source,
+            @NonNull File target,
+            long sizeBytes)
+            throws VirtualMachineException {
+        try {
+            service.getBinder()
+                    .resizeWritablePartition(
+                            ParcelFileDescriptor.open(source, MODE_READ_ONLY),
+                            ParcelFileDescriptor.open(target, MODE_READ_WRITE),
+                            sizeBytes);
+        } catch (FileNotFoundException e) {
+            throw new VirtualMachineException("partition image missing", e);
+        } catch (RemoteException e) {
+            throw e.rethrowAsRuntimeException();
+        } catch (ServiceSpecificException | IllegalArgumentException e) {
+            throw new VirtualMachineException("failed to resize partition", e);
+        }
+    }
+
+    /**
+     * Connects to a binder service of the VM over vsock, and returns its root object, or null if
+     * that fails. If {@code connections} is given, a duplicate of each socket of the new session is
+     * added to it, so that the caller can shut the session down; the caller must close them.
+     */
     @Nullable
-    private static native IBinder nativeConnectToVsockServer(IBinder vmBinder, int port);
+    private static native IBinder nativeConnectToVsockServer(
+            IBinder vmBinder, int port, @Nullable List<ParcelFileDescriptor> connections);
 
     /**
      * Connect to a VM's binder service via vsock and return the root IBinder object. Guest VMs are
@@ -1066,7 +2834,8 @@ public class VirtualMachine implements AutoCloseable {
 
         synchronized (mLock) {
             IBinder iBinder =
-                    nativeConnectToVsockServer(getRunningVm().asBinder(), validatePort(port));
+                    nativeConnectToVsockServer(
+                            getRunningVm().asBinder(), validatePort(port), null);
             if (iBinder == null) {
                 throw new VirtualMachineException("Failed to connect to vsock server");
             }
@@ -1074,6 +2843,148 @@ public class VirtualMachine implements AutoCloseable {
         }
     }
 
+    /**
+     * Asynchronously connects to a VM's binder service via vsock, as {@link #connectToVsockServer}
+     * does, once the VM is ready for it. The returned future waits for {@link
+     * VirtualMachineCallback#onPayloadReady} (unless the payload is ready already), and then tries
+     * to connect, retrying with exponential backoff while the server in the VM is not yet
+     * listening.
+     *
+     * <p>The future completes with the root IBinder object of the server. It completes
+     * exceptionally with a {@link TimeoutException} if no connection was made within the given
+     * timeout, or with a {@link VirtualMachineException} if the VM stops first. Cancelling it
+     * stops any further attempts.
+     *
+     * @param port the vsock port of the server in the VM
+     * @param timeout how long to wait for the payload to be ready and the connection to be made
+     * @throws VirtualMachineException if the virtual machine is not running.
+     * @hide
+     */
+    @SystemApi
+    @NonNull
+    public CompletableFuture<IBinder> connectToVsockServerAsync(
+            @IntRange(from = MIN_VSOCK_PORT, to = MAX_VSOCK_PORT) long port,
+            @NonNull Duration timeout)
+            throws VirtualMachineException {
+        int vsockPort = validatePort(port);
+        requireNonNull(timeout, "timeout must not be null");
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+
+        IVirtualMachine vm;
+        CallbackTranslator callbackTranslator;
+        boolean payloadReady;
+        synchronized (mLock) {
+            if (mVirtualMachine == null) {
+                throw new VirtualMachineException("VM is not running");
+            }
+            vm = mVirtualMachine;
+            callbackTranslator = mCallbackTranslator;
+            try {
+                // A VM restored from a snapshot may be ready without onPayloadReady being called.
+                payloadReady = vm.getState() == VirtualMachineState.READY;
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            }
+        }
+
+        CompletableFuture<IBinder> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeoutTask =
+                sVsockConnectScheduler.schedule(
+                        () ->
+                                result.completeExceptionally(
+                                        new TimeoutException(
+                                                "Timed out connecting to vsock server on port "
+                                                        + port)),
+                        timeout.toNanos(),
+                        TimeUnit.NANOSECONDS);
+        result.whenComplete((binder, e) -> timeoutTask.cancel(false));
+
+        CompletableFuture<Void> ready =
+                payloadReady
+                        ? CompletableFuture.completedFuture(null)
+                        : callbackTranslator.getPayloadReady();
+        ready.whenCompleteAsync(
+                (ignored, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else {
+                        connectWithBackoff(
+                                vm,
+                                callbackTranslator,
+                                vsockPort,
+                                result,
+                                VSOCK_CONNECT_INITIAL_RETRY_DELAY);
+                    }
+                },
+                sVsockConnectExecutor);
+        return result;
+    }
+
+    /** Makes one attempt to connect for {@link #connectToVsockServerAsync}, and schedules more. */
+    private static void connectWithBackoff(
+            @NonNull IVirtualMachine vm,
+            @NonNull CallbackTranslator callbackTranslator,
+            int port,
+            @NonNull CompletableFuture<IBinder> result,
+            @NonNull Duration retryDelay) {
+        if (result.isDone()) {
+            // Timed out or cancelled.
+            return;
+        }
+        if (callbackTranslator.hasStopped()) {
+            result.completeExceptionally(
+                    new VirtualMachineException("VM stopped before connecting to vsock server"));
+            return;
+        }
+        List<ParcelFileDescriptor> connections = new ArrayList<>();
+        IBinder iBinder = nativeConnectToVsockServer(vm.asBinder(), port, connections);
+        // If the attempt outlasted the timeout or a cancellation, nobody will use the binder, so
+        // its session is shut down now rather than when the binder is garbage collected.
+        boolean unused = iBinder != null && !result.complete(iBinder);
+        closeConnections(connections, unused);
+        if (iBinder != null) {
+            return;
+        }
+        Duration nextDelay = retryDelay.multipliedBy(2);
+        if (nextDelay.compareTo(VSOCK_CONNECT_MAX_RETRY_DELAY) > 0) {
+            nextDelay = VSOCK_CONNECT_MAX_RETRY_DELAY;
+        }
+        Duration delay = nextDelay;
+        sVsockConnectScheduler.schedule(
+                () ->
+                        sVsockConnectExecutor.execute(
+                                () ->
+                                        connectWithBackoff(
+                                                vm, callbackTranslator, port, result, delay)),
+                retryDelay.toNanos(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes duplicates of the sockets of a binder session, returned by {@link
+     * #nativeConnectToVsockServer}. If {@code shutdown} is set, the sockets are shut down first,
+     * which ends the session.
+     */
+    private static void closeConnections(
+            @NonNull List<ParcelFileDescriptor> connections, boolean shutdown) {
+        for (ParcelFileDescriptor connection : connections) {
+            if (shutdown) {
+                try {
+                    Os.shutdown(connection.getFileDescriptor(), OsConstants.SHUT_RDWR);
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Failed to shut down an unused vsock connection", e);
+                }
+            }
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close a vsock connection", e);
+            }
+        }
+    }
+
     /**
      * Opens a vsock connection to the VM on the given port.
      *
@@ -1101,6 +3012,179 @@ public class VirtualMachine implements AutoCloseable {
         }
     }
 
+    /**
+     * The outcome of sending a file to a virtual machine with {@link #sendFile}.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final class TransferResult {
+        private final long mBytesTransferred;
+        @NonNull private final Duration mDuration;
+
+        private TransferResult(long bytesTransferred, @NonNull Duration duration) {
+            mBytesTransferred = bytesTransferred;
+            mDuration = duration;
+        }
+
+        /**
+         * Returns the number of bytes sent.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getBytesTransferred() {
+            return mBytesTransferred;
+        }
+
+        /**
+         * Returns how long the transfer took.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Duration getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * Returns the measured throughput of the transfer, in bytes per second.
+         *
+         * @hide
+         */
+        @SystemApi
+        public double getBytesPerSecond() {
+            long nanos = Math.max(mDuration.toNanos(), 1);
+            return mBytesTransferred * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * Sends the contents of {@code source}, from its current position to its end, to the VM over
+     * a new vsock connection on the given port, which is closed afterwards. Regular files are sent
+     * with {@code sendfile(2)}, so the data is not copied through user space.
+     *
+     * <p>The caller remains responsible for closing {@code source}.
+     *
+     * <p>NOTE: This method blocks until the whole file has been sent and should not be called on
+     * the main thread.
+     *
+     * @throws VirtualMachineException if connecting fails.
+     * @throws IOException if reading the file or writing to the connection fails.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public TransferResult sendFile(
+            @NonNull ParcelFileDescriptor source,
+            @IntRange(from = MIN_VSOCK_PORT, to = MAX_VSOCK_PORT) long port)
+            throws VirtualMachineException, IOException {
+        return sendFile(source, port, DEFAULT_SEND_CHUNK_SIZE, null, null);
+    }
+
+    /**
+     * Sends the contents of {@code source} to the VM, like {@link #sendFile(ParcelFileDescriptor,
+     * long)}, in chunks of {@code chunkSizeBytes}. After each chunk, the total number of bytes
+     * sent so far is reported to {@code progressListener}, if given. Larger chunks mean fewer
+     * system calls and progress reports; smaller ones let the guest start consuming the data
+     * sooner.
+     *
+     * <p>NOTE: This method blocks until the whole file has been sent and should not be called on
+     * the main thread.
+     *
+     * @throws VirtualMachineException if connecting fails.
+     * @throws IOException if reading the file or writing to the connection fails.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public TransferResult sendFile(
+            @NonNull ParcelFileDescriptor source,
+            @IntRange(from = MIN_VSOCK_PORT, to = MAX_VSOCK_PORT) long port,
+            @IntRange(from = 1) int chunkSizeBytes,
+            @Nullable @CallbackExecutor Executor executor,
+            @Nullable LongConsumer progressListener)
+            throws VirtualMachineException, IOException {
+        requireNonNull(source, "source must not be null");
+        if (chunkSizeBytes <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        if ((executor == null) != (progressListener == null)) {
+            throw new IllegalArgumentException(
+                    "executor and progressListener must be both set or both null");
+        }
+        try (ParcelFileDescriptor socket = connectVsock(port)) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            long total = 0;
+            // Set once the source turns out not to support sendfile(2), and reused for every
+            // remaining chunk.
+            byte[] buffer = null;
+            while (true) {
+                long sent;
+                if (buffer == null) {
+                    sent = nativeSendFile(source.getFd(), socket.getFd(), chunkSizeBytes);
+                    if (sent < 0) {
+                        buffer = new byte[Math.min(chunkSizeBytes, DEFAULT_SEND_CHUNK_SIZE)];
+                        continue;
+                    }
+                } else {
+                    sent =
+                            copyThroughBuffer(
+                                    source.getFileDescriptor(),
+                                    socket.getFileDescriptor(),
+                                    buffer,
+                                    chunkSizeBytes);
+                }
+                if (sent == 0) {
+                    break;
+                }
+                total += sent;
+                if (progressListener != null) {
+                    final long progress = total;
+                    executor.execute(() -> progressListener.accept(progress));
+                }
+            }
+            Duration duration = Duration.ofNanos(SystemClock.elapsedRealtimeNanos() - start);
+            return new TransferResult(total, duration);
+        }
+    }
+
+    /**
+     * Sends up to {@code count} bytes from the current position of {@code srcFd} to {@code
+     * dstFd}, and returns the number of bytes sent, which is 0 at the end of the source. Returns -1
+     * without sending anything if {@code sendfile(2)} can't read from the source, e.g. a pipe.
+     */
+    private static native long nativeSendFile(int srcFd, int dstFd, long count)
+            throws IOException;
+
+    /**
+     * Copies up to {@code count} bytes from {@code src} to {@code dst} through {@code buffer}, and
+     * returns the number of bytes copied, which is 0 at the end of the source.
+     */
+    private static long copyThroughBuffer(
+            @NonNull FileDescriptor src, @NonNull FileDescriptor dst, byte[] buffer, long count)
+            throws IOException {
+        long copied = 0;
+        try {
+            while (copied < count) {
+                int n = Os.read(src, buffer, 0, (int) Math.min(buffer.length, count - copied));
+                if (n == 0) {
+                    break;
+                }
+                for (int written = 0; written < n; ) {
+                    written += Os.write(dst, buffer, written, n - written);
+                }
+                copied += n;
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        return copied;
+    }
+
     private int validatePort(long port) {
         // Ports below 1024 are "privileged" (payload code can't bind to these), and port numbers
         // are 32-bit unsigned numbers at the OS level, even though we pass them as 32-bit signed
@@ -1145,12 +3229,17 @@ public class VirtualMachine implements AutoCloseable {
         synchronized (mLock) {
             checkStopped();
             try {
+                List<ParcelFileDescriptor> dataDiskFds = new ArrayList<>();
+                for (VirtualMachineConfig.DataDisk dataDisk : mConfig.getDataDisks()) {
+                    dataDiskFds.add(ParcelFileDescriptor.open(dataDisk.getImage(), MODE_READ_ONLY));
+                }
                 return new VirtualMachineDescriptor(
                         ParcelFileDescriptor.open(mConfigFilePath, MODE_READ_ONLY),
                         ParcelFileDescriptor.open(mInstanceFilePath, MODE_READ_ONLY),
                         mEncryptedStoreFilePath != null
                                 ? ParcelFileDescriptor.open(mEncryptedStoreFilePath, MODE_READ_ONLY)
-                                : null);
+                                : null,
+                        dataDiskFds);
             } catch (IOException e) {
                 throw new VirtualMachineException(e);
             }
@@ -1278,6 +3367,15 @@ public class VirtualMachine implements AutoCloseable {
         // The VM should only be observed to die once
         private final AtomicBoolean mOnDiedCalled = new AtomicBoolean(false);
 
+        // Whether mDeathRecipient is still linked to the service
+        private final AtomicBoolean mLinkedToService = new AtomicBoolean(true);
+
+        // Released once the VM has died
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+
+        // Completed once the payload is ready, or exceptionally if the VM dies first
+        private final CompletableFuture<Void> mPayloadReady = new CompletableFuture<>();
+
         public CallbackTranslator(IVirtualizationService service) throws RemoteException {
             this.mService = service;
             this.mDeathRecipient = () -> reportStopped(STOP_REASON_VIRTUALIZATION_SERVICE_DIED);
@@ -1291,6 +3389,7 @@ public class VirtualMachine implements AutoCloseable {
 
         @Override
         public void onPayloadReady(int cid) {
+            mPayloadReady.complete(null);
             executeCallback((cb) -> cb.onPayloadReady(VirtualMachine.this));
         }
 
@@ -1309,15 +3408,42 @@ public class VirtualMachine implements AutoCloseable {
         public void onDied(int cid, int reason) {
             int translatedReason = getTranslatedReason(reason);
             reportStopped(translatedReason);
-            mService.asBinder().unlinkToDeath(mDeathRecipient, 0);
+            unlinkFromService();
+        }
+
+        /**
+         * Stops watching for the death of the service, once the VM is no longer of interest. This
+         * may be called more than once.
+         */
+        void unlinkFromService() {
+            if (mLinkedToService.compareAndSet(true, false)) {
+                mService.asBinder().unlinkToDeath(mDeathRecipient, 0);
+            }
         }
 
         private void reportStopped(@VirtualMachineCallback.StopReason int reason) {
             if (mOnDiedCalled.compareAndSet(false, true)) {
+                mStopped.countDown();
+                mPayloadReady.completeExceptionally(
+                        new VirtualMachineException("VM stopped before its payload was ready"));
                 executeCallback((cb) -> cb.onStopped(VirtualMachine.this, reason));
             }
         }
 
+        @NonNull
+        CompletableFuture<Void> getPayloadReady() {
+            return mPayloadReady;
+        }
+
+        boolean hasStopped() {
+            return mStopped.getCount() == 0;
+        }
+
+        /** Waits for the VM to die, returning whether it did so within the timeout. */
+        boolean awaitStopped(@NonNull Duration timeout) throws InterruptedException {
+            return mStopped.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+
         @VirtualMachineCallback.ErrorCode
         private int getTranslatedError(int reason) {
             switch (reason) {
@@ -154,4 +154,17 @@ public interface VirtualMachineCallback {
 
     /** Called when the VM has stopped. */
     void onStopped(@NonNull VirtualMachine vm, @StopReason int reason);
+
+    /** Called when the VM has been paused by {@link VirtualMachine#pause}. */
+    default void onPaused(@NonNull VirtualMachine vm) {}
+
+    /** Called when the VM has been resumed by {@link VirtualMachine#resume}. */
+    default void onResumed(@NonNull VirtualMachine vm) {}
+
+    /**
+     * Called periodically with the resource usage of the VM while it is running, once sampling has
+     * been enabled with {@link VirtualMachine#setResourceUsageSamplingPeriod}.
+     */
+    default void onResourceUsage(
+            @NonNull VirtualMachine vm, @NonNull VirtualMachine.ResourceUsage usage) {}
 }
@@ -18,6 +18,7 @@ package android.system.virtualmachine;
 
 import static android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import static android.os.ParcelFileDescriptor.MODE_READ_ONLY;
+import static android.os.ParcelFileDescriptor.MODE_READ_WRITE;
 
 import static java.util.Objects.requireNonNull;
 
@@ -30,15 +31,21 @@ import android.annotation.SystemApi;
 import android.annotation.TestApi;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
 import android.sysprop.HypervisorProperties;
+import android.system.virtualizationservice.DiskImage;
+import android.system.virtualizationservice.Partition;
 import android.system.virtualizationservice.VirtualMachineAppConfig;
 import android.system.virtualizationservice.VirtualMachinePayloadConfig;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -48,6 +55,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.zip.ZipFile;
 
@@ -63,8 +80,37 @@ public final class VirtualMachineConfig {
     private static final String TAG = "VirtualMachineConfig";
     private static final String[] EMPTY_STRING_ARRAY = {};
 
+    /** Maximum number of entries kept in {@link #sPayloadApkCache}. */
+    private static final int PAYLOAD_APK_CACHE_SIZE = 32;
+
+    /**
+     * Cache of the APK that {@link #findPayloadApk} resolved for a given payload. Finding it means
+     * opening every split APK of the package, so we only want to do that once per installed
+     * version of the package. The key includes everything that changes when the package is
+     * updated, so entries for an old version are never returned; they just age out.
+     */
+    private static final LruCache<PayloadApkKey, String> sPayloadApkCache =
+            new LruCache<>(PAYLOAD_APK_CACHE_SIZE);
+
     // These define the schema of the config file persisted on disk.
-    private static final int VERSION = 6;
+    private static final int VERSION = 7;
+
+    // The config is persisted in a compact binary encoding; see serializeOutputStream. Versions up
+    // to 6 were persisted as PersistableBundle XML using the KEY_* names below, which we can still
+    // read so that existing VMs migrate transparently.
+    private static final int BINARY_MAGIC = 0x41564d43; // "AVMC"
+    private static final int FIRST_BINARY_VERSION = 7;
+    /** Upper bound on the size of a persisted config; anything larger is certainly corrupt. */
+    private static final int MAX_BINARY_SIZE = 64 * 1024;
+    private static final int FLAG_PROTECTED_VM = 1 << 0;
+    private static final int FLAG_VM_OUTPUT_CAPTURED = 1 << 1;
+    // Indices of the entries in the string table of the binary format.
+    private static final int STRING_PACKAGE_NAME = 0;
+    private static final int STRING_APK_PATH = 1;
+    private static final int STRING_PAYLOAD_CONFIG_PATH = 2;
+    private static final int STRING_PAYLOAD_BINARY_NAME = 3;
+    private static final int STRING_TABLE_SIZE = 4;
+
     private static final String KEY_VERSION = "version";
     private static final String KEY_PACKAGENAME = "packageName";
     private static final String KEY_APKPATH = "apkPath";
@@ -128,6 +174,120 @@ public final class VirtualMachineConfig {
      */
     @SystemApi public static final int CPU_TOPOLOGY_MATCH_HOST = 1;
 
+    /** @hide */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(
+            prefix = "CPU_CLUSTER_",
+            value = {
+                CPU_CLUSTER_ANY,
+                CPU_CLUSTER_LITTLE,
+                CPU_CLUSTER_BIG,
+            })
+    public @interface CpuCluster {}
+
+    /**
+     * Let the vCPUs run on any host CPU. This is the default option.
+     *
+     * @hide
+     */
+    @SystemApi public static final int CPU_CLUSTER_ANY = 0;
+
+    /**
+     * Run the vCPUs on the host CPUs with the lowest capacity, which are usually the most power
+     * efficient. Suits background workloads. On a host whose CPUs are all the same this is the
+     * same as {@link #CPU_CLUSTER_ANY}.
+     *
+     * @hide
+     */
+    @SystemApi public static final int CPU_CLUSTER_LITTLE = 1;
+
+    /**
+     * Run the vCPUs on the host CPUs with the highest capacity. Suits latency sensitive workloads.
+     * On a host whose CPUs are all the same this is the same as {@link #CPU_CLUSTER_ANY}.
+     *
+     * @hide
+     */
+    @SystemApi public static final int CPU_CLUSTER_BIG = 2;
+
+    /** @hide */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(
+            prefix = "QOS_CLASS_",
+            value = {
+                QOS_CLASS_DEFAULT,
+                QOS_CLASS_LATENCY_SENSITIVE,
+                QOS_CLASS_THROUGHPUT,
+                QOS_CLASS_BACKGROUND,
+            })
+    public @interface QosClass {}
+
+    /**
+     * Schedule the VM like the rest of the process that runs it, on whatever CPUs that process may
+     * use. This is the default option.
+     *
+     * @hide
+     */
+    @SystemApi public static final int QOS_CLASS_DEFAULT = 0;
+
+    /**
+     * Schedule the VM like the top app, with access to all the CPUs. Suits interactive workloads
+     * whose latency the user notices.
+     *
+     * @hide
+     */
+    @SystemApi public static final int QOS_CLASS_LATENCY_SENSITIVE = 1;
+
+    /**
+     * Schedule the VM like a foreground compute task. Suits long-running workloads whose total
+     * throughput matters more than their latency.
+     *
+     * @hide
+     */
+    @SystemApi public static final int QOS_CLASS_THROUGHPUT = 2;
+
+    /**
+     * Schedule the VM like a background task, restricted to the CPUs reserved for background work.
+     * Suits workloads that should not compete with the foreground.
+     *
+     * @hide
+     */
+    @SystemApi public static final int QOS_CLASS_BACKGROUND = 3;
+
+    /** @hide */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(
+            prefix = "IO_PRIORITY_",
+            value = {
+                IO_PRIORITY_DEFAULT,
+                IO_PRIORITY_LOW,
+                IO_PRIORITY_HIGH,
+            })
+    public @interface IoPriority {}
+
+    /**
+     * Give the VM's disk I/O the same share of the host's storage bandwidth as the rest of the
+     * process that runs it. This is the default option.
+     *
+     * @hide
+     */
+    @SystemApi public static final int IO_PRIORITY_DEFAULT = 0;
+
+    /**
+     * Give the VM's disk I/O a smaller share of the host's storage bandwidth when it is contended.
+     * Suits batch workloads that should not slow down the storage access of other work.
+     *
+     * @hide
+     */
+    @SystemApi public static final int IO_PRIORITY_LOW = 1;
+
+    /**
+     * Give the VM's disk I/O a larger share of the host's storage bandwidth when it is contended.
+     * Suits workloads whose latency depends on their disk access.
+     *
+     * @hide
+     */
+    @SystemApi public static final int IO_PRIORITY_HIGH = 2;
+
     /** Name of a package whose primary APK contains the VM payload. */
     @Nullable private final String mPackageName;
 
@@ -150,6 +310,21 @@ public final class VirtualMachineConfig {
     /** CPU topology configuration of the VM. */
     @CpuTopology private final int mCpuTopology;
 
+    /** The number of vCPUs, overriding the topology, or 0 if the topology decides. */
+    private final int mCpuCount;
+
+    /** The host CPUs the vCPUs may run on, with bit N for CPU N, or 0 if the cluster decides. */
+    private final long mCpuAffinityMask;
+
+    /** The cluster of host CPUs the vCPUs run on, unless there is an affinity mask. */
+    @CpuCluster private final int mCpuCluster;
+
+    /** How the host schedules the VM. */
+    @QosClass private final int mQosClass;
+
+    /** The share of the host's storage bandwidth the VM gets when it is contended. */
+    @IoPriority private final int mIoPriority;
+
     /**
      * Path within the APK to the payload config file that defines software aspects of the VM.
      */
@@ -164,6 +339,9 @@ public final class VirtualMachineConfig {
     /** Whether the app can read console and log output. */
     private final boolean mVmOutputCaptured;
 
+    /** Disk images provided by the app, in the order they are attached to the VM. */
+    @NonNull private final List<DataDisk> mDataDisks;
+
     private VirtualMachineConfig(
             @Nullable String packageName,
             @Nullable String apkPath,
@@ -173,8 +351,14 @@ public final class VirtualMachineConfig {
             boolean protectedVm,
             long memoryBytes,
             @CpuTopology int cpuTopology,
+            int cpuCount,
+            long cpuAffinityMask,
+            @CpuCluster int cpuCluster,
+            @QosClass int qosClass,
+            @IoPriority int ioPriority,
             long encryptedStorageBytes,
-            boolean vmOutputCaptured) {
+            boolean vmOutputCaptured,
+            @NonNull List<DataDisk> dataDisks) {
         // This is only called from Builder.build(); the builder handles parameter validation.
         mPackageName = packageName;
         mApkPath = apkPath;
@@ -184,18 +368,34 @@ public final class VirtualMachineConfig {
         mProtectedVm = protectedVm;
         mMemoryBytes = memoryBytes;
         mCpuTopology = cpuTopology;
+        mCpuCount = cpuCount;
+        mCpuAffinityMask = cpuAffinityMask;
+        mCpuCluster = cpuCluster;
+        mQosClass = qosClass;
+        mIoPriority = ioPriority;
         mEncryptedStorageBytes = encryptedStorageBytes;
         mVmOutputCaptured = vmOutputCaptured;
+        mDataDisks = dataDisks;
     }
 
-    /** Loads a config from a file. */
+    /**
+     * Loads a config from a file. A config persisted in the legacy XML format is rewritten in the
+     * current format, so that it is cheaper to load the next time.
+     */
     @NonNull
     static VirtualMachineConfig from(@NonNull File file) throws VirtualMachineException {
+        VirtualMachineConfig config;
+        boolean legacy;
         try (FileInputStream input = new FileInputStream(file)) {
-            return fromInputStream(input);
+            legacy = !isBinaryFormat(input.getChannel());
+            config = fromFileInputStream(input);
         } catch (IOException e) {
             throw new VirtualMachineException("Failed to read VM config from file", e);
         }
+        if (legacy) {
+            migrate(config, file);
+        }
+        return config;
     }
 
     /** Loads a config from a {@link ParcelFileDescriptor}. */
@@ -203,13 +403,48 @@ public final class VirtualMachineConfig {
     static VirtualMachineConfig from(@NonNull ParcelFileDescriptor fd)
             throws VirtualMachineException {
         try (AutoCloseInputStream input = new AutoCloseInputStream(fd)) {
-            return fromInputStream(input);
+            return fromFileInputStream(input);
         } catch (IOException e) {
             throw new VirtualMachineException("failed to read VM config from file descriptor", e);
         }
     }
 
-    /** Loads a config from a stream, for example a file. */
+    /** Loads a config from a file, in either the binary or the legacy XML format. */
+    @NonNull
+    private static VirtualMachineConfig fromFileInputStream(@NonNull FileInputStream input)
+            throws IOException, VirtualMachineException {
+        FileChannel channel = input.getChannel();
+        if (!isBinaryFormat(channel)) {
+            return fromInputStream(input);
+        }
+        long size = channel.size();
+        if (size > MAX_BINARY_SIZE) {
+            throw new VirtualMachineException("Persisted VM config is too large: " + size);
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        try {
+            return fromByteBuffer(buffer);
+        } catch (BufferUnderflowException
+                | NullPointerException
+                | IllegalArgumentException
+                | IllegalStateException e) {
+            throw new VirtualMachineException("Persisted VM config is invalid", e);
+        }
+    }
+
+    /** Returns whether the file starts with the magic number of the binary format. */
+    private static boolean isBinaryFormat(@NonNull FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        // Positional read, so that the legacy reader still sees the file from the start.
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, magic.position()) < 0) {
+                return false;
+            }
+        }
+        return magic.getInt(0) == BINARY_MAGIC;
+    }
+
+    /** Loads a legacy XML config from a stream, for example a file. */
     @NonNull
     private static VirtualMachineConfig fromInputStream(@NonNull InputStream input)
             throws IOException, VirtualMachineException {
@@ -224,9 +459,8 @@ public final class VirtualMachineConfig {
     @NonNull
     private static VirtualMachineConfig fromPersistableBundle(PersistableBundle b) {
         int version = b.getInt(KEY_VERSION);
-        if (version > VERSION) {
-            throw new IllegalArgumentException(
-                    "Version " + version + " too high; current is " + VERSION);
+        if (version >= FIRST_BINARY_VERSION) {
+            throw new IllegalArgumentException("Version " + version + " must not be XML");
         }
 
         String packageName = b.getString(KEY_PACKAGENAME);
@@ -264,6 +498,119 @@ public final class VirtualMachineConfig {
         return builder.build();
     }
 
+    /** Loads a config in the binary format; see {@link #serializeOutputStream}. */
+    @NonNull
+    private static VirtualMachineConfig fromByteBuffer(@NonNull ByteBuffer buffer) {
+        if (buffer.getInt() != BINARY_MAGIC) {
+            throw new IllegalArgumentException("Bad magic");
+        }
+        int version = buffer.getInt();
+        if (version < FIRST_BINARY_VERSION || version > VERSION) {
+            throw new IllegalArgumentException(
+                    "Version " + version + " not supported; current is " + VERSION);
+        }
+
+        @DebugLevel int debugLevel = buffer.getInt();
+        if (debugLevel != DEBUG_LEVEL_NONE && debugLevel != DEBUG_LEVEL_FULL) {
+            throw new IllegalArgumentException("Invalid debugLevel: " + debugLevel);
+        }
+        int flags = buffer.getInt();
+        long memoryBytes = buffer.getLong();
+        @CpuTopology int cpuTopology = buffer.getInt();
+        long encryptedStorageBytes = buffer.getLong();
+
+        int stringCount = buffer.getInt();
+        // Every entry takes at least its length, which also bounds the allocation below.
+        if (stringCount < STRING_TABLE_SIZE || stringCount > buffer.remaining() / Integer.BYTES) {
+            throw new IllegalArgumentException("Truncated string table: " + stringCount);
+        }
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = readString(buffer);
+        }
+
+        Builder builder = new Builder(strings[STRING_PACKAGE_NAME]);
+        if (strings[STRING_APK_PATH] != null) {
+            builder.setApkPath(strings[STRING_APK_PATH]);
+        }
+        if (strings[STRING_PAYLOAD_CONFIG_PATH] == null) {
+            builder.setPayloadBinaryName(strings[STRING_PAYLOAD_BINARY_NAME]);
+        } else {
+            builder.setPayloadConfigPath(strings[STRING_PAYLOAD_CONFIG_PATH]);
+        }
+        builder.setDebugLevel(debugLevel);
+        builder.setProtectedVm((flags & FLAG_PROTECTED_VM) != 0);
+        if (memoryBytes != 0) {
+            builder.setMemoryBytes(memoryBytes);
+        }
+        builder.setCpuTopology(cpuTopology);
+        if (encryptedStorageBytes != 0) {
+            builder.setEncryptedStorageBytes(encryptedStorageBytes);
+        }
+        builder.setVmOutputCaptured((flags & FLAG_VM_OUTPUT_CAPTURED) != 0);
+
+        int cpuCount = buffer.getInt();
+        if (cpuCount != 0) {
+            builder.setCpuCount(cpuCount);
+        }
+        long cpuAffinityMask = buffer.getLong();
+        if (cpuAffinityMask != 0) {
+            builder.setCpuAffinityMask(cpuAffinityMask);
+        }
+        builder.setCpuCluster(buffer.getInt());
+        builder.setQosClass(buffer.getInt());
+        builder.setIoPriority(buffer.getInt());
+        int dataDiskCount = buffer.getInt();
+        // Every entry takes at least its length and flag, which bounds the loop below.
+        if (dataDiskCount < 0 || dataDiskCount > buffer.remaining() / (2 * Integer.BYTES)) {
+            throw new IllegalArgumentException("Truncated data disks: " + dataDiskCount);
+        }
+        for (int i = 0; i < dataDiskCount; i++) {
+            String path = readString(buffer);
+            if (path == null) {
+                throw new IllegalArgumentException("Data disk " + i + " has no path");
+            }
+            builder.addDataDisk(new File(path), buffer.getInt() != 0);
+        }
+
+        return builder.build();
+    }
+
+    @Nullable
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rewrites a config that was loaded from the legacy format in the current one. This is only an
+     * optimization, so failure is not an error.
+     */
+    private static void migrate(@NonNull VirtualMachineConfig config, @NonNull File file) {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            config.serialize(tmp);
+            // Replace rather than overwrite, so that any VirtualMachineDescriptor that has the old
+            // file open is unaffected.
+            Files.move(
+                    tmp.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (VirtualMachineException | IOException e) {
+            Log.w(TAG, "Failed to migrate VM config " + file, e);
+            tmp.delete();
+        }
+    }
+
     /** Persists this config to a file. */
     void serialize(@NonNull File file) throws VirtualMachineException {
         try (FileOutputStream output = new FileOutputStream(file)) {
@@ -273,29 +620,69 @@ public final class VirtualMachineConfig {
         }
     }
 
-    /** Persists this config to a stream, for example a file. */
+    /**
+     * Persists this config to a stream, for example a file.
+     *
+     * <p>The encoding is a sequence of big-endian integers: the magic number, version, debug level,
+     * flags, memory size, CPU topology and encrypted storage size; then a string table, which is a
+     * count and then that many strings; then the vCPU count, CPU affinity mask, CPU cluster, QoS
+     * class and I/O priority; and finally a count of data disks and then, for each, its path and
+     * whether it is read-only. Each string is a length and UTF-8 bytes, with -1 meaning null.
+     * Fields added in later versions will follow these, in the order of the versions that added
+     * them.
+     */
     private void serializeOutputStream(@NonNull OutputStream output) throws IOException {
-        PersistableBundle b = new PersistableBundle();
-        b.putInt(KEY_VERSION, VERSION);
-        if (mPackageName != null) {
-            b.putString(KEY_PACKAGENAME, mPackageName);
+        int flags = 0;
+        if (mProtectedVm) {
+            flags |= FLAG_PROTECTED_VM;
+        }
+        if (mVmOutputCaptured) {
+            flags |= FLAG_VM_OUTPUT_CAPTURED;
         }
-        if (mApkPath != null) {
-            b.putString(KEY_APKPATH, mApkPath);
+
+        String[] strings = new String[STRING_TABLE_SIZE];
+        strings[STRING_PACKAGE_NAME] = mPackageName;
+        strings[STRING_APK_PATH] = mApkPath;
+        strings[STRING_PAYLOAD_CONFIG_PATH] = mPayloadConfigPath;
+        strings[STRING_PAYLOAD_BINARY_NAME] = mPayloadBinaryName;
+
+        // Buffer the whole config, so that the stream is written at once.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(mDebugLevel);
+        data.writeInt(flags);
+        data.writeLong(Math.max(mMemoryBytes, 0));
+        data.writeInt(mCpuTopology);
+        data.writeLong(Math.max(mEncryptedStorageBytes, 0));
+        data.writeInt(strings.length);
+        for (String string : strings) {
+            writeString(data, string);
         }
-        b.putString(KEY_PAYLOADCONFIGPATH, mPayloadConfigPath);
-        b.putString(KEY_PAYLOADBINARYNAME, mPayloadBinaryName);
-        b.putInt(KEY_DEBUGLEVEL, mDebugLevel);
-        b.putBoolean(KEY_PROTECTED_VM, mProtectedVm);
-        b.putInt(KEY_CPU_TOPOLOGY, mCpuTopology);
-        if (mMemoryBytes > 0) {
-            b.putLong(KEY_MEMORY_BYTES, mMemoryBytes);
+        data.writeInt(mCpuCount);
+        data.writeLong(mCpuAffinityMask);
+        data.writeInt(mCpuCluster);
+        data.writeInt(mQosClass);
+        data.writeInt(mIoPriority);
+        data.writeInt(mDataDisks.size());
+        for (DataDisk dataDisk : mDataDisks) {
+            writeString(data, dataDisk.getImage().getPath());
+            data.writeInt(dataDisk.isReadOnly() ? 1 : 0);
         }
-        if (mEncryptedStorageBytes > 0) {
-            b.putLong(KEY_ENCRYPTED_STORAGE_BYTES, mEncryptedStorageBytes);
+        data.flush();
+        bytes.writeTo(output);
+    }
+
+    private static void writeString(@NonNull DataOutputStream data, @Nullable String string)
+            throws IOException {
+        if (string == null) {
+            data.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
         }
-        b.putBoolean(KEY_VM_OUTPUT_CAPTURED, mVmOutputCaptured);
-        b.writeToStream(output);
     }
 
     /**
@@ -378,6 +765,67 @@ public final class VirtualMachineConfig {
         return mCpuTopology;
     }
 
+    /**
+     * Returns the number of vCPUs the VM will have, or 0 if the {@linkplain #getCpuTopology CPU
+     * topology} determines it.
+     *
+     * @see Builder#setCpuCount
+     * @hide
+     */
+    @SystemApi
+    @IntRange(from = 0)
+    public int getCpuCount() {
+        return mCpuCount;
+    }
+
+    /**
+     * Returns the host CPUs that the VM's vCPUs may run on, with bit N set for CPU N, or 0 if they
+     * are not restricted to specific CPUs.
+     *
+     * @see Builder#setCpuAffinityMask
+     * @hide
+     */
+    @SystemApi
+    public long getCpuAffinityMask() {
+        return mCpuAffinityMask;
+    }
+
+    /**
+     * Returns the cluster of host CPUs that the VM's vCPUs run on.
+     *
+     * @see Builder#setCpuCluster
+     * @hide
+     */
+    @SystemApi
+    @CpuCluster
+    public int getCpuCluster() {
+        return mCpuCluster;
+    }
+
+    /**
+     * Returns how the host schedules the VM.
+     *
+     * @see Builder#setQosClass
+     * @hide
+     */
+    @SystemApi
+    @QosClass
+    public int getQosClass() {
+        return mQosClass;
+    }
+
+    /**
+     * Returns the share of the host's storage bandwidth the VM gets when it is contended.
+     *
+     * @see Builder#setIoPriority
+     * @hide
+     */
+    @SystemApi
+    @IoPriority
+    public int getIoPriority() {
+        return mIoPriority;
+    }
+
     /**
      * Returns whether encrypted storage is enabled or not.
      *
@@ -412,6 +860,68 @@ public final class VirtualMachineConfig {
         return mVmOutputCaptured;
     }
 
+    /**
+     * Returns the disk images provided by the app, in the order they are attached to the VM.
+     *
+     * @see Builder#addDataDisk
+     * @hide
+     */
+    @SystemApi
+    @NonNull
+    public List<DataDisk> getDataDisks() {
+        return mDataDisks;
+    }
+
+    /**
+     * Returns a copy of this config with the given data disks instead of its own, for a VM whose
+     * disk images have been copied elsewhere.
+     */
+    @NonNull
+    VirtualMachineConfig withDataDisks(@NonNull List<DataDisk> dataDisks) {
+        return new VirtualMachineConfig(
+                mPackageName,
+                mApkPath,
+                mPayloadConfigPath,
+                mPayloadBinaryName,
+                mDebugLevel,
+                mProtectedVm,
+                mMemoryBytes,
+                mCpuTopology,
+                mCpuCount,
+                mCpuAffinityMask,
+                mCpuCluster,
+                mQosClass,
+                mIoPriority,
+                mEncryptedStorageBytes,
+                mVmOutputCaptured,
+                Collections.unmodifiableList(new ArrayList<>(dataDisks)));
+    }
+
+    /**
+     * Returns a copy of this config with the given encrypted storage size instead of its own, for
+     * a VM whose encrypted storage has been resized.
+     */
+    @NonNull
+    VirtualMachineConfig withEncryptedStorageBytes(long encryptedStorageBytes) {
+        return new VirtualMachineConfig(
+                mPackageName,
+                mApkPath,
+                mPayloadConfigPath,
+                mPayloadBinaryName,
+                mDebugLevel,
+                mProtectedVm,
+                mMemoryBytes,
+                mCpuTopology,
+                mCpuCount,
+                mCpuAffinityMask,
+                mCpuCluster,
+                mQosClass,
+                mIoPriority,
+                encryptedStorageBytes,
+                mVmOutputCaptured,
+                mDataDisks);
+    }
+
     /**
      * Tests if this config is compatible with other config. Being compatible means that the configs
      * can be interchangeably used for the same virtual machine; they do not change the VM identity
@@ -482,20 +992,75 @@ public final class VirtualMachineConfig {
                 vsConfig.cpuTopology = android.system.virtualizationservice.CpuTopology.ONE_CPU;
                 break;
         }
-        // Don't allow apps to set task profiles ... at least for now.
-        vsConfig.taskProfiles = EMPTY_STRING_ARRAY;
+        vsConfig.cpuCount = mCpuCount;
+        vsConfig.cpuAffinityMask = mCpuAffinityMask;
+        switch (mCpuCluster) {
+            case CPU_CLUSTER_LITTLE:
+                vsConfig.cpuCluster = android.system.virtualizationservice.CpuCluster.LITTLE;
+                break;
+            case CPU_CLUSTER_BIG:
+                vsConfig.cpuCluster = android.system.virtualizationservice.CpuCluster.BIG;
+                break;
+            default:
+                vsConfig.cpuCluster = android.system.virtualizationservice.CpuCluster.ANY;
+                break;
+        }
+        // Apps can't name task profiles directly, only pick from the vetted sets below.
+        List<String> taskProfiles = new ArrayList<>();
+        switch (mQosClass) {
+            case QOS_CLASS_LATENCY_SENSITIVE:
+                Collections.addAll(taskProfiles, "CPUSET_SP_TOP_APP", "SCHED_SP_TOP_APP");
+                break;
+            case QOS_CLASS_THROUGHPUT:
+                Collections.addAll(taskProfiles, "CPUSET_SP_FOREGROUND", "SCHED_SP_COMPUTE");
+                break;
+            case QOS_CLASS_BACKGROUND:
+                Collections.addAll(taskProfiles, "CPUSET_SP_BACKGROUND", "SCHED_SP_BACKGROUND");
+                break;
+            default:
+                break;
+        }
+        switch (mIoPriority) {
+            case IO_PRIORITY_LOW:
+                taskProfiles.add("LowIoPriority");
+                break;
+            case IO_PRIORITY_HIGH:
+                taskProfiles.add("HighIoPriority");
+                break;
+            default:
+                break;
+        }
+        vsConfig.taskProfiles = taskProfiles.toArray(EMPTY_STRING_ARRAY);
+        vsConfig.dataDisks = new DiskImage[mDataDisks.size()];
+        for (int i = 0; i < mDataDisks.size(); i++) {
+            DataDisk dataDisk = mDataDisks.get(i);
+            DiskImage disk = new DiskImage();
+            try {
+                disk.image =
+                        ParcelFileDescriptor.open(
+                                dataDisk.getImage(),
+                                dataDisk.isReadOnly() ? MODE_READ_ONLY : MODE_READ_WRITE);
+            } catch (FileNotFoundException e) {
+                throw new VirtualMachineException(
+                        "Failed to open data disk " + dataDisk.getImage(), e);
+            }
+            disk.writable = !dataDisk.isReadOnly();
+            disk.partitions = new Partition[0];
+            vsConfig.dataDisks[i] = disk;
+        }
         return vsConfig;
     }
 
     private String findPayloadApk(PackageManager packageManager) throws VirtualMachineException {
-        ApplicationInfo appInfo;
+        PackageInfo packageInfo;
         try {
-            appInfo =
-                    packageManager.getApplicationInfo(
-                            mPackageName, PackageManager.ApplicationInfoFlags.of(0));
+            packageInfo =
+                    packageManager.getPackageInfo(
+                            mPackageName, PackageManager.PackageInfoFlags.of(0));
         } catch (PackageManager.NameNotFoundException e) {
             throw new VirtualMachineException("Package not found", e);
         }
+        ApplicationInfo appInfo = packageInfo.applicationInfo;
 
         String[] splitApkPaths = appInfo.splitSourceDirs;
         String[] abis = Build.SUPPORTED_64_BIT_ABIS;
@@ -503,29 +1068,139 @@ public final class VirtualMachineConfig {
         // If there are split APKs, and we know the payload binary name, see if we can find a
         // split APK containing the binary.
         if (mPayloadBinaryName != null && splitApkPaths != null && abis.length != 0) {
-            String[] libraryNames = new String[abis.length];
-            for (int i = 0; i < abis.length; i++) {
-                libraryNames[i] = "lib/" + abis[i] + "/" + mPayloadBinaryName;
+            PayloadApkKey key = new PayloadApkKey(packageInfo, mPayloadBinaryName);
+            String cachedPath = sPayloadApkCache.get(key);
+            if (cachedPath != null) {
+                return cachedPath;
             }
 
-            for (String path : splitApkPaths) {
-                try (ZipFile zip = new ZipFile(path)) {
-                    for (String name : libraryNames) {
-                        if (zip.getEntry(name) != null) {
-                            Log.i(TAG, "Found payload in " + path);
-                            return path;
-                        }
-                    }
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to scan split APK: " + path, e);
-                }
+            String path = findSplitApkContainingPayload(splitApkPaths, abis);
+            if (path == null) {
+                // This really is the path to the APK, not a directory.
+                path = appInfo.sourceDir;
             }
+            sPayloadApkCache.put(key, path);
+            return path;
         }
 
         // This really is the path to the APK, not a directory.
         return appInfo.sourceDir;
     }
 
+    @Nullable
+    private String findSplitApkContainingPayload(String[] splitApkPaths, String[] abis) {
+        String[] libraryNames = new String[abis.length];
+        for (int i = 0; i < abis.length; i++) {
+            libraryNames[i] = "lib/" + abis[i] + "/" + mPayloadBinaryName;
+        }
+
+        for (String path : splitApkPaths) {
+            try (ZipFile zip = new ZipFile(path)) {
+                for (String name : libraryNames) {
+                    if (zip.getEntry(name) != null) {
+                        Log.i(TAG, "Found payload in " + path);
+                        return path;
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to scan split APK: " + path, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A disk image provided by the app, which is attached to the VM as an additional virtio-blk
+     * device.
+     *
+     * @see Builder#addDataDisk
+     * @hide
+     */
+    @SystemApi
+    public static final class DataDisk {
+        @NonNull private final File mImage;
+        private final boolean mReadOnly;
+
+        private DataDisk(@NonNull File image, boolean readOnly) {
+            mImage = image;
+            mReadOnly = readOnly;
+        }
+
+        /**
+         * Returns the disk image file.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public File getImage() {
+            return mImage;
+        }
+
+        /**
+         * Returns whether the VM can only read the disk.
+         *
+         * @hide
+         */
+        @SystemApi
+        public boolean isReadOnly() {
+            return mReadOnly;
+        }
+
+        /** Returns a data disk like this one, but backed by a different image file. */
+        @NonNull
+        DataDisk withImage(@NonNull File image) {
+            return new DataDisk(image, mReadOnly);
+        }
+    }
+
+    /**
+     * Identifies a payload binary within a particular installed version of a package. Updating or
+     * reinstalling the package changes the version code, the update time or the code paths, so a
+     * key never matches across a package change.
+     */
+    private static final class PayloadApkKey {
+        @NonNull private final String mPackageName;
+        private final long mVersionCode;
+        private final long mLastUpdateTime;
+        @NonNull private final String mSourceDir;
+        @NonNull private final String[] mSplitSourceDirs;
+        @NonNull private final String mPayloadBinaryName;
+
+        PayloadApkKey(@NonNull PackageInfo packageInfo, @NonNull String payloadBinaryName) {
+            mPackageName = packageInfo.packageName;
+            mVersionCode = packageInfo.getLongVersionCode();
+            mLastUpdateTime = packageInfo.lastUpdateTime;
+            mSourceDir = packageInfo.applicationInfo.sourceDir;
+            mSplitSourceDirs = packageInfo.applicationInfo.splitSourceDirs;
+            mPayloadBinaryName = payloadBinaryName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PayloadApkKey)) return false;
+            PayloadApkKey other = (PayloadApkKey) o;
+            return mVersionCode == other.mVersionCode
+                    && mLastUpdateTime == other.mLastUpdateTime
+                    && mPackageName.equals(other.mPackageName)
+                    && mSourceDir.equals(other.mSourceDir)
+                    && Arrays.equals(mSplitSourceDirs, other.mSplitSourceDirs)
+                    && mPayloadBinaryName.equals(other.mPayloadBinaryName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(
+                    mPackageName,
+                    mVersionCode,
+                    mLastUpdateTime,
+                    mSourceDir,
+                    Arrays.hashCode(mSplitSourceDirs),
+                    mPayloadBinaryName);
+        }
+    }
+
     private int bytesToMebiBytes(long mMemoryBytes) {
         long oneMebi = 1024 * 1024;
         // We can't express requests for more than 2 exabytes, but then they're not going to succeed
@@ -552,8 +1227,14 @@ public final class VirtualMachineConfig {
         private boolean mProtectedVmSet;
         private long mMemoryBytes;
         @CpuTopology private int mCpuTopology = CPU_TOPOLOGY_ONE_CPU;
+        private int mCpuCount;
+        private long mCpuAffinityMask;
+        @CpuCluster private int mCpuCluster = CPU_CLUSTER_ANY;
+        @QosClass private int mQosClass = QOS_CLASS_DEFAULT;
+        @IoPriority private int mIoPriority = IO_PRIORITY_DEFAULT;
         private long mEncryptedStorageBytes;
         private boolean mVmOutputCaptured = false;
+        @NonNull private final List<DataDisk> mDataDisks = new ArrayList<>();
 
         /**
          * Creates a builder for the given context.
@@ -612,6 +1293,16 @@ public final class VirtualMachineConfig {
                 throw new IllegalStateException("debug level must be FULL to capture output");
             }
 
+            if (mCpuCount != 0 && mCpuTopology != CPU_TOPOLOGY_ONE_CPU) {
+                throw new IllegalStateException(
+                        "setCpuCount and setCpuTopology may not both be called");
+            }
+
+            if (mCpuAffinityMask != 0 && mCpuCluster != CPU_CLUSTER_ANY) {
+                throw new IllegalStateException(
+                        "setCpuAffinityMask and setCpuCluster may not both be called");
+            }
+
             return new VirtualMachineConfig(
                     packageName,
                     apkPath,
@@ -621,8 +1312,14 @@ public final class VirtualMachineConfig {
                     mProtectedVm,
                     mMemoryBytes,
                     mCpuTopology,
+                    mCpuCount,
+                    mCpuAffinityMask,
+                    mCpuCluster,
+                    mQosClass,
+                    mIoPriority,
                     mEncryptedStorageBytes,
-                    mVmOutputCaptured);
+                    mVmOutputCaptured,
+                    Collections.unmodifiableList(new ArrayList<>(mDataDisks)));
         }
 
         /**
@@ -771,6 +1468,114 @@ public final class VirtualMachineConfig {
             return this;
         }
 
+        /**
+         * Sets the number of vCPUs to give the VM, instead of deriving it from the {@linkplain
+         * #setCpuTopology CPU topology}, which must then be left as the default. The count must
+         * not be more than the number of CPUs of the host, or the VM will fail to start.
+         *
+         * <p>This is useful when several VMs share a device: each can be given enough vCPUs for
+         * its payload without oversubscribing the host's CPUs.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Builder setCpuCount(@IntRange(from = 1) int cpuCount) {
+            if (cpuCount <= 0) {
+                throw new IllegalArgumentException("CPU count must be positive");
+            }
+            mCpuCount = cpuCount;
+            return this;
+        }
+
+        /**
+         * Restricts the VM's vCPUs to run on the given host CPUs, with bit N set for CPU N. The
+         * mask must only contain CPUs that exist on the host, or the VM will fail to start. By
+         * default the vCPUs may run on any host CPU.
+         *
+         * <p>This may not be combined with {@link #setCpuCluster}.
+         *
+         * @hide
+         */
+        @SystemApi
+        @RequiresPermission(VirtualMachine.USE_CUSTOM_VIRTUAL_MACHINE_PERMISSION)
+        @NonNull
+        public Builder setCpuAffinityMask(long cpuAffinityMask) {
+            if (cpuAffinityMask == 0) {
+                throw new IllegalArgumentException("CPU affinity mask must not be empty");
+            }
+            mCpuAffinityMask = cpuAffinityMask;
+            return this;
+        }
+
+        /**
+         * Sets which cluster of host CPUs the VM's vCPUs run on, on hosts whose CPUs differ in
+         * capacity. Defaults to {@link #CPU_CLUSTER_ANY}.
+         *
+         * <p>This may not be combined with {@link #setCpuAffinityMask}.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Builder setCpuCluster(@CpuCluster int cpuCluster) {
+            if (cpuCluster != CPU_CLUSTER_ANY
+                    && cpuCluster != CPU_CLUSTER_LITTLE
+                    && cpuCluster != CPU_CLUSTER_BIG) {
+                throw new IllegalArgumentException("Invalid cpuCluster: " + cpuCluster);
+            }
+            mCpuCluster = cpuCluster;
+            return this;
+        }
+
+        /**
+         * Sets how the host schedules the VM, relative to other work on the device. Defaults to
+         * {@link #QOS_CLASS_DEFAULT}, in which case the VM runs on whatever CPUs the app may use.
+         *
+         * <p>Each class applies a fixed set of platform task profiles, which select a cpuset and
+         * scheduling policy for the VM. If a {@linkplain #setCpuCluster CPU cluster} or
+         * {@linkplain #setCpuAffinityMask affinity mask} is also set, the vCPUs only run on CPUs
+         * allowed by both.
+         *
+         * @hide
+         */
+        @SystemApi
+        @RequiresPermission(VirtualMachine.USE_CUSTOM_VIRTUAL_MACHINE_PERMISSION)
+        @NonNull
+        public Builder setQosClass(@QosClass int qosClass) {
+            if (qosClass != QOS_CLASS_DEFAULT
+                    && qosClass != QOS_CLASS_LATENCY_SENSITIVE
+                    && qosClass != QOS_CLASS_THROUGHPUT
+                    && qosClass != QOS_CLASS_BACKGROUND) {
+                throw new IllegalArgumentException("Invalid qosClass: " + qosClass);
+            }
+            mQosClass = qosClass;
+            return this;
+        }
+
+        /**
+         * Sets the share of the host's storage bandwidth that the VM's disk I/O gets when it is
+         * contended with other work. Defaults to {@link #IO_PRIORITY_DEFAULT}.
+         *
+         * <p>The priority applies a platform task profile that sets the I/O cgroup weight of the
+         * VM. It is proportional, not a cap: a VM with a low priority can still use all of the
+         * bandwidth when nothing else needs it.
+         *
+         * @hide
+         */
+        @SystemApi
+        @RequiresPermission(VirtualMachine.USE_CUSTOM_VIRTUAL_MACHINE_PERMISSION)
+        @NonNull
+        public Builder setIoPriority(@IoPriority int ioPriority) {
+            if (ioPriority != IO_PRIORITY_DEFAULT
+                    && ioPriority != IO_PRIORITY_LOW
+                    && ioPriority != IO_PRIORITY_HIGH) {
+                throw new IllegalArgumentException("Invalid ioPriority: " + ioPriority);
+            }
+            mIoPriority = ioPriority;
+            return this;
+        }
+
         /**
          * Sets the size (in bytes) of encrypted storage available to the VM. If not set, no
          * encrypted storage is provided.
@@ -822,5 +1627,35 @@ public final class VirtualMachineConfig {
             mVmOutputCaptured = captured;
             return this;
         }
+
+        /**
+         * Adds a disk image to attach to the VM. The payload finds the data disks at {@code
+         * /dev/block/by-name/data-disk-0}, {@code data-disk-1} and so on, in the order they are
+         * added. The image is referred to by path, so it must still exist whenever the VM is run.
+         * The size of a writable image must be a multiple of 4 KiB.
+         *
+         * <p>A clone of the VM gets its own copy of a writable image, or of an image kept in the
+         * VM's directory, while other read-only images stay shared. A VM imported from a {@link
+         * VirtualMachineDescriptor} gets its own copy of every image.
+         *
+         * <p>A read-only image can be attached to many VMs at once, which then share the host page
+         * cache for it rather than each having its own copy. The image is not verified, so the
+         * payload must not trust its contents any more than data received from the app in other
+         * ways.
+         *
+         * @param image the absolute path of the disk image
+         * @param readOnly whether the VM can only read the disk
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Builder addDataDisk(@NonNull File image, boolean readOnly) {
+            requireNonNull(image, "image must not be null");
+            if (!image.isAbsolute()) {
+                throw new IllegalArgumentException("Data disk path must be absolute: " + image);
+            }
+            mDataDisks.add(new DataDisk(image, readOnly));
+            return this;
+        }
     }
 }
@@ -26,6 +26,8 @@ import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A VM descriptor that captures the state of a Virtual Machine.
@@ -44,6 +46,8 @@ public final class VirtualMachineDescriptor implements Parcelable, AutoCloseable
     // File descriptor of the image backing the encrypted storage - Will be null if encrypted
     // storage is not enabled. */
     @Nullable private final ParcelFileDescriptor mEncryptedStoreFd;
+    // File descriptors of the data disk images, in the order of the config's data disks.
+    @NonNull private final List<ParcelFileDescriptor> mDataDiskFds;
 
     @Override
     public int describeContents() {
@@ -56,6 +60,7 @@ public final class VirtualMachineDescriptor implements Parcelable, AutoCloseable
         out.writeParcelable(mConfigFd, flags);
         out.writeParcelable(mInstanceImgFd, flags);
         out.writeParcelable(mEncryptedStoreFd, flags);
+        out.writeTypedList(mDataDiskFds, flags);
     }
 
     @NonNull
@@ -98,19 +103,32 @@ public final class VirtualMachineDescriptor implements Parcelable, AutoCloseable
         return mEncryptedStoreFd;
     }
 
+    /**
+     * @return File descriptors of the data disk images, in the order of the config's data disks.
+     */
+    @NonNull
+    List<ParcelFileDescriptor> getDataDiskFds() {
+        checkNotClosed();
+        return mDataDiskFds;
+    }
+
     VirtualMachineDescriptor(
             @NonNull ParcelFileDescriptor configFd,
             @NonNull ParcelFileDescriptor instanceImgFd,
-            @Nullable ParcelFileDescriptor encryptedStoreFd) {
+            @Nullable ParcelFileDescriptor encryptedStoreFd,
+            @NonNull List<ParcelFileDescriptor> dataDiskFds) {
         mConfigFd = requireNonNull(configFd);
         mInstanceImgFd = requireNonNull(instanceImgFd);
         mEncryptedStoreFd = encryptedStoreFd;
+        mDataDiskFds = requireNonNull(dataDiskFds);
     }
 
     private VirtualMachineDescriptor(Parcel in) {
         mConfigFd = requireNonNull(readParcelFileDescriptor(in));
         mInstanceImgFd = requireNonNull(readParcelFileDescriptor(in));
         mEncryptedStoreFd = readParcelFileDescriptor(in);
+        mDataDiskFds = new ArrayList<>();
+        in.readTypedList(mDataDiskFds, ParcelFileDescriptor.CREATOR);
     }
 
     private ParcelFileDescriptor readParcelFileDescriptor(Parcel in) {
@@ -133,6 +151,13 @@ public final class VirtualMachineDescriptor implements Parcelable, AutoCloseable
             // PFD already swallows exceptions from closing the fd. There's no reason to propagate
             // this to the caller.
         }
+        for (ParcelFileDescriptor fd : mDataDiskFds) {
+            try {
+                fd.close();
+            } catch (IOException ignored) {
+                // As above.
+            }
+        }
     }
 
     private void checkNotClosed() {
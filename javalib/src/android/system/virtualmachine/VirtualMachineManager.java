@@ -19,6 +19,7 @@ package android.system.virtualmachine;
 import static java.util.Objects.requireNonNull;
 
 import android.annotation.IntDef;
+import android.annotation.IntRange;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.RequiresFeature;
@@ -29,13 +30,24 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.sysprop.HypervisorProperties;
 import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Manages {@linkplain VirtualMachine virtual machine} instances created by an app. Each instance is
@@ -56,6 +68,8 @@ import java.util.Map;
 @SystemApi
 @RequiresFeature(PackageManager.FEATURE_VIRTUALIZATION_FRAMEWORK)
 public class VirtualMachineManager {
+    private static final String TAG = "VirtualMachineManager";
+
     /**
      * A lock used to synchronize the creation of virtual machines. It protects {@link #mVmsByName},
      * but is also held throughout VM creation / retrieval / deletion, to prevent these actions
@@ -63,16 +77,27 @@ public class VirtualMachineManager {
      */
     private static final Object sCreateLock = new Object();
 
+    /** Maximum number of VMs whose partitions {@link #createAll} initializes concurrently. */
+    private static final int CREATE_ALL_PARALLELISM = 4;
+
     @NonNull private final Context mContext;
 
     /** @hide */
     public VirtualMachineManager(@NonNull Context context) {
         mContext = requireNonNull(context);
+        VirtualMachine.sweepTrash(mContext);
     }
 
     @GuardedBy("sCreateLock")
     private final Map<String, WeakReference<VirtualMachine>> mVmsByName = new ArrayMap<>();
 
+    /**
+     * Names of the VMs reserved by {@link #createAll} whose partitions are still being initialized
+     * without the lock held. They can't be retrieved or deleted until that finishes.
+     */
+    @GuardedBy("sCreateLock")
+    private final Set<String> mVmsBeingCreated = new ArraySet<>();
+
     /**
      * Capabilities of the virtual machine implementation.
      *
@@ -115,6 +140,58 @@ public class VirtualMachineManager {
         return result;
     }
 
+    /**
+     * Starts the virtualization service used by this process in the background, if it is not
+     * already running, and returns immediately.
+     *
+     * <p>The service is otherwise started by the first call that needs it, such as {@link
+     * #create} or {@link #get}, which then has to wait for it. Calling this early, for example
+     * when the process starts, takes that wait off the critical path. It is only an optimization:
+     * if the service can't be started, nothing is reported here, and the error is reported by the
+     * next call that needs the service.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresPermission(VirtualMachine.MANAGE_VIRTUAL_MACHINE_PERMISSION)
+    public void prewarm() {
+        Thread thread =
+                new Thread(
+                        () -> {
+                            synchronized (sCreateLock) {
+                                try {
+                                    VirtualizationService.prewarm();
+                                } catch (VirtualMachineException | RuntimeException e) {
+                                    Log.w(TAG, "Failed to prewarm VirtualizationService", e);
+                                }
+                            }
+                        },
+                        "VirtualizationServicePrewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets the number of virtualization service instances among which the virtual machines of
+     * this process are spread. By default there is a single instance, through which every virtual
+     * machine of the process is created and controlled. A process hosting many virtual machines
+     * can use several instances, so that one busy or crashed instance only affects some of them.
+     *
+     * <p>Each virtual machine is assigned to an instance by a hash of its name. The setting only
+     * applies to {@link VirtualMachine} objects created or retrieved after this call; existing ones
+     * keep using their current instance.
+     *
+     * @param shardCount the number of instances, which must be at least 1.
+     * @hide
+     */
+    @SystemApi
+    @RequiresPermission(VirtualMachine.MANAGE_VIRTUAL_MACHINE_PERMISSION)
+    public void setVirtualizationServiceShardCount(@IntRange(from = 1) int shardCount) {
+        synchronized (sCreateLock) {
+            VirtualizationService.setShardCount(shardCount);
+        }
+    }
+
     /**
      * Creates a new {@link VirtualMachine} with the given name and config. Creating a virtual
      * machine with the same name as an existing virtual machine is an error. The existing virtual
@@ -150,6 +227,215 @@ public class VirtualMachineManager {
         return vm;
     }
 
+    /**
+     * The outcome of {@link #createAll}: each requested virtual machine was either created, or
+     * failed to be created.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final class CreateAllResult {
+        @NonNull private final Map<String, VirtualMachine> mVirtualMachines;
+        @NonNull private final Map<String, VirtualMachineException> mFailures;
+
+        private CreateAllResult(
+                @NonNull Map<String, VirtualMachine> virtualMachines,
+                @NonNull Map<String, VirtualMachineException> failures) {
+            mVirtualMachines = Collections.unmodifiableMap(virtualMachines);
+            mFailures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Returns the virtual machines that were created, keyed by name.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Map<String, VirtualMachine> getVirtualMachines() {
+            return mVirtualMachines;
+        }
+
+        /**
+         * Returns the reason each virtual machine that could not be created failed, keyed by name.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Map<String, VirtualMachineException> getFailures() {
+            return mFailures;
+        }
+    }
+
+    /**
+     * Creates a new {@link VirtualMachine} for each of the given names and configs, as if by
+     * {@link #create}, but more quickly than calling that for each in turn.
+     *
+     * <p>All the names are reserved before any virtual machine is initialized, and the virtual
+     * machines are then initialized in parallel. Each virtual machine succeeds or fails on its own:
+     * a failure to create one of them, for example because a virtual machine with that name
+     * already exists, doesn't prevent the others being created. An invalid name or a missing config
+     * is an error in the arguments though, and no virtual machine is created.
+     *
+     * <p>Other virtual machines can be used while the new ones are initialized, but the new ones
+     * can't be retrieved or deleted until this returns.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if no virtual machine can be created, because the
+     *     virtualization service is not available.
+     * @hide
+     */
+    @SystemApi
+    @NonNull
+    @WorkerThread
+    @RequiresPermission(VirtualMachine.MANAGE_VIRTUAL_MACHINE_PERMISSION)
+    public CreateAllResult createAll(@NonNull Map<String, VirtualMachineConfig> configs)
+            throws VirtualMachineException {
+        requireNonNull(configs);
+        // Check every entry before anything is written, so that an invalid one is reported without
+        // any VM being reserved.
+        for (Map.Entry<String, VirtualMachineConfig> entry : configs.entrySet()) {
+            VirtualMachine.checkName(requireNonNull(entry.getKey(), "name must not be null"));
+            requireNonNull(entry.getValue(), "config must not be null");
+        }
+
+        Map<String, VirtualMachine> created = new ArrayMap<>();
+        Map<String, VirtualMachineException> failures = new ArrayMap<>();
+        List<VirtualMachine> reserved;
+        synchronized (sCreateLock) {
+            reserved = reserveAllLocked(configs, failures);
+        }
+        if (reserved.isEmpty()) {
+            return new CreateAllResult(created, failures);
+        }
+
+        // Initializing the partitions is slow, so it is done without holding the lock, so that
+        // other VMs can be used meanwhile. The reserved names can't be used until it is done.
+        boolean initialized = false;
+        try {
+            initializeAll(reserved, failures);
+            initialized = true;
+        } finally {
+            synchronized (sCreateLock) {
+                for (VirtualMachine vm : reserved) {
+                    String name = vm.getName();
+                    if (initialized && !failures.containsKey(name)) {
+                        created.put(name, vm);
+                        mVmsByName.put(name, new WeakReference<>(vm));
+                    }
+                    mVmsBeingCreated.remove(name);
+                }
+            }
+        }
+        return new CreateAllResult(created, failures);
+    }
+
+    /**
+     * Reserves a VM for each entry of {@code configs}, recording those which can't be reserved in
+     * {@code failures}. The names of the reserved VMs are added to {@link #mVmsBeingCreated}.
+     */
+    @NonNull
+    @GuardedBy("sCreateLock")
+    private List<VirtualMachine> reserveAllLocked(
+            @NonNull Map<String, VirtualMachineConfig> configs,
+            @NonNull Map<String, VirtualMachineException> failures) {
+        List<VirtualMachine> reserved = new ArrayList<>();
+        try {
+            for (Map.Entry<String, VirtualMachineConfig> entry : configs.entrySet()) {
+                try {
+                    reserved.add(
+                            VirtualMachine.reserve(mContext, entry.getKey(), entry.getValue()));
+                } catch (VirtualMachineException e) {
+                    failures.put(entry.getKey(), e);
+                }
+            }
+        } catch (RuntimeException e) {
+            // None of the reserved VMs is registered yet, so they would be left behind on disk.
+            for (VirtualMachine vm : reserved) {
+                vm.deleteAfterFailedCreate(e);
+            }
+            throw e;
+        }
+        for (VirtualMachine vm : reserved) {
+            mVmsBeingCreated.add(vm.getName());
+        }
+        return reserved;
+    }
+
+    /**
+     * Initializes the partitions of the given reserved VMs in parallel. Each VM which fails is
+     * deleted, and its failure recorded in {@code failures}. This doesn't need the create lock.
+     */
+    private static void initializeAll(
+            @NonNull List<VirtualMachine> vms,
+            @NonNull Map<String, VirtualMachineException> failures) {
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(vms.size(), CREATE_ALL_PARALLELISM));
+        List<Future<Void>> futures = new ArrayList<>(vms.size());
+        boolean interrupted = false;
+        try {
+            for (VirtualMachine vm : vms) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    vm.initializePartitions();
+                                    return null;
+                                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Reported below.
+                }
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            // Stop the remaining initializations if interrupted, but let them all finish before
+            // any VM is deleted, so that none is still writing to a VM's directory meanwhile.
+            executor.shutdownNow();
+            VirtualMachine.awaitTerminationUninterruptibly(executor);
+        }
+
+        for (int i = 0; i < vms.size(); i++) {
+            VirtualMachine vm = vms.get(i);
+            VirtualMachineException failure = getInitializeFailure(futures.get(i));
+            if (failure != null) {
+                vm.deleteAfterFailedCreate(failure);
+                failures.put(vm.getName(), failure);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns why the initialization task {@code future}, which won't run any more, failed, or null
+     * if it didn't.
+     */
+    @Nullable
+    private static VirtualMachineException getInitializeFailure(@NonNull Future<Void> future) {
+        // A task which never started, because the caller was interrupted, isn't done.
+        if (!future.isDone() || future.isCancelled()) {
+            return new VirtualMachineException("interrupted");
+        }
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            return (cause instanceof VirtualMachineException)
+                    ? (VirtualMachineException) cause
+                    : new VirtualMachineException("failed to create virtual machine", cause);
+        } catch (InterruptedException e) {
+            return new VirtualMachineException("interrupted", e);
+        }
+    }
+
     /**
      * Returns an existing {@link VirtualMachine} with the given name. Returns null if there is no
      * such virtual machine.
@@ -177,6 +463,7 @@ public class VirtualMachineManager {
     @Nullable
     @GuardedBy("sCreateLock")
     private VirtualMachine getLocked(@NonNull String name) throws VirtualMachineException {
+        checkNotBeingCreated(name);
         VirtualMachine vm = getVmByName(name);
         if (vm != null) return vm;
 
@@ -213,6 +500,130 @@ public class VirtualMachineManager {
         }
     }
 
+    /**
+     * The outcome of cloning a virtual machine with {@link #clone}, including how long the clone
+     * took and how much storage it needed.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final class CloneResult {
+        @NonNull private final VirtualMachine mVirtualMachine;
+        @NonNull private final Duration mDuration;
+        private final long mBytesCopied;
+        private final long mBytesShared;
+
+        CloneResult(
+                @NonNull VirtualMachine virtualMachine,
+                @NonNull Duration duration,
+                long bytesCopied,
+                long bytesShared) {
+            mVirtualMachine = virtualMachine;
+            mDuration = duration;
+            mBytesCopied = bytesCopied;
+            mBytesShared = bytesShared;
+        }
+
+        /**
+         * Returns the new virtual machine.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public VirtualMachine getVirtualMachine() {
+            return mVirtualMachine;
+        }
+
+        /**
+         * Returns how long it took to copy the source virtual machine's images for this clone.
+         *
+         * @hide
+         */
+        @SystemApi
+        @NonNull
+        public Duration getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * Returns the number of bytes of image data that were copied for this clone.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getBytesCopied() {
+            return mBytesCopied;
+        }
+
+        /**
+         * Returns the number of bytes of storage that this clone shares with the source virtual
+         * machine rather than copying, because the filesystem supports copy-on-write.
+         *
+         * @hide
+         */
+        @SystemApi
+        public long getBytesShared() {
+            return mBytesShared;
+        }
+    }
+
+    /**
+     * Creates {@code count} new virtual machines which are copies of an existing, stopped, virtual
+     * machine. The clones are named {@code newName} followed by an underscore and their index, for
+     * example {@code "vm_0"} and {@code "vm_1"}.
+     *
+     * <p>This is much faster than exporting the virtual machine with {@link
+     * VirtualMachine#toDescriptor} and importing it repeatedly. Where the filesystem supports it,
+     * the clones share storage with the source virtual machine until either is written; otherwise
+     * only the data regions of its images are copied. Either all of the clones are created or,
+     * if any of them fails, none is.
+     *
+     * <p>As with {@link #importFromDescriptor}, each clone starts with the same instance data as
+     * the source virtual machine, and so has the same per-VM secret. Any snapshot of the source
+     * virtual machine is not cloned.
+     *
+     * <p>Each clone gets its own copy of any writable {@linkplain
+     * VirtualMachineConfig.Builder#addDataDisk data disk}, and of any data disk kept in the source
+     * virtual machine's directory. Other read-only data disks are shared.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the source virtual machine does not exist or is not
+     *     stopped, a virtual machine with one of the new names already exists, or the clones could
+     *     not be created.
+     * @hide
+     */
+    @SystemApi
+    @NonNull
+    @WorkerThread
+    @RequiresPermission(VirtualMachine.MANAGE_VIRTUAL_MACHINE_PERMISSION)
+    public List<CloneResult> clone(
+            @NonNull String sourceName, @NonNull String newName, @IntRange(from = 1) int count)
+            throws VirtualMachineException {
+        requireNonNull(newName);
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid clone count: " + count);
+        }
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(newName + "_" + i);
+        }
+        synchronized (sCreateLock) {
+            VirtualMachine source = getLocked(sourceName);
+            if (source == null) {
+                throw new VirtualMachineException(
+                        "virtual machine " + sourceName + " does not exist");
+            }
+            List<CloneResult> results = source.cloneAs(names);
+            for (CloneResult result : results) {
+                VirtualMachine vm = result.getVirtualMachine();
+                mVmsByName.put(vm.getName(), new WeakReference<>(vm));
+            }
+            return Collections.unmodifiableList(results);
+        }
+    }
+
     /**
      * Returns an existing {@link VirtualMachine} if it exists, or create a new one. The config
      * parameter is used only when a new virtual machine is created.
@@ -244,6 +655,9 @@ public class VirtualMachineManager {
      * with the same name is different from an already deleted virtual machine even if it has the
      * same config.
      *
+     * <p>The name can be reused as soon as this method returns. The persisted data is removed in
+     * the background, so the storage it used may not be freed immediately.
+     *
      * <p>NOTE: This method may block and should not be called on the main thread.
      *
      * @throws VirtualMachineException if the virtual machine does not exist, is not stopped, or
@@ -254,6 +668,7 @@ public class VirtualMachineManager {
     @WorkerThread
     public void delete(@NonNull String name) throws VirtualMachineException {
         synchronized (sCreateLock) {
+            checkNotBeingCreated(name);
             VirtualMachine vm = getVmByName(name);
             if (vm == null) {
                 VirtualMachine.deleteVmDirectory(mContext, name);
@@ -264,6 +679,43 @@ public class VirtualMachineManager {
         }
     }
 
+    /**
+     * Returns the total space taken on the host by the files of all the virtual machines of this
+     * app, as reported by {@link VirtualMachine#getStorageUsage} for each of them.
+     *
+     * <p>The usage of each stopped virtual machine is cached, so this only examines the files of
+     * virtual machines which have been run or changed since the last call.
+     *
+     * <p>NOTE: This method may block and should not be called on the main thread.
+     *
+     * @throws VirtualMachineException if the usage could not be determined.
+     * @hide
+     */
+    @SystemApi
+    @WorkerThread
+    @NonNull
+    public VirtualMachine.DiskUsage getStorageUsage() throws VirtualMachineException {
+        synchronized (sCreateLock) {
+            List<VirtualMachine.DiskUsage> usages = new ArrayList<>();
+            for (String name : VirtualMachine.getVmNames(mContext)) {
+                VirtualMachine vm = getVmByName(name);
+                // A VM which has not been loaded cannot be running, so there's no need to load it.
+                usages.add(
+                        vm != null
+                                ? vm.getStorageUsage()
+                                : VirtualMachine.getStorageUsage(mContext, name));
+            }
+            return VirtualMachine.DiskUsage.sum(usages);
+        }
+    }
+
+    @GuardedBy("sCreateLock")
+    private void checkNotBeingCreated(@NonNull String name) throws VirtualMachineException {
+        if (mVmsBeingCreated.contains(name)) {
+            throw new VirtualMachineException("virtual machine " + name + " is being created");
+        }
+    }
+
     @Nullable
     @GuardedBy("sCreateLock")
     private VirtualMachine getVmByName(@NonNull String name) {
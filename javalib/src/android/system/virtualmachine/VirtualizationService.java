@@ -19,11 +19,15 @@ package android.system.virtualmachine;
 import android.annotation.NonNull;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.system.virtualizationservice.IVirtualizationService;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** A running instance of virtmgr that is hosting a VirtualizationService AIDL service. */
 class VirtualizationService {
@@ -31,9 +35,20 @@ class VirtualizationService {
         System.loadLibrary("virtualizationservice_jni");
     }
 
-    /* Soft reference caching the last created instance of this class. */
+    /*
+     * Weak references caching the last created instance of this class for each shard. There is a
+     * single shard unless setShardCount() is called.
+     */
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    private static WeakReference<VirtualizationService>[] sInstances = newShardArray(1);
+
+    /*
+     * Strong references to instances spawned by prewarm(), which would otherwise be garbage
+     * collected (and so shut down) before they are used. Each is dropped once getInstance() hands
+     * it out.
+     */
     @GuardedBy("VirtualMachineManager.sCreateLock")
-    private static WeakReference<VirtualizationService> sInstance;
+    private static VirtualizationService[] sPrewarmedInstances = new VirtualizationService[1];
 
     /*
      * Client FD for UDS connection to virtmgr's RpcBinder server. Closing it
@@ -44,12 +59,23 @@ class VirtualizationService {
     /* Persistent connection to IVirtualizationService. */
     private final IVirtualizationService mBinder;
 
+    /*
+     * Set as soon as virtmgr is known to have exited, by the death recipient on mBinder. The
+     * recipient must not reference this object, or it would never be garbage collected.
+     */
+    private final AtomicBoolean mDead = new AtomicBoolean(false);
+
+    /*
+     * Format version of the writable partitions initialized by this instance, or -1 if unknown.
+     * Partitions are initialized outside the create lock, so this is volatile; threads racing to
+     * query it get the same value.
+     */
+    private volatile int mWritablePartitionFormatVersion = -1;
+
     private static native int nativeSpawn();
 
     private native IBinder nativeConnect(int clientFd);
 
-    private native boolean nativeIsOk(int clientFd);
-
     /*
      * Spawns a new virtmgr subprocess that will host a VirtualizationService
      * AIDL service.
@@ -66,6 +92,13 @@ class VirtualizationService {
             throw new VirtualMachineException("Could not connect to VirtualizationService");
         }
         mBinder = IVirtualizationService.Stub.asInterface(binder);
+        try {
+            // Rather than polling the client FD on every use, find out when virtmgr exits.
+            AtomicBoolean dead = mDead;
+            binder.linkToDeath(() -> dead.set(true), 0);
+        } catch (RemoteException e) {
+            throw new VirtualMachineException("VirtualizationService died on startup", e);
+        }
     }
 
     /* Returns the IVirtualizationService binder. */
@@ -75,25 +108,97 @@ class VirtualizationService {
     }
 
     /*
-     * Checks the state of the client FD. Returns false if the FD is in erroneous state
-     * or if the other endpoint had closed its FD.
+     * Returns the version of the format of partitions initialized by initializeWritablePartition.
+     * It is fixed for a given virtmgr, so it is only queried once.
      */
-    private boolean isOk() {
-        return nativeIsOk(mClientFd.getFd());
+    int getWritablePartitionFormatVersion() {
+        int version = mWritablePartitionFormatVersion;
+        if (version < 0) {
+            try {
+                version = mBinder.getWritablePartitionFormatVersion();
+            } catch (RemoteException e) {
+                throw e.rethrowAsRuntimeException();
+            }
+            mWritablePartitionFormatVersion = version;
+        }
+        return version;
     }
 
     /*
-     * Returns an instance of this class. Might spawn a new instance if one doesn't exist, or
-     * if the previous instance had crashed.
+     * Returns false if virtmgr has exited, for example because it crashed. Any VM using this
+     * instance will have been told that it stopped.
+     */
+    boolean isOk() {
+        return !mDead.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static WeakReference<VirtualizationService>[] newShardArray(int shardCount) {
+        return (WeakReference<VirtualizationService>[]) new WeakReference<?>[shardCount];
+    }
+
+    /*
+     * Sets the number of instances of this class, i.e. of virtmgr processes, among which VMs are
+     * spread. Each instance is spawned, health-checked and respawned independently, so a busy or
+     * crashed virtmgr only affects the VMs assigned to it. VMs already using an instance keep it.
+     */
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    static void setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+        }
+        sInstances = Arrays.copyOf(sInstances, shardCount);
+        sPrewarmedInstances = Arrays.copyOf(sPrewarmedInstances, shardCount);
+    }
+
+    /*
+     * Returns the instance of this class for the shard the named VM is assigned to. Might spawn a
+     * new instance if one doesn't exist, or if the previous instance had crashed.
+     */
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    @NonNull
+    static VirtualizationService getInstance(@NonNull String vmName)
+            throws VirtualMachineException {
+        return getShard(getShardIndex(vmName, sInstances.length));
+    }
+
+    /* Returns the shard, between 0 and shardCount - 1, which the named VM is assigned to. */
+    @VisibleForTesting
+    static int getShardIndex(@NonNull String vmName, int shardCount) {
+        return Math.floorMod(vmName.hashCode(), shardCount);
+    }
+
+    /*
+     * Returns an instance of this class, for calls which are not specific to a VM. Might spawn a
+     * new instance if one doesn't exist, or if the previous instance had crashed.
      */
     @GuardedBy("VirtualMachineManager.sCreateLock")
     @NonNull
     static VirtualizationService getInstance() throws VirtualMachineException {
-        VirtualizationService service = (sInstance == null) ? null : sInstance.get();
+        return getShard(0);
+    }
+
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    @NonNull
+    private static VirtualizationService getShard(int shard) throws VirtualMachineException {
+        WeakReference<VirtualizationService> ref = sInstances[shard];
+        VirtualizationService service = (ref == null) ? null : ref.get();
         if (service == null || !service.isOk()) {
             service = new VirtualizationService();
-            sInstance = new WeakReference<>(service);
+            sInstances[shard] = new WeakReference<>(service);
         }
+        sPrewarmedInstances[shard] = null;
         return service;
     }
+
+    /*
+     * Makes sure that an instance of this class exists for every shard, spawning them if
+     * necessary, and keeps each alive until it is next returned by getInstance().
+     */
+    @GuardedBy("VirtualMachineManager.sCreateLock")
+    static void prewarm() throws VirtualMachineException {
+        for (int shard = 0; shard < sInstances.length; shard++) {
+            sPrewarmedInstances[shard] = getShard(shard);
+        }
+    }
 }
@@ -18,11 +18,13 @@ mod dice;
 mod instance;
 mod ioutil;
 mod payload;
+mod shutdown;
 mod swap;
 mod vm_payload_service;
 
 use crate::dice::{DiceDriver, derive_sealing_key, format_payload_config_descriptor};
 use crate::instance::{ApexData, ApkData, InstanceDisk, MicrodroidData, RootHash};
+use crate::shutdown::register_shutdown_request_handler;
 use crate::vm_payload_service::register_vm_payload_service;
 use android_system_virtualizationcommon::aidl::android::system::virtualizationcommon::ErrorCode::ErrorCode;
 use android_system_virtualmachineservice::aidl::android::system::virtualmachineservice::IVirtualMachineService::IVirtualMachineService;
@@ -43,6 +45,7 @@ use keystore2_crypto::ZVec;
 use microdroid_metadata::{write_metadata, Metadata, PayloadMetadata};
 use microdroid_payload_config::{OsConfig, Task, TaskType, VmPayloadConfig};
 use nix::fcntl::{fcntl, F_SETFD, FdFlag};
+use nix::mount::{umount2, MntFlags};
 use nix::sys::signal::Signal;
 use openssl::sha::Sha512;
 use payload::{get_apex_data_from_payload, load_metadata, to_metadata};
@@ -164,7 +167,10 @@ fn get_vms_rpc_binder() -> Result<Strong<dyn IVirtualMachineService>> {
     // The host is running a VirtualMachineService for this VM on a port equal
     // to the CID of this VM.
     let port = vsock::get_local_cid().context("Could not determine local CID")?;
-    RpcSession::new()
+    let session = RpcSession::new();
+    // The host calls back into the handler registered by register_shutdown_request_handler.
+    session.set_max_incoming_threads(1);
+    session
         .setup_vsock_client(VMADDR_CID_HOST, port)
         .context("Could not connect to IVirtualMachineService")
 }
@@ -216,8 +222,20 @@ fn try_main() -> Result<()> {
         .context("cannot connect to VirtualMachineService")
         .map_err(|e| MicrodroidError::FailedToConnectToVirtualizationService(e.to_string()))?;
 
+    if let Err(e) = register_shutdown_request_handler(&service) {
+        // The VM still works, but the host can only stop it abruptly.
+        warn!("{:?}", e);
+    }
+
     match try_run_payload(&service) {
-        Ok(code) => {
+        Ok(None) => {
+            // The host asked for the VM to shut down before the payload was started. Power off,
+            // which the host sees as the VM stopping, and not as an error.
+            info!("shut down before the payload started");
+            unmount_encryptedstore();
+            Ok(())
+        }
+        Ok(Some(code)) => {
             if code == 0 {
                 info!("task successfully finished");
             } else {
@@ -230,6 +248,9 @@ fn try_main() -> Result<()> {
                     e
                 );
             };
+            if shutdown::is_shutdown_requested() {
+                unmount_encryptedstore();
+            }
 
             info!("notifying payload finished");
             service.notifyPayloadFinished(code)?;
@@ -265,6 +286,17 @@ fn post_payload_work() -> Result<()> {
     }
     Ok(())
 }
+
+/// Unmounts the encrypted storage, so that its filesystem is clean when the VM powers off.
+fn unmount_encryptedstore() {
+    if Path::new(ENCRYPTEDSTORE_BACKING_DEVICE).exists() {
+        if let Err(e) = umount2(ENCRYPTEDSTORE_MOUNTPOINT, MntFlags::empty()) {
+            // init unmounts what it can as it shuts down anyway.
+            warn!("failed to unmount encrypted storage: {:?}", e);
+        }
+    }
+}
+
 fn dice_derivation(
     dice: DiceDriver,
     verified_data: &MicrodroidData,
@@ -330,7 +362,9 @@ fn get_debug_policy_bool(path: &'static str) -> Result<Option<bool>> {
     Ok(Some(u32::from_be_bytes(log) == 1))
 }
 
-fn try_run_payload(service: &Strong<dyn IVirtualMachineService>) -> Result<i32> {
+/// Runs the payload, and returns its exit code. Returns None if the host asked for the VM to shut
+/// down before the payload was started.
+fn try_run_payload(service: &Strong<dyn IVirtualMachineService>) -> Result<Option<i32>> {
     let metadata = load_metadata().context("Failed to load payload metadata")?;
     let dice = DiceDriver::new(Path::new("/dev/open-dice0")).context("Failed to load DICE")?;
 
@@ -456,6 +490,11 @@ fn try_run_payload(service: &Strong<dyn IVirtualMachineService>) -> Result<i32>
         let exitcode = child.wait().context("Wait for encryptedstore child")?;
         ensure!(exitcode.success(), "Unable to prepare encrypted storage. Exitcode={}", exitcode);
     }
+    // Shutting down is deferred until the encrypted storage is set up, so that its filesystem is
+    // never left half made.
+    if shutdown::is_shutdown_requested() {
+        return Ok(None);
+    }
 
     wait_for_property_true("dev.bootcomplete").context("failed waiting for dev.bootcomplete")?;
     system_properties::write("microdroid_manager.init_done", "1")
@@ -815,8 +854,9 @@ fn load_crashkernel_if_supported() -> Result<()> {
     Ok(())
 }
 
-/// Executes the given task.
-fn exec_task(task: &Task, service: &Strong<dyn IVirtualMachineService>) -> Result<i32> {
+/// Executes the given task, and returns its exit code. Returns None if the host asked for the VM
+/// to shut down before the task was started.
+fn exec_task(task: &Task, service: &Strong<dyn IVirtualMachineService>) -> Result<Option<i32>> {
     info!("executing main task {:?}...", task);
     let mut command = match task.type_ {
         TaskType::Executable => Command::new(&task.command),
@@ -849,9 +889,20 @@ fn exec_task(task: &Task, service: &Strong<dyn IVirtualMachineService>) -> Resul
     info!("notifying payload started");
     service.notifyPayloadStarted()?;
 
-    let exit_status = command.spawn()?.wait()?;
+    let mut child = match shutdown::spawn_payload(&mut command)? {
+        Some(child) => child,
+        None => return Ok(None),
+    };
+    let exit_status = child.wait()?;
+    if shutdown::is_shutdown_requested() {
+        // The payload was stopped on the host's request, which is not a failure of the payload.
+        info!("payload stopped for shutdown: {:?}", exit_status);
+        return Ok(Some(
+            exit_status.code().unwrap_or_else(|| 128 + exit_status.signal().unwrap_or(0)),
+        ));
+    }
     match exit_status.code() {
-        Some(exit_code) => Ok(exit_code),
+        Some(exit_code) => Ok(Some(exit_code)),
         None => Err(match exit_status.signal() {
             Some(signal) => anyhow!(
                 "Payload exited due to signal: {} ({})",
@@ -898,7 +949,12 @@ fn prepare_encryptedstore(dice_artifacts: &OwnedDiceArtifacts) -> Result<Child>
         .arg(ENCRYPTEDSTORE_BACKING_DEVICE)
         .arg("--key")
         .arg(hex::encode(&*key))
-        .args(["--mountpoint", ENCRYPTEDSTORE_MOUNTPOINT])
-        .spawn()
-        .context("encryptedstore failed")
+        .args(["--mountpoint", ENCRYPTEDSTORE_MOUNTPOINT]);
+    // Discards show the host which blocks of the storage are unused, so they are only passed
+    // through in VMs which the host isn't kept from seeing into anyway. pvmfw, which only boots
+    // protected VMs, always requests strict boot.
+    if !is_strict_boot() {
+        cmd.arg("--allow-discards");
+    }
+    cmd.spawn().context("encryptedstore failed")
 }
@@ -0,0 +1,88 @@
+// Copyright 2023, The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+//! Handling of requests from the host to shut the VM down cleanly.
+
+use android_system_virtualmachineservice::aidl::android::system::virtualmachineservice::{
+    IShutdownRequestHandler::{BnShutdownRequestHandler, IShutdownRequestHandler},
+    IVirtualMachineService::IVirtualMachineService,
+};
+use anyhow::{Context, Result};
+use binder::{BinderFeatures, Interface, Strong};
+use log::{error, info};
+use nix::sys::signal::{kill, Signal};
+use nix::unistd::Pid;
+use std::process::{Child, Command};
+use std::sync::Mutex;
+
+/// The payload process, as far as shutting down is concerned.
+enum PayloadProcess {
+    NotStarted,
+    Running(Pid),
+    ShutdownRequested,
+}
+
+static PAYLOAD_PROCESS: Mutex<PayloadProcess> = Mutex::new(PayloadProcess::NotStarted);
+
+/// Spawns the payload, unless the host has already asked for the VM to shut down.
+pub fn spawn_payload(command: &mut Command) -> Result<Option<Child>> {
+    let mut process = PAYLOAD_PROCESS.lock().unwrap();
+    if let PayloadProcess::ShutdownRequested = *process {
+        return Ok(None);
+    }
+    let child = command.spawn()?;
+    *process = PayloadProcess::Running(Pid::from_raw(child.id() as i32));
+    Ok(Some(child))
+}
+
+/// Returns whether the host has asked for the VM to shut down.
+pub fn is_shutdown_requested() -> bool {
+    matches!(*PAYLOAD_PROCESS.lock().unwrap(), PayloadProcess::ShutdownRequested)
+}
+
+/// Registers with the host to receive its shutdown requests.
+pub fn register_shutdown_request_handler(
+    service: &Strong<dyn IVirtualMachineService>,
+) -> Result<()> {
+    let handler =
+        BnShutdownRequestHandler::new_binder(ShutdownRequestHandler, BinderFeatures::default());
+    service.setShutdownRequestHandler(&handler).context("Failed to register shutdown handler")
+}
+
+struct ShutdownRequestHandler;
+
+impl Interface for ShutdownRequestHandler {}
+
+impl IShutdownRequestHandler for ShutdownRequestHandler {
+    fn onShutdownRequested(&self) -> binder::Result<()> {
+        info!("shutdown requested by the host");
+        let mut process = PAYLOAD_PROCESS.lock().unwrap();
+        match *process {
+            PayloadProcess::NotStarted => {
+                // The main thread may still be setting up the encrypted storage, so it powers off
+                // once that is done, instead of starting the payload.
+            }
+            PayloadProcess::Running(pid) => {
+                // Once the payload has exited, the main thread syncs and unmounts the storage and
+                // then powers off.
+                if let Err(e) = kill(pid, Signal::SIGTERM) {
+                    error!("failed to stop the payload: {:?}", e);
+                }
+            }
+            PayloadProcess::ShutdownRequested => return Ok(()),
+        }
+        *process = PayloadProcess::ShutdownRequested;
+        Ok(())
+    }
+}
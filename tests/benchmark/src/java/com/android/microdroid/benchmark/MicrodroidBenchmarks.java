@@ -296,6 +296,31 @@ public class MicrodroidBenchmarks extends MicrodroidDeviceTestBase {
         reportMetrics(transferRates, "vsock/transfer_host_to_vm", "mb_per_sec");
     }
 
+    @Test
+    public void testVsockSendFileFromHostToVM() throws Exception {
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadConfigPath("assets/vm_config_io.json")
+                        .setDebugLevel(DEBUG_LEVEL_NONE)
+                        .build();
+        List<Double> transferRates = new ArrayList<>(IO_TEST_TRIAL_COUNT);
+
+        File source = File.createTempFile("vsock_send_file", null, getContext().getCacheDir());
+        try {
+            Files.write(source.toPath(), new byte[VsockListener.NUM_BYTES_TO_TRANSFER]);
+            for (int i = 0; i < IO_TEST_TRIAL_COUNT; ++i) {
+                int port = (mProtectedVm ? 5766 : 6766) + i;
+                String vmName = "test_vm_io_send_file_" + i;
+                VirtualMachine vm = forceCreateNewVirtualMachine(vmName, config);
+                BenchmarkVmListener.create(new VsockListener(transferRates, port, source))
+                        .runToFinish(TAG, vm);
+            }
+        } finally {
+            source.delete();
+        }
+        reportMetrics(transferRates, "vsock/send_file_host_to_vm", "mb_per_sec");
+    }
+
     @Test
     public void testVirtioBlkSeqReadRate() throws Exception {
         testVirtioBlkReadRate(/*isRand=*/ false);
@@ -616,10 +641,17 @@ public class MicrodroidBenchmarks extends MicrodroidDeviceTestBase {
 
         private final List<Double> mReadRates;
         private final int mPort;
+        // If set, the data is sent from this file with VirtualMachine.sendFile.
+        private final File mSource;
 
         VsockListener(List<Double> readRates, int port) {
+            this(readRates, port, null);
+        }
+
+        VsockListener(List<Double> readRates, int port, File source) {
             mReadRates = readRates;
             mPort = port;
+            mSource = source;
         }
 
         @Override
@@ -639,6 +671,9 @@ public class MicrodroidBenchmarks extends MicrodroidDeviceTestBase {
         }
 
         private double runVsockClientAndSendData(VirtualMachine vm) {
+            if (mSource != null) {
+                return runSendFile(vm);
+            }
             try {
                 ParcelFileDescriptor fd = vm.connectVsock(mPort);
                 double sendRate =
@@ -650,6 +685,17 @@ public class MicrodroidBenchmarks extends MicrodroidDeviceTestBase {
                 throw new RuntimeException(e);
             }
         }
+
+        private double runSendFile(VirtualMachine vm) {
+            try (ParcelFileDescriptor source =
+                    ParcelFileDescriptor.open(mSource, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                VirtualMachine.TransferResult result = vm.sendFile(source, mPort);
+                return result.getBytesPerSecond() / SIZE_MB;
+            } catch (Exception e) {
+                Log.e(TAG, "Error inside runSendFile():" + e);
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     @Test
@@ -16,12 +16,22 @@
 package com.android.microdroid.test;
 
 import static android.system.virtualmachine.VirtualMachine.STATUS_DELETED;
+import static android.system.virtualmachine.VirtualMachine.STATUS_PAUSED;
 import static android.system.virtualmachine.VirtualMachine.STATUS_RUNNING;
 import static android.system.virtualmachine.VirtualMachine.STATUS_STOPPED;
+import static android.system.virtualmachine.VirtualMachineConfig.CPU_CLUSTER_ANY;
+import static android.system.virtualmachine.VirtualMachineConfig.CPU_CLUSTER_BIG;
 import static android.system.virtualmachine.VirtualMachineConfig.CPU_TOPOLOGY_MATCH_HOST;
 import static android.system.virtualmachine.VirtualMachineConfig.CPU_TOPOLOGY_ONE_CPU;
 import static android.system.virtualmachine.VirtualMachineConfig.DEBUG_LEVEL_FULL;
 import static android.system.virtualmachine.VirtualMachineConfig.DEBUG_LEVEL_NONE;
+import static android.system.virtualmachine.VirtualMachineConfig.IO_PRIORITY_DEFAULT;
+import static android.system.virtualmachine.VirtualMachineConfig.IO_PRIORITY_HIGH;
+import static android.system.virtualmachine.VirtualMachineConfig.IO_PRIORITY_LOW;
+import static android.system.virtualmachine.VirtualMachineConfig.QOS_CLASS_BACKGROUND;
+import static android.system.virtualmachine.VirtualMachineConfig.QOS_CLASS_DEFAULT;
+import static android.system.virtualmachine.VirtualMachineConfig.QOS_CLASS_LATENCY_SENSITIVE;
+import static android.system.virtualmachine.VirtualMachineConfig.QOS_CLASS_THROUGHPUT;
 import static android.system.virtualmachine.VirtualMachineManager.CAPABILITY_NON_PROTECTED_VM;
 import static android.system.virtualmachine.VirtualMachineManager.CAPABILITY_PROTECTED_VM;
 
@@ -48,6 +58,10 @@ import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
+import android.os.PersistableBundle;
+import android.os.Process;
+import android.os.SharedMemory;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.system.OsConstants;
 import android.system.virtualmachine.VirtualMachine;
@@ -83,6 +97,7 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -90,19 +105,31 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.OptionalLong;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 import co.nstant.in.cbor.CborDecoder;
 import co.nstant.in.cbor.model.Array;
@@ -209,6 +236,230 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThat(testResults.mAddInteger).isEqualTo(37 + 73);
     }
 
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void runVmWithEachQosClassAndIoPriority() throws Exception {
+        assumeSupportedDevice();
+
+        // Each QoS class and IO priority maps to task profiles, which crosvm fails to start
+        // without if the device doesn't define them. Together these cover every profile.
+        int[][] qosClassAndIoPriorities = {
+            {QOS_CLASS_LATENCY_SENSITIVE, IO_PRIORITY_HIGH},
+            {QOS_CLASS_THROUGHPUT, IO_PRIORITY_LOW},
+            {QOS_CLASS_BACKGROUND, IO_PRIORITY_LOW},
+        };
+        for (int[] qosClassAndIoPriority : qosClassAndIoPriorities) {
+            VirtualMachineConfig config =
+                    newVmConfigBuilder()
+                            .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                            .setMemoryBytes(minMemoryRequired())
+                            .setDebugLevel(DEBUG_LEVEL_FULL)
+                            .setQosClass(qosClassAndIoPriority[0])
+                            .setIoPriority(qosClassAndIoPriority[1])
+                            .build();
+            VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_qos", config);
+
+            TestResults testResults =
+                    runVmTestService(TAG, vm, (ts, tr) -> tr.mAddInteger = ts.addInteger(37, 73));
+            testResults.assertNoException();
+            assertThat(testResults.mAddInteger).isEqualTo(37 + 73);
+        }
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void pauseAndResumeVm() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_pause", config);
+
+        assertThrowsVmExceptionContaining(vm::pause, "not running");
+
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            vm.pause();
+                            assertThat(vm.getStatus()).isEqualTo(STATUS_PAUSED);
+                            assertThrowsVmException(vm::pause);
+                            vm.resume();
+                            assertThat(vm.getStatus()).isEqualTo(STATUS_RUNNING);
+                            // The connection made before pausing still works.
+                            tr.mAddInteger = ts.addInteger(37, 73);
+                        });
+        testResults.assertNoException();
+        assertThat(testResults.mAddInteger).isEqualTo(37 + 73);
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void getResourceUsage() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_resource_usage", config);
+
+        assertThrowsVmExceptionContaining(vm::getResourceUsage, "not running");
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> vm.setResourceUsageSamplingPeriod(Duration.ofMillis(10)));
+
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            VirtualMachine.ResourceUsage usage = vm.getResourceUsage();
+                            assertThat(usage.getGuestRssBytes()).isGreaterThan(0);
+                            assertThat(usage.getHostRssBytes()).isGreaterThan(0);
+                            assertThat(usage.getCpuTimeMillis())
+                                    .isAtLeast(usage.getVcpuTimeMillis());
+                        });
+        testResults.assertNoException();
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void setMemoryTargetReclaimsGuestMemory() throws Exception {
+        assumeSupportedDevice();
+        assumeTrue(
+                "Memory reclaim is not supported",
+                SystemProperties.getBoolean("hypervisor.memory_reclaim.supported", false));
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_memory_target", config);
+        long memoryBytes = config.getMemoryBytes();
+        long targetBytes = memoryBytes * 3 / 4;
+
+        assertThrowsVmExceptionContaining(() -> vm.setMemoryTarget(targetBytes), "not running");
+        assertThrowsVmExceptionContaining(vm::getMemoryStats, "not running");
+
+        AtomicReference<VirtualMachine.MemoryStats> initialStats = new AtomicReference<>();
+        AtomicReference<VirtualMachine.MemoryStats> shrunkStats = new AtomicReference<>();
+        AtomicReference<VirtualMachine.MemoryStats> regrownStats = new AtomicReference<>();
+        AtomicReference<VirtualMachineException> tooLargeTargetException = new AtomicReference<>();
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            initialStats.set(vm.getMemoryStats());
+                            try {
+                                vm.setMemoryTarget(memoryBytes + 1);
+                            } catch (VirtualMachineException e) {
+                                tooLargeTargetException.set(e);
+                            }
+
+                            vm.setMemoryTarget(targetBytes);
+                            shrunkStats.set(
+                                    waitForMemoryStats(
+                                            vm, stats -> stats.getCurrentBytes() <= targetBytes));
+
+                            vm.setMemoryTarget(memoryBytes);
+                            regrownStats.set(
+                                    waitForMemoryStats(
+                                            vm, stats -> stats.getReclaimedBytes() == 0));
+                        });
+        testResults.assertNoException();
+
+        assertThat(initialStats.get().getTotalBytes()).isEqualTo(memoryBytes);
+        assertThat(initialStats.get().getReclaimedBytes()).isEqualTo(0);
+        assertThat(tooLargeTargetException.get()).isNotNull();
+        assertThat(shrunkStats.get().getReclaimedBytes()).isAtLeast(memoryBytes - targetBytes);
+        assertThat(shrunkStats.get().getCurrentBytes()).isAtMost(targetBytes);
+        assertThat(regrownStats.get().getReclaimedBytes()).isEqualTo(0);
+        assertThat(regrownStats.get().getCurrentBytes()).isEqualTo(memoryBytes);
+
+        // The VM stops once the test service quits.
+        assertThrowsVmExceptionContaining(() -> vm.setMemoryTarget(targetBytes), "not running");
+        assertThrowsVmExceptionContaining(vm::getMemoryStats, "not running");
+    }
+
+    /**
+     * Polls the memory stats of {@code vm} until they satisfy {@code condition}, which the balloon
+     * may take some time to bring about, and returns them. Returns the last stats if that doesn't
+     * happen within the timeout, for the caller to fail on.
+     */
+    private static VirtualMachine.MemoryStats waitForMemoryStats(
+            VirtualMachine vm, Predicate<VirtualMachine.MemoryStats> condition)
+            throws VirtualMachineException, InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + Duration.ofSeconds(30).toMillis();
+        VirtualMachine.MemoryStats stats = vm.getMemoryStats();
+        while (!condition.test(stats) && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(100);
+            stats = vm.getMemoryStats();
+        }
+        return stats;
+    }
+
+    @Test
+    public void sharedMemoryIsVisibleToHostAndGuest() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_shared_memory", config);
+
+        try (SharedMemory memory = SharedMemory.create("test_vm_shared_memory", 2 * 1024 * 1024)) {
+            vm.setSharedMemory(memory);
+            if (isProtectedVm()) {
+                assertThrowsVmExceptionContaining(vm::run, "not supported for protected VMs");
+                return;
+            }
+            String hostMessage = "Hello from the host";
+            String guestMessage = "Hello from the guest";
+            ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.put(hostMessage.getBytes(StandardCharsets.UTF_8));
+                AtomicBoolean hasSharedMemory = new AtomicBoolean();
+                TestResults testResults =
+                        runVmTestService(
+                                TAG,
+                                vm,
+                                (ts, tr) -> {
+                                    hasSharedMemory.set(ts.hasSharedMemory());
+                                    if (hasSharedMemory.get()) {
+                                        tr.mFileContent =
+                                                ts.readFromSharedMemory(hostMessage.length());
+                                        ts.writeToSharedMemory(guestMessage);
+                                    }
+                                });
+                testResults.assertNoException();
+                // The guest kernel needs virtio_pmem to access the shared memory.
+                assumeTrue("Guest has no shared memory device", hasSharedMemory.get());
+                assertThat(testResults.mFileContent).isEqualTo(hostMessage);
+
+                byte[] bytes = new byte[guestMessage.length()];
+                buffer.position(0);
+                buffer.get(bytes);
+                assertThat(new String(bytes, StandardCharsets.UTF_8)).isEqualTo(guestMessage);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+        }
+    }
+
     @Test
     @CddTest(
             requirements = {
@@ -369,6 +620,223 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThrowsVmException(() -> getVirtualMachineManager().delete("test_vm"));
     }
 
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void restartRunsVmAgain() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_restart", config);
+
+        // A stopped VM is simply run.
+        vm.restart();
+        assertThat(vm.getStatus()).isEqualTo(STATUS_RUNNING);
+
+        vm.restart();
+        assertThat(vm.getStatus()).isEqualTo(STATUS_RUNNING);
+        vm.stop();
+
+        // The VM still works normally after being restarted.
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            tr.mAddInteger = ts.addInteger(123, 456);
+                        });
+        testResults.assertNoException();
+        assertThat(testResults.mAddInteger).isEqualTo(123 + 456);
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void shutdownStopsVm() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_shutdown", config);
+        assertThrowsVmExceptionContaining(
+                () -> vm.shutdown(Duration.ofSeconds(1)), "not running");
+
+        vm.run();
+        assertThat(vm.getStatus()).isEqualTo(STATUS_RUNNING);
+
+        Duration timeout = Duration.ofSeconds(10);
+        VirtualMachine.ShutdownResult result = vm.shutdown(timeout);
+        assertThat(vm.getStatus()).isEqualTo(STATUS_STOPPED);
+        // Whether or not the VM shuts down cleanly, it's stopped soon after the timeout at most.
+        assertThat(result.getDuration()).isLessThan(timeout.plusSeconds(5));
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void vmIsStoppedWhenVirtualizationServiceDies() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_service_died", config);
+        AtomicInteger stopReason = new AtomicInteger(-1);
+        VmEventListener listener =
+                new VmEventListener() {
+                    @Override
+                    public void onPayloadReady(VirtualMachine vm) {
+                        try {
+                            for (int pid : getVirtmgrPids()) {
+                                Process.killProcess(pid);
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override
+                    public void onStopped(VirtualMachine vm, int reason) {
+                        stopReason.set(reason);
+                        super.onStopped(vm, reason);
+                    }
+                };
+        listener.runToFinish(TAG, vm);
+
+        assertThat(stopReason.get())
+                .isEqualTo(VirtualMachineCallback.STOP_REASON_VIRTUALIZATION_SERVICE_DIED);
+        // The VM can't be asked for its state any more, but it is known to have stopped.
+        assertThat(vm.getStatus()).isEqualTo(STATUS_STOPPED);
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void shutdownOfRunningPayloadIsGraceful() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setEncryptedStorageBytes(4_000_000)
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_graceful_shutdown", config);
+        Duration timeout = Duration.ofMinutes(1);
+        vm.run();
+        ITestService testService =
+                ITestService.Stub.asInterface(
+                        vm.connectToVsockServerAsync(ITestService.SERVICE_PORT, timeout).get());
+        testService.writeToFile(
+                /* content= */ EXAMPLE_STRING, /* path= */ "/mnt/encryptedstore/test_file");
+
+        // The test payload exits on SIGTERM, so the VM powers itself off well within the timeout.
+        VirtualMachine.ShutdownResult result = vm.shutdown(Duration.ofSeconds(30));
+        assertThat(result.isGraceful()).isTrue();
+        assertThat(vm.getStatus()).isEqualTo(STATUS_STOPPED);
+
+        vm.run();
+        try {
+            testService =
+                    ITestService.Stub.asInterface(
+                            vm.connectToVsockServerAsync(ITestService.SERVICE_PORT, timeout).get());
+            assertThat(testService.readFromFile("/mnt/encryptedstore/test_file"))
+                    .isEqualTo(EXAMPLE_STRING);
+        } finally {
+            vm.stop();
+        }
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void connectToVsockServerAsyncWaitsForPayload() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_vsock_async", config);
+        Duration timeout = Duration.ofMinutes(1);
+        assertThrowsVmExceptionContaining(
+                () -> vm.connectToVsockServerAsync(ITestService.SERVICE_PORT, timeout),
+                "not running");
+
+        vm.run();
+        try {
+            // Called straight after run(), before the server in the VM can be listening.
+            ITestService testService =
+                    ITestService.Stub.asInterface(
+                            vm.connectToVsockServerAsync(ITestService.SERVICE_PORT, timeout)
+                                    .get());
+            assertThat(testService.addInteger(123, 456)).isEqualTo(123 + 456);
+        } finally {
+            vm.stop();
+        }
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void runFromSnapshotResumesReadyPayload() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_snapshot", config);
+        Duration timeout = Duration.ofMinutes(1);
+        vm.run();
+        if (mProtectedVm) {
+            try {
+                assertThrowsVmExceptionContaining(vm::snapshot, "protected");
+                assertThat(vm.getStatus()).isEqualTo(VirtualMachine.STATUS_RUNNING);
+            } finally {
+                vm.stop();
+            }
+            return;
+        }
+        ITestService testService =
+                ITestService.Stub.asInterface(
+                        vm.connectToVsockServerAsync(ITestService.SERVICE_PORT, timeout).get());
+        assertThat(testService.addInteger(1, 2)).isEqualTo(3);
+
+        vm.snapshot();
+        assertThat(vm.getStatus()).isEqualTo(VirtualMachine.STATUS_STOPPED);
+        assertThat(vm.hasSnapshot()).isTrue();
+
+        vm.runFromSnapshot();
+        try {
+            assertThat(vm.hasSnapshot()).isFalse();
+            // The payload was ready when the snapshot was taken, and the guest keeps its CID, so
+            // the server in the VM is reachable straight away without waiting for a boot.
+            testService =
+                    ITestService.Stub.asInterface(
+                            vm.connectToVsockServer(ITestService.SERVICE_PORT));
+            assertThat(testService.addInteger(123, 456)).isEqualTo(123 + 456);
+            testService =
+                    ITestService.Stub.asInterface(
+                            vm.connectToVsockServerAsync(ITestService.SERVICE_PORT, timeout)
+                                    .get(5, TimeUnit.SECONDS));
+            assertThat(testService.addInteger(4, 5)).isEqualTo(9);
+        } finally {
+            vm.stop();
+        }
+    }
+
     @Test
     @CddTest(requirements = {"9.17/C-1-1"})
     public void connectVsock() throws Exception {
@@ -408,6 +876,84 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThat(response.get()).isEqualTo(new StringBuilder(request).reverse().toString());
     }
 
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void sendFileIsReceivedInFull() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_send_file", config);
+        // Not a whole number of chunks, so that the last chunk is partial.
+        byte[] content = new byte[3 * (int) ONE_MEBI + 123];
+        Arrays.fill(content, (byte) 0x5a);
+        File file = new File(getContext().getFilesDir(), "send_file_source");
+        Files.write(file.toPath(), content);
+        int chunkSizeBytes = 256 * 1024;
+
+        AtomicLong fileSent = new AtomicLong();
+        AtomicLong fileReceived = new AtomicLong();
+        AtomicLong pipeSent = new AtomicLong();
+        AtomicLong pipeReceived = new AtomicLong();
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            ts.runByteCountServer();
+                            try (ParcelFileDescriptor source =
+                                    ParcelFileDescriptor.open(
+                                            file, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                                fileSent.set(
+                                        vm.sendFile(
+                                                        source,
+                                                        ITestService.BYTE_COUNT_PORT,
+                                                        chunkSizeBytes,
+                                                        null,
+                                                        null)
+                                                .getBytesTransferred());
+                            }
+                            fileReceived.set(ts.takeReceivedByteCount());
+
+                            // sendfile(2) can't read from a pipe, so this is copied instead.
+                            ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                            CompletableFuture<Void> written = new CompletableFuture<>();
+                            new Thread(
+                                            () -> {
+                                                try (OutputStream out =
+                                                        new AutoCloseOutputStream(pipe[1])) {
+                                                    out.write(content);
+                                                    written.complete(null);
+                                                } catch (IOException e) {
+                                                    written.completeExceptionally(e);
+                                                }
+                                            })
+                                    .start();
+                            try (ParcelFileDescriptor source = pipe[0]) {
+                                pipeSent.set(
+                                        vm.sendFile(
+                                                        source,
+                                                        ITestService.BYTE_COUNT_PORT,
+                                                        chunkSizeBytes,
+                                                        null,
+                                                        null)
+                                                .getBytesTransferred());
+                            }
+                            written.get();
+                            pipeReceived.set(ts.takeReceivedByteCount());
+                        });
+        file.delete();
+        testResults.assertNoException();
+        assertThat(fileSent.get()).isEqualTo(content.length);
+        assertThat(fileReceived.get()).isEqualTo(fileSent.get());
+        assertThat(pipeSent.get()).isEqualTo(content.length);
+        assertThat(pipeReceived.get()).isEqualTo(pipeSent.get());
+    }
+
     @Test
     @CddTest(requirements = {"9.17/C-1-1"})
     public void binderCallbacksWork() throws Exception {
@@ -472,12 +1018,18 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThat(minimal.getDebugLevel()).isEqualTo(DEBUG_LEVEL_NONE);
         assertThat(minimal.getMemoryBytes()).isEqualTo(0);
         assertThat(minimal.getCpuTopology()).isEqualTo(CPU_TOPOLOGY_ONE_CPU);
+        assertThat(minimal.getCpuCount()).isEqualTo(0);
+        assertThat(minimal.getCpuAffinityMask()).isEqualTo(0);
+        assertThat(minimal.getCpuCluster()).isEqualTo(CPU_CLUSTER_ANY);
+        assertThat(minimal.getQosClass()).isEqualTo(QOS_CLASS_DEFAULT);
+        assertThat(minimal.getIoPriority()).isEqualTo(IO_PRIORITY_DEFAULT);
         assertThat(minimal.getPayloadBinaryName()).isEqualTo("binary.so");
         assertThat(minimal.getPayloadConfigPath()).isNull();
         assertThat(minimal.isProtectedVm()).isEqualTo(isProtectedVm());
         assertThat(minimal.isEncryptedStorageEnabled()).isFalse();
         assertThat(minimal.getEncryptedStorageBytes()).isEqualTo(0);
         assertThat(minimal.isVmOutputCaptured()).isEqualTo(false);
+        assertThat(minimal.getDataDisks()).isEmpty();
 
         // Maximal has everything that can be set to some non-default value. (And has different
         // values than minimal for the required fields.)
@@ -489,26 +1041,125 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
                         .setDebugLevel(DEBUG_LEVEL_FULL)
                         .setMemoryBytes(42)
                         .setCpuTopology(CPU_TOPOLOGY_MATCH_HOST)
+                        .setCpuCluster(CPU_CLUSTER_BIG)
+                        .setQosClass(QOS_CLASS_LATENCY_SENSITIVE)
+                        .setIoPriority(IO_PRIORITY_HIGH)
                         .setEncryptedStorageBytes(1_000_000)
-                        .setVmOutputCaptured(true);
+                        .setVmOutputCaptured(true)
+                        .addDataDisk(new File("/data/disk"), /* readOnly= */ true);
         VirtualMachineConfig maximal = maximalBuilder.build();
 
         assertThat(maximal.getApkPath()).isEqualTo("/apk/path");
         assertThat(maximal.getDebugLevel()).isEqualTo(DEBUG_LEVEL_FULL);
         assertThat(maximal.getMemoryBytes()).isEqualTo(42);
         assertThat(maximal.getCpuTopology()).isEqualTo(CPU_TOPOLOGY_MATCH_HOST);
+        assertThat(maximal.getCpuCluster()).isEqualTo(CPU_CLUSTER_BIG);
+        assertThat(maximal.getQosClass()).isEqualTo(QOS_CLASS_LATENCY_SENSITIVE);
+        assertThat(maximal.getIoPriority()).isEqualTo(IO_PRIORITY_HIGH);
         assertThat(maximal.getPayloadBinaryName()).isNull();
         assertThat(maximal.getPayloadConfigPath()).isEqualTo("config/path");
         assertThat(maximal.isProtectedVm()).isEqualTo(isProtectedVm());
         assertThat(maximal.isEncryptedStorageEnabled()).isTrue();
         assertThat(maximal.getEncryptedStorageBytes()).isEqualTo(1_000_000);
         assertThat(maximal.isVmOutputCaptured()).isEqualTo(true);
+        assertThat(maximal.getDataDisks()).hasSize(1);
+        assertThat(maximal.getDataDisks().get(0).getImage()).isEqualTo(new File("/data/disk"));
+        assertThat(maximal.getDataDisks().get(0).isReadOnly()).isTrue();
 
         assertThat(minimal.isCompatibleWith(maximal)).isFalse();
         assertThat(minimal.isCompatibleWith(minimal)).isTrue();
         assertThat(maximal.isCompatibleWith(maximal)).isTrue();
     }
 
+    @Test
+    public void vmConfigIsPersistedInBinaryFormat() throws Exception {
+        assumeSupportedDevice();
+
+        File dataDisk = new File(getContext().getFilesDir(), "persisted_config_disk.img");
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .setMemoryBytes(minMemoryRequired())
+                        .setCpuCount(2)
+                        .setCpuAffinityMask(0b11)
+                        .setQosClass(QOS_CLASS_LATENCY_SENSITIVE)
+                        .setIoPriority(IO_PRIORITY_HIGH)
+                        .setEncryptedStorageBytes(4_000_000)
+                        .setVmOutputCaptured(true)
+                        .addDataDisk(dataDisk, /* readOnly= */ true)
+                        .build();
+        forceCreateNewVirtualMachine("test_vm_persisted_config", config);
+        assertThat(readConfigMagic("test_vm_persisted_config")).isEqualTo("AVMC");
+
+        VirtualMachineConfig loaded =
+                loadCopyOfVm("test_vm_persisted_config", "test_vm_persisted_config_copy")
+                        .getConfig();
+        assertThat(loaded.isCompatibleWith(config)).isTrue();
+        assertThat(loaded.getApkPath()).isNull();
+        assertThat(loaded.getPayloadBinaryName()).isEqualTo("MicrodroidTestNativeLib.so");
+        assertThat(loaded.getDebugLevel()).isEqualTo(DEBUG_LEVEL_FULL);
+        assertThat(loaded.isProtectedVm()).isEqualTo(isProtectedVm());
+        assertThat(loaded.getMemoryBytes()).isEqualTo(minMemoryRequired());
+        assertThat(loaded.getCpuTopology()).isEqualTo(CPU_TOPOLOGY_ONE_CPU);
+        assertThat(loaded.getCpuCount()).isEqualTo(2);
+        assertThat(loaded.getCpuAffinityMask()).isEqualTo(0b11);
+        assertThat(loaded.getCpuCluster()).isEqualTo(CPU_CLUSTER_ANY);
+        assertThat(loaded.getQosClass()).isEqualTo(QOS_CLASS_LATENCY_SENSITIVE);
+        assertThat(loaded.getIoPriority()).isEqualTo(IO_PRIORITY_HIGH);
+        assertThat(loaded.getEncryptedStorageBytes()).isEqualTo(4_000_000);
+        assertThat(loaded.isVmOutputCaptured()).isTrue();
+        assertThat(loaded.getDataDisks()).hasSize(1);
+        assertThat(loaded.getDataDisks().get(0).getImage()).isEqualTo(dataDisk);
+        assertThat(loaded.getDataDisks().get(0).isReadOnly()).isTrue();
+    }
+
+    @Test
+    public void legacyVmConfigIsMigratedToBinaryFormat() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .build();
+        forceCreateNewVirtualMachine("test_vm_legacy_config", config);
+        // Replace the config with one in the XML format which was used up to version 6.
+        PersistableBundle legacy = new PersistableBundle();
+        legacy.putInt("version", 6);
+        legacy.putString("packageName", getContext().getPackageName());
+        legacy.putString("payloadBinaryPath", "MicrodroidTestNativeLib.so");
+        legacy.putInt("debugLevel", DEBUG_LEVEL_FULL);
+        legacy.putBoolean("protectedVm", isProtectedVm());
+        legacy.putLong("memoryBytes", minMemoryRequired());
+        legacy.putInt("cpuTopology", CPU_TOPOLOGY_MATCH_HOST);
+        legacy.putBoolean("vmOutputCaptured", true);
+        try (FileOutputStream output =
+                new FileOutputStream(getVmFile("test_vm_legacy_config", "config.xml"))) {
+            legacy.writeToStream(output);
+        }
+
+        VirtualMachineConfig loaded =
+                loadCopyOfVm("test_vm_legacy_config", "test_vm_legacy_config_copy").getConfig();
+        assertThat(loaded.getPayloadBinaryName()).isEqualTo("MicrodroidTestNativeLib.so");
+        assertThat(loaded.getDebugLevel()).isEqualTo(DEBUG_LEVEL_FULL);
+        assertThat(loaded.isProtectedVm()).isEqualTo(isProtectedVm());
+        assertThat(loaded.getMemoryBytes()).isEqualTo(minMemoryRequired());
+        assertThat(loaded.getCpuTopology()).isEqualTo(CPU_TOPOLOGY_MATCH_HOST);
+        assertThat(loaded.isVmOutputCaptured()).isTrue();
+        assertThat(loaded.getQosClass()).isEqualTo(QOS_CLASS_DEFAULT);
+        assertThat(loaded.getDataDisks()).isEmpty();
+
+        // Loading the config rewrote it in the binary format, which loads the same.
+        assertThat(readConfigMagic("test_vm_legacy_config_copy")).isEqualTo("AVMC");
+        VirtualMachineConfig reloaded =
+                loadCopyOfVm("test_vm_legacy_config_copy", "test_vm_legacy_config_copy2")
+                        .getConfig();
+        assertThat(reloaded.isCompatibleWith(loaded)).isTrue();
+        assertThat(reloaded.getMemoryBytes()).isEqualTo(minMemoryRequired());
+        assertThat(reloaded.getCpuTopology()).isEqualTo(CPU_TOPOLOGY_MATCH_HOST);
+    }
+
     @Test
     @CddTest(requirements = {"9.17/C-1-1"})
     public void vmConfigBuilderValidationTests() {
@@ -520,6 +1171,7 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThrows(NullPointerException.class, () -> builder.setPayloadConfigPath(null));
         assertThrows(NullPointerException.class, () -> builder.setPayloadBinaryName(null));
         assertThrows(NullPointerException.class, () -> builder.setPayloadConfigPath(null));
+        assertThrows(NullPointerException.class, () -> builder.addDataDisk(null, true));
 
         // Individual property checks.
         assertThrows(
@@ -529,7 +1181,15 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThrows(IllegalArgumentException.class, () -> builder.setDebugLevel(-1));
         assertThrows(IllegalArgumentException.class, () -> builder.setMemoryBytes(0));
         assertThrows(IllegalArgumentException.class, () -> builder.setCpuTopology(-1));
+        assertThrows(IllegalArgumentException.class, () -> builder.setCpuCount(0));
+        assertThrows(IllegalArgumentException.class, () -> builder.setCpuAffinityMask(0));
+        assertThrows(IllegalArgumentException.class, () -> builder.setCpuCluster(-1));
+        assertThrows(IllegalArgumentException.class, () -> builder.setQosClass(-1));
+        assertThrows(IllegalArgumentException.class, () -> builder.setIoPriority(-1));
         assertThrows(IllegalArgumentException.class, () -> builder.setEncryptedStorageBytes(0));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> builder.addDataDisk(new File("relative/disk.img"), true));
 
         // Consistency checks enforced at build time.
         Exception e;
@@ -548,6 +1208,22 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
                         .setVmOutputCaptured(true);
         e = assertThrows(IllegalStateException.class, () -> captureOutputOnNonDebuggable.build());
         assertThat(e).hasMessageThat().contains("debug level must be FULL to capture output");
+
+        VirtualMachineConfig.Builder cpuCountAndTopology =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("binary.so")
+                        .setCpuCount(2)
+                        .setCpuTopology(CPU_TOPOLOGY_MATCH_HOST);
+        e = assertThrows(IllegalStateException.class, () -> cpuCountAndTopology.build());
+        assertThat(e).hasMessageThat().contains("setCpuCount and setCpuTopology");
+
+        VirtualMachineConfig.Builder cpuMaskAndCluster =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("binary.so")
+                        .setCpuAffinityMask(0b11)
+                        .setCpuCluster(CPU_CLUSTER_BIG);
+        e = assertThrows(IllegalStateException.class, () -> cpuMaskAndCluster.build());
+        assertThat(e).hasMessageThat().contains("setCpuAffinityMask and setCpuCluster");
     }
 
     @Test
@@ -563,6 +1239,9 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertConfigCompatible(
                         baseline, newBaselineBuilder().setCpuTopology(CPU_TOPOLOGY_MATCH_HOST))
                 .isTrue();
+        assertConfigCompatible(baseline, newBaselineBuilder().setCpuCount(2)).isTrue();
+        assertConfigCompatible(baseline, newBaselineBuilder().setCpuCluster(CPU_CLUSTER_BIG))
+                .isTrue();
 
         // Changes that must be incompatible, since they must change the VM identity.
         assertConfigCompatible(baseline, newBaselineBuilder().setDebugLevel(DEBUG_LEVEL_FULL))
@@ -626,76 +1305,433 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         VirtualMachineConfig config = builder.build();
         VirtualMachine vm = forceCreateNewVirtualMachine("vm_name", config);
 
-        assertThat(vm.getName()).isEqualTo("vm_name");
-        assertThat(vm.getConfig().getPayloadBinaryName()).isEqualTo("binary.so");
-        assertThat(vm.getConfig().getMemoryBytes()).isEqualTo(0);
+        assertThat(vm.getName()).isEqualTo("vm_name");
+        assertThat(vm.getConfig().getPayloadBinaryName()).isEqualTo("binary.so");
+        assertThat(vm.getConfig().getMemoryBytes()).isEqualTo(0);
+
+        VirtualMachineConfig compatibleConfig = builder.setMemoryBytes(42).build();
+        vm.setConfig(compatibleConfig);
+
+        assertThat(vm.getName()).isEqualTo("vm_name");
+        assertThat(vm.getConfig().getPayloadBinaryName()).isEqualTo("binary.so");
+        assertThat(vm.getConfig().getMemoryBytes()).isEqualTo(42);
+
+        assertThat(getVirtualMachineManager().get("vm_name")).isSameInstanceAs(vm);
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void testAvfRequiresUpdatableApex() throws Exception {
+        assertWithMessage("Devices that support AVF must also support updatable APEX")
+                .that(SystemProperties.getBoolean("ro.apex.updatable", false))
+                .isTrue();
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void vmmGetAndCreate() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        String vmName = "vmName";
+
+        try {
+            // VM does not yet exist
+            assertThat(vmm.get(vmName)).isNull();
+
+            VirtualMachine vm1 = vmm.create(vmName, config);
+
+            // Now it does, and we should get the same instance back
+            assertThat(vmm.get(vmName)).isSameInstanceAs(vm1);
+            assertThat(vmm.getOrCreate(vmName, config)).isSameInstanceAs(vm1);
+
+            // Can't recreate it though
+            assertThrowsVmException(() -> vmm.create(vmName, config));
+
+            vmm.delete(vmName);
+            assertThat(vmm.get(vmName)).isNull();
+
+            // Now that we deleted the old one, this should create rather than get, and it should be
+            // a new instance.
+            VirtualMachine vm2 = vmm.getOrCreate(vmName, config);
+            assertThat(vm2).isNotSameInstanceAs(vm1);
+
+            // The old one must remain deleted, or we'd have two VirtualMachine instances referring
+            // to the same VM.
+            assertThat(vm1.getStatus()).isEqualTo(STATUS_DELETED);
+
+            // Subsequent gets should return this new one.
+            assertThat(vmm.get(vmName)).isSameInstanceAs(vm2);
+            assertThat(vmm.getOrCreate(vmName, config)).isSameInstanceAs(vm2);
+        } finally {
+            vmm.delete(vmName);
+        }
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void vmmCreateAll() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setEncryptedStorageBytes(4_000_000)
+                        .build();
+
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        List<String> vmNames = Arrays.asList("bulk_vm_0", "bulk_vm_1", "bulk_vm_2");
+        try {
+            VirtualMachine existing = vmm.create(vmNames.get(0), config);
+
+            Map<String, VirtualMachineConfig> configs = new HashMap<>();
+            for (String vmName : vmNames) {
+                configs.put(vmName, config);
+            }
+            VirtualMachineManager.CreateAllResult result = vmm.createAll(configs);
+
+            // The existing VM fails without affecting the others.
+            assertThat(result.getFailures().keySet()).containsExactly(vmNames.get(0));
+            assertThat(result.getVirtualMachines().keySet())
+                    .containsExactly(vmNames.get(1), vmNames.get(2));
+            assertThat(vmm.get(vmNames.get(0))).isSameInstanceAs(existing);
+            for (String vmName : vmNames.subList(1, 3)) {
+                VirtualMachine vm = result.getVirtualMachines().get(vmName);
+                assertThat(vmm.get(vmName)).isSameInstanceAs(vm);
+                assertThat(vm.getStatus()).isEqualTo(STATUS_STOPPED);
+                assertThat(new File(vm.getRootDir(), "instance.img").length())
+                        .isEqualTo(new File(existing.getRootDir(), "instance.img").length());
+            }
+        } finally {
+            for (String vmName : vmNames) {
+                vmm.delete(vmName);
+            }
+        }
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void vmmCreateAllRejectsInvalidEntries() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .build();
+
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        String vmName = "bulk_vm_valid";
+        try {
+            // The valid entry comes first, so it would be reserved before the invalid one is seen.
+            Map<String, VirtualMachineConfig> configs = new LinkedHashMap<>();
+            configs.put(vmName, config);
+            configs.put("../bulk_vm_invalid", config);
+            assertThrows(IllegalArgumentException.class, () -> vmm.createAll(configs));
+            assertThat(vmm.get(vmName)).isNull();
+
+            configs.remove("../bulk_vm_invalid");
+            configs.put("bulk_vm_no_config", null);
+            assertThrows(NullPointerException.class, () -> vmm.createAll(configs));
+            assertThat(vmm.get(vmName)).isNull();
+        } finally {
+            if (vmm.get(vmName) != null) {
+                vmm.delete(vmName);
+            }
+        }
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void vmmPrewarmSpawnsTheInstancesUsedByCreate() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
 
-        VirtualMachineConfig compatibleConfig = builder.setMemoryBytes(42).build();
-        vm.setConfig(compatibleConfig);
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        String vmName = "test_vm_prewarm";
+        int shardCount = 4;
+        try {
+            // Shrinking to one shard and growing again leaves shards 1 and up without an instance,
+            // so prewarm() has to spawn at least shardCount - 1 instances.
+            vmm.setVirtualizationServiceShardCount(1);
+            vmm.setVirtualizationServiceShardCount(shardCount);
+            Set<Integer> oldPids = getVirtmgrPids();
+            vmm.prewarm();
+            long deadline = SystemClock.elapsedRealtime() + Duration.ofSeconds(30).toMillis();
+            Set<Integer> newPids = getVirtmgrPids();
+            newPids.removeAll(oldPids);
+            while (newPids.size() < shardCount - 1 && SystemClock.elapsedRealtime() < deadline) {
+                Thread.sleep(100);
+                newPids = getVirtmgrPids();
+                newPids.removeAll(oldPids);
+            }
+            assertThat(newPids.size()).isAtLeast(shardCount - 1);
+            // prewarm() holds the create lock until every shard has an instance, so this waits
+            // for it to finish.
+            assertThat(vmm.get(vmName)).isNull();
 
-        assertThat(vm.getName()).isEqualTo("vm_name");
-        assertThat(vm.getConfig().getPayloadBinaryName()).isEqualTo("binary.so");
-        assertThat(vm.getConfig().getMemoryBytes()).isEqualTo(42);
+            Set<Integer> prewarmedPids = getVirtmgrPids();
+            VirtualMachine vm = vmm.create(vmName, config);
+            TestResults testResults =
+                    runVmTestService(TAG, vm, (ts, tr) -> tr.mAddInteger = ts.addInteger(1, 2));
+            testResults.assertNoException();
+            assertThat(testResults.mAddInteger).isEqualTo(3);
+
+            // The VM used a prewarmed instance rather than spawning one.
+            Set<Integer> spawnedPids = getVirtmgrPids();
+            spawnedPids.removeAll(prewarmedPids);
+            assertThat(spawnedPids).isEmpty();
+        } finally {
+            vmm.setVirtualizationServiceShardCount(1);
+            if (vmm.get(vmName) != null) {
+                vmm.delete(vmName);
+            }
+        }
+    }
 
-        assertThat(getVirtualMachineManager().get("vm_name")).isSameInstanceAs(vm);
+    /** Returns the PIDs of the virtmgr processes spawned by this process. */
+    private static Set<Integer> getVirtmgrPids() throws IOException {
+        Set<Integer> pids = new HashSet<>();
+        File[] procDirs = new File("/proc").listFiles();
+        if (procDirs == null) {
+            throw new IOException("Failed to list /proc");
+        }
+        for (File procDir : procDirs) {
+            if (!procDir.getName().matches("[0-9]+")) {
+                continue;
+            }
+            String stat;
+            try {
+                stat = new String(Files.readAllBytes(new File(procDir, "stat").toPath()));
+            } catch (IOException e) {
+                // The process has exited, or belongs to another app.
+                continue;
+            }
+            // The format is "pid (comm) state ppid ...", where comm may contain spaces.
+            int commEnd = stat.lastIndexOf(')');
+            String comm = stat.substring(stat.indexOf('(') + 1, commEnd);
+            String[] fields = stat.substring(commEnd + 2).split(" ");
+            if (comm.equals("virtmgr") && Integer.parseInt(fields[1]) == Process.myPid()) {
+                pids.add(Integer.parseInt(procDir.getName()));
+            }
+        }
+        return pids;
     }
 
     @Test
     @CddTest(requirements = {"9.17/C-1-1"})
-    public void testAvfRequiresUpdatableApex() throws Exception {
-        assertWithMessage("Devices that support AVF must also support updatable APEX")
-                .that(SystemProperties.getBoolean("ro.apex.updatable", false))
-                .isTrue();
+    public void vmmSpreadsVmsOverVirtualizationServiceShards() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .setEncryptedStorageBytes(4_000_000)
+                        .build();
+
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        assertThrows(
+                IllegalArgumentException.class, () -> vmm.setVirtualizationServiceShardCount(0));
+        // The hash code of the first name is Integer.MIN_VALUE, whose remainder is negative, so
+        // it would not map to a valid shard without floorMod.
+        List<String> vmNames = Arrays.asList("polygenelubricants", "shard_vm_1", "shard_vm_2");
+        String lateVmName = "shard_vm_late";
+        try {
+            vmm.setVirtualizationServiceShardCount(3);
+            Map<String, VirtualMachineConfig> configs = new HashMap<>();
+            for (String vmName : vmNames) {
+                configs.put(vmName, config);
+            }
+            VirtualMachineManager.CreateAllResult result = vmm.createAll(configs);
+            assertThat(result.getFailures()).isEmpty();
+            VirtualMachine vm = result.getVirtualMachines().get(vmNames.get(0));
+
+            // Changing the count mid-process doesn't affect VMs which already have an instance,
+            // and VMs created afterwards use the new count.
+            vmm.setVirtualizationServiceShardCount(2);
+            VirtualMachine lateVm = vmm.create(lateVmName, config);
+            assertThat(vmm.get(vmNames.get(0))).isSameInstanceAs(vm);
+            for (VirtualMachine toRun : Arrays.asList(vm, lateVm)) {
+                TestResults testResults =
+                        runVmTestService(
+                                TAG, toRun, (ts, tr) -> tr.mAddInteger = ts.addInteger(1, 2));
+                testResults.assertNoException();
+                assertThat(testResults.mAddInteger).isEqualTo(3);
+            }
+        } finally {
+            vmm.setVirtualizationServiceShardCount(1);
+            for (String vmName : vmNames) {
+                vmm.delete(vmName);
+            }
+            vmm.delete(lateVmName);
+        }
     }
 
     @Test
     @CddTest(requirements = {"9.17/C-1-1"})
-    public void vmmGetAndCreate() throws Exception {
+    public void vmmClone() throws Exception {
         assumeSupportedDevice();
 
         VirtualMachineConfig config =
                 newVmConfigBuilder()
                         .setPayloadBinaryName("MicrodroidTestNativeLib.so")
                         .setMemoryBytes(minMemoryRequired())
-                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .setEncryptedStorageBytes(4_000_000)
                         .build();
 
         VirtualMachineManager vmm = getVirtualMachineManager();
-        String vmName = "vmName";
-
+        VirtualMachine source = forceCreateNewVirtualMachine("clone_source", config);
         try {
-            // VM does not yet exist
-            assertThat(vmm.get(vmName)).isNull();
+            List<VirtualMachineManager.CloneResult> results = vmm.clone("clone_source", "clone", 2);
+
+            assertThat(results).hasSize(2);
+            for (int i = 0; i < 2; i++) {
+                VirtualMachineManager.CloneResult result = results.get(i);
+                VirtualMachine vm = result.getVirtualMachine();
+                assertThat(vm.getName()).isEqualTo("clone_" + i);
+                assertThat(vmm.get(vm.getName())).isSameInstanceAs(vm);
+                assertThat(vm.getStatus()).isEqualTo(STATUS_STOPPED);
+                assertThat(vm.getConfig()).isEqualTo(source.getConfig());
+                for (String image : Arrays.asList("instance.img", "storage.img")) {
+                    assertThat(new File(vm.getRootDir(), image).length())
+                            .isEqualTo(new File(source.getRootDir(), image).length());
+                }
+                assertThat(result.getBytesCopied() + result.getBytesShared()).isGreaterThan(0L);
+            }
 
-            VirtualMachine vm1 = vmm.create(vmName, config);
+            // The names of the clones are now taken.
+            assertThrows(
+                    VirtualMachineException.class, () -> vmm.clone("clone_source", "clone", 1));
+        } finally {
+            vmm.delete("clone_0");
+            vmm.delete("clone_1");
+        }
+    }
 
-            // Now it does, and we should get the same instance back
-            assertThat(vmm.get(vmName)).isSameInstanceAs(vm1);
-            assertThat(vmm.getOrCreate(vmName, config)).isSameInstanceAs(vm1);
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void dataDisksAreAccessibleFromGuest() throws Exception {
+        assumeSupportedDevice();
 
-            // Can't recreate it though
-            assertThrowsVmException(() -> vmm.create(vmName, config));
+        File readOnlyDisk = new File(getContext().getFilesDir(), "read_only_disk.img");
+        File writableDisk = new File(getContext().getFilesDir(), "writable_disk.img");
+        writeDiskImage(readOnlyDisk, "read-only disk contents");
+        writeDiskImage(writableDisk, "");
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .addDataDisk(readOnlyDisk, /* readOnly= */ true)
+                        .addDataDisk(writableDisk, /* readOnly= */ false)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_data_disks", config);
 
-            vmm.delete(vmName);
-            assertThat(vmm.get(vmName)).isNull();
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            tr.mFileContent = ts.readFromFile("/dev/block/by-name/data-disk-0");
+                            ts.writeToFile(
+                                    /* content= */ EXAMPLE_STRING,
+                                    /* path= */ "/dev/block/by-name/data-disk-1");
+                        });
+        testResults.assertNoException();
+        assertThat(testResults.mFileContent).startsWith("read-only disk contents");
+        assertThat(readDiskImage(writableDisk)).startsWith(EXAMPLE_STRING);
+    }
 
-            // Now that we deleted the old one, this should create rather than get, and it should be
-            // a new instance.
-            VirtualMachine vm2 = vmm.getOrCreate(vmName, config);
-            assertThat(vm2).isNotSameInstanceAs(vm1);
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void dataDisksAreCopiedForClonesAndImports() throws Exception {
+        assumeSupportedDevice();
 
-            // The old one must remain deleted, or we'd have two VirtualMachine instances referring
-            // to the same VM.
-            assertThat(vm1.getStatus()).isEqualTo(STATUS_DELETED);
+        File readOnlyDisk = new File(getContext().getFilesDir(), "shared_disk.img");
+        File writableDisk = new File(getContext().getFilesDir(), "own_disk.img");
+        writeDiskImage(readOnlyDisk, "shared disk contents");
+        writeDiskImage(writableDisk, "own disk contents");
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .addDataDisk(readOnlyDisk, /* readOnly= */ true)
+                        .addDataDisk(writableDisk, /* readOnly= */ false)
+                        .build();
 
-            // Subsequent gets should return this new one.
-            assertThat(vmm.get(vmName)).isSameInstanceAs(vm2);
-            assertThat(vmm.getOrCreate(vmName, config)).isSameInstanceAs(vm2);
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        VirtualMachine source = forceCreateNewVirtualMachine("data_disk_source", config);
+        try {
+            VirtualMachine clone =
+                    vmm.clone("data_disk_source", "data_disk_clone", 1)
+                            .get(0)
+                            .getVirtualMachine();
+            // The read-only disk is shared, but the clone gets its own copy of the writable one.
+            List<VirtualMachineConfig.DataDisk> cloneDisks = clone.getConfig().getDataDisks();
+            assertThat(cloneDisks.get(0).getImage()).isEqualTo(readOnlyDisk);
+            assertThat(cloneDisks.get(1).getImage().getParentFile()).isEqualTo(clone.getRootDir());
+            assertThat(cloneDisks.get(1).isReadOnly()).isFalse();
+            assertThat(source.getConfig().getDataDisks().get(1).getImage())
+                    .isEqualTo(writableDisk);
+
+            VirtualMachine imported =
+                    vmm.importFromDescriptor("data_disk_import", source.toDescriptor());
+            // An import copies every disk, as its owner might not be able to open the originals.
+            List<VirtualMachineConfig.DataDisk> importedDisks =
+                    imported.getConfig().getDataDisks();
+            assertThat(importedDisks).hasSize(2);
+            for (VirtualMachineConfig.DataDisk disk : importedDisks) {
+                assertThat(disk.getImage().getParentFile()).isEqualTo(imported.getRootDir());
+            }
+            assertThat(importedDisks.get(0).isReadOnly()).isTrue();
+            assertThat(importedDisks.get(1).isReadOnly()).isFalse();
+
+            // The copies outlive the originals.
+            vmm.delete("data_disk_source");
+            writableDisk.delete();
+            assertThat(readDiskImage(cloneDisks.get(1).getImage()))
+                    .startsWith("own disk contents");
+            assertThat(readDiskImage(importedDisks.get(0).getImage()))
+                    .startsWith("shared disk contents");
+            assertThat(readDiskImage(importedDisks.get(1).getImage()))
+                    .startsWith("own disk contents");
         } finally {
-            vmm.delete(vmName);
+            for (String vmName : Arrays.asList("data_disk_clone_0", "data_disk_import")) {
+                if (vmm.get(vmName) != null) {
+                    vmm.delete(vmName);
+                }
+            }
         }
     }
 
+    /** Writes a 4 KiB disk image starting with {@code contents}, and zeros after that. */
+    private static void writeDiskImage(File image, String contents) throws IOException {
+        byte[] bytes = new byte[4096];
+        byte[] contentBytes = contents.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(contentBytes, 0, bytes, 0, contentBytes.length);
+        Files.write(image.toPath(), bytes);
+    }
+
+    private static String readDiskImage(File image) throws IOException {
+        return new String(Files.readAllBytes(image.toPath()), StandardCharsets.UTF_8);
+    }
+
     @Test
     @CddTest(requirements = {"9.17/C-1-1"})
     public void vmFilesStoredInDeDirWhenCreatedFromDEContext() throws Exception {
@@ -794,6 +1830,105 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThrowsVmException(() -> vmm.delete("test_vm_delete"));
     }
 
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void deleteAndRecreateVmWhileTrashIsSwept() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .setEncryptedStorageBytes(4_000_000)
+                        .build();
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        String vmName = "test_vm_recreate";
+        File trashDir = new File(getContext().getDataDir(), "vm_trash");
+        try {
+            // Each deleted VM has data which takes a while to delete, so the previous ones are
+            // still being deleted in the background when the name is reused.
+            for (int i = 0; i < 5; i++) {
+                VirtualMachine vm = forceCreateNewVirtualMachine(vmName, config);
+                try (FileOutputStream out =
+                        new FileOutputStream(new File(vm.getRootDir(), "filler"))) {
+                    byte[] chunk = new byte[(int) ONE_MEBI];
+                    for (int j = 0; j < 16; j++) {
+                        out.write(chunk);
+                    }
+                }
+                vmm.delete(vmName);
+                assertThat(vmm.get(vmName)).isNull();
+            }
+            VirtualMachine vm = vmm.create(vmName, config);
+
+            // Once the trash is empty, the new VM must still be intact.
+            long deadline = SystemClock.elapsedRealtime() + Duration.ofSeconds(30).toMillis();
+            while (isInTrash(trashDir, vmName) && SystemClock.elapsedRealtime() < deadline) {
+                Thread.sleep(100);
+            }
+            assertThat(isInTrash(trashDir, vmName)).isFalse();
+            assertThat(new File(vm.getRootDir(), "filler").exists()).isFalse();
+            assertThat(vmm.get(vmName)).isSameInstanceAs(vm);
+            assertThat(vm.getStatus()).isEqualTo(STATUS_STOPPED);
+            TestResults testResults =
+                    runVmTestService(
+                            TAG,
+                            vm,
+                            (ts, tr) -> tr.mEncryptedStoragePath = ts.getEncryptedStoragePath());
+            testResults.assertNoException();
+            assertThat(testResults.mEncryptedStoragePath).isEqualTo("/mnt/encryptedstore");
+        } finally {
+            if (vmm.get(vmName) != null) {
+                vmm.delete(vmName);
+            }
+        }
+    }
+
+    /** Returns whether any deleted VM with the given name is still in the trash. */
+    private static boolean isInTrash(File trashDir, String vmName) {
+        File[] trashedVmDirs = trashDir.listFiles();
+        if (trashedVmDirs == null) {
+            return false;
+        }
+        for (File trashedVmDir : trashedVmDirs) {
+            if (trashedVmDir.getName().startsWith(vmName + "-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void storageUsage() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setEncryptedStorageBytes(4_000_000)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_storage_usage", config);
+        VirtualMachineManager vmm = getVirtualMachineManager();
+
+        VirtualMachine.DiskUsage usage = vm.getStorageUsage();
+        assertThat(usage.getAllocatedBytes()).isGreaterThan(0);
+        assertThat(usage.getLogicalBytes()).isGreaterThan(0);
+
+        VirtualMachine.DiskUsage total = vmm.getStorageUsage();
+        assertThat(total.getAllocatedBytes()).isAtLeast(usage.getAllocatedBytes());
+        assertThat(total.getLogicalBytes()).isAtLeast(usage.getLogicalBytes());
+
+        vmm.delete("test_vm_storage_usage");
+        VirtualMachine.DiskUsage remaining = vmm.getStorageUsage();
+        assertThat(remaining.getAllocatedBytes())
+                .isEqualTo(total.getAllocatedBytes() - usage.getAllocatedBytes());
+        assertThat(remaining.getLogicalBytes())
+                .isEqualTo(total.getLogicalBytes() - usage.getLogicalBytes());
+    }
+
     @Test
     @CddTest(
             requirements = {
@@ -1541,6 +2676,118 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         assertThat(testResults.mFileContent).isEqualTo(EXAMPLE_STRING);
     }
 
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void encryptedStorageIsPreservedWhenResized() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setEncryptedStorageBytes(4_000_000)
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_resize_storage", config);
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            ts.writeToFile(
+                                    /* content= */ EXAMPLE_STRING,
+                                    /* path= */ "/mnt/encryptedstore/test_file");
+                        });
+        testResults.assertNoException();
+
+        assertThrows(IllegalArgumentException.class, () -> vm.resizeEncryptedStorage(2_000_000));
+        vm.resizeEncryptedStorage(16_000_000);
+        assertThat(vm.getConfig().getEncryptedStorageBytes()).isEqualTo(16_000_000);
+
+        // 5 MiB, more than the whole storage held before, only fits if the filesystem has grown.
+        // Stay well below the binder transaction limit with each write.
+        String chunk = "a".repeat(256 * 1024);
+        int chunkCount = 20;
+        testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            tr.mFileContent = ts.readFromFile("/mnt/encryptedstore/test_file");
+                            for (int i = 0; i < chunkCount; i++) {
+                                ts.writeToFile(chunk, "/mnt/encryptedstore/large_file_" + i);
+                            }
+                        });
+        testResults.assertNoException();
+        assertThat(testResults.mFileContent).isEqualTo(EXAMPLE_STRING);
+    }
+
+    @Test
+    @CddTest(requirements = {"9.17/C-1-1"})
+    public void encryptedStorageIsPreservedWhenCompacted() throws Exception {
+        assumeSupportedDevice();
+
+        VirtualMachineConfig config =
+                newVmConfigBuilder()
+                        .setPayloadBinaryName("MicrodroidTestNativeLib.so")
+                        .setMemoryBytes(minMemoryRequired())
+                        .setEncryptedStorageBytes(16_000_000)
+                        .setDebugLevel(DEBUG_LEVEL_FULL)
+                        .build();
+        VirtualMachine vm = forceCreateNewVirtualMachine("test_vm_compact_storage", config);
+        // Stay well below the binder transaction limit with each write.
+        String chunk = "a".repeat(256 * 1024);
+        int chunkCount = 16;
+        TestResults testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            ts.writeToFile(
+                                    /* content= */ EXAMPLE_STRING,
+                                    /* path= */ "/mnt/encryptedstore/test_file");
+                            for (int i = 0; i < chunkCount; i++) {
+                                ts.writeToFile(chunk, "/mnt/encryptedstore/large_file_" + i);
+                            }
+                        });
+        testResults.assertNoException();
+        VirtualMachine.DiskUsage usageWithLargeFiles = vm.compactStorage();
+        assertThat(usageWithLargeFiles.getAllocatedBytes())
+                .isAtLeast((long) chunk.length() * chunkCount);
+
+        // Truncating the files frees their blocks, which the filesystem then discards.
+        testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            for (int i = 0; i < chunkCount; i++) {
+                                ts.writeToFile("", "/mnt/encryptedstore/large_file_" + i);
+                            }
+                        });
+        testResults.assertNoException();
+        VirtualMachine.DiskUsage usage = vm.compactStorage();
+        assertThat(usage.getAllocatedBytes()).isGreaterThan(0);
+        assertThat(usage.getLogicalBytes()).isGreaterThan(0);
+        long threshold = usageWithLargeFiles.getAllocatedBytes() - chunk.length() * chunkCount / 2;
+        if (mProtectedVm) {
+            // The blocks of the deleted data aren't revealed to the host.
+            assertThat(usage.getAllocatedBytes()).isGreaterThan(threshold);
+        } else {
+            assertThat(usage.getAllocatedBytes()).isLessThan(threshold);
+        }
+
+        testResults =
+                runVmTestService(
+                        TAG,
+                        vm,
+                        (ts, tr) -> {
+                            tr.mFileContent = ts.readFromFile("/mnt/encryptedstore/test_file");
+                        });
+        testResults.assertNoException();
+        assertThat(testResults.mFileContent).isEqualTo(EXAMPLE_STRING);
+    }
+
     @Test
     @CddTest(requirements = {"9.17/C-1-1", "9.17/C-2-1"})
     public void canReadFileFromAssets_debugFull() throws Exception {
@@ -2020,6 +3267,33 @@ public class MicrodroidTests extends MicrodroidDeviceTestBase {
         }
     }
 
+    /**
+     * Copies the files of a VM to a new VM, which is then loaded from its files rather than
+     * returned from the cache of the {@link VirtualMachineManager}.
+     */
+    private VirtualMachine loadCopyOfVm(String sourceName, String newName) throws Exception {
+        VirtualMachineManager vmm = getVirtualMachineManager();
+        File source = getVmFile(sourceName, "");
+        File target = getVmFile(newName, "");
+        if (target.exists()) {
+            vmm.delete(newName);
+        }
+        assertThat(target.mkdir()).isTrue();
+        for (File file : source.listFiles()) {
+            if (file.isFile()) {
+                Files.copy(file.toPath(), new File(target, file.getName()).toPath());
+            }
+        }
+        return vmm.get(newName);
+    }
+
+    /** Returns the first 4 bytes of the config file of a VM, as ASCII. */
+    private String readConfigMagic(String vmName) throws IOException {
+        try (FileInputStream input = new FileInputStream(getVmFile(vmName, "config.xml"))) {
+            return new String(input.readNBytes(4), StandardCharsets.US_ASCII);
+        }
+    }
+
     private File getVmFile(String vmName, String fileName) {
         Context context = getContext();
         Path filePath = Paths.get(context.getDataDir().getPath(), "vm", vmName, fileName);
@@ -28,14 +28,21 @@
 #include <linux/vm_sockets.h>
 #include <stdint.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include <sys/capability.h>
 #include <sys/system_properties.h>
 #include <unistd.h>
 #include <vm_main.h>
 #include <vm_payload_restricted.h>
 
+#include <chrono>
+#include <condition_variable>
+#include <deque>
+#include <mutex>
 #include <string>
 #include <thread>
+#include <vector>
 
 using android::base::borrowed_fd;
 using android::base::ErrnoError;
@@ -115,14 +122,14 @@ Result<void> run_echo_reverse_server(borrowed_fd listening_fd) {
     }
 }
 
-Result<void> start_echo_reverse_server() {
+Result<unique_fd> listen_on_vsock_port(uint32_t port) {
     unique_fd server_fd{TEMP_FAILURE_RETRY(socket(AF_VSOCK, SOCK_STREAM | SOCK_CLOEXEC, 0))};
     if (!server_fd.ok()) {
         return ErrnoError() << "Failed to create vsock socket";
     }
     struct sockaddr_vm server_sa = (struct sockaddr_vm){
             .svm_family = AF_VSOCK,
-            .svm_port = static_cast<uint32_t>(BnTestService::ECHO_REVERSE_PORT),
+            .svm_port = port,
             .svm_cid = VMADDR_CID_ANY,
     };
     int ret = TEMP_FAILURE_RETRY(bind(server_fd, (struct sockaddr*)&server_sa, sizeof(server_sa)));
@@ -133,8 +140,16 @@ Result<void> start_echo_reverse_server() {
     if (ret < 0) {
         return ErrnoError() << "Failed to listen";
     }
+    return server_fd;
+}
+
+Result<void> start_echo_reverse_server() {
+    auto server_fd = listen_on_vsock_port(static_cast<uint32_t>(BnTestService::ECHO_REVERSE_PORT));
+    if (!server_fd.ok()) {
+        return server_fd.error();
+    }
 
-    std::thread accept_thread{[listening_fd = std::move(server_fd)] {
+    std::thread accept_thread{[listening_fd = std::move(*server_fd)] {
         auto result = run_echo_reverse_server(listening_fd);
         if (!result.ok()) {
             __android_log_write(ANDROID_LOG_ERROR, TAG, result.error().message().c_str());
@@ -147,6 +162,110 @@ Result<void> start_echo_reverse_server() {
     return {};
 }
 
+// Numbers of bytes received on each connection to the byte count server, oldest first.
+std::mutex received_byte_counts_mutex;
+std::condition_variable received_byte_counts_cv;
+std::deque<int64_t> received_byte_counts;
+
+Result<void> run_byte_count_server(borrowed_fd listening_fd) {
+    std::vector<char> buf(64 * 1024);
+    while (true) {
+        unique_fd connect_fd{accept4(listening_fd.get(), nullptr, nullptr, SOCK_CLOEXEC)};
+        if (!connect_fd.ok()) {
+            return ErrnoError() << "Failed to accept vsock connection";
+        }
+        int64_t count = 0;
+        while (true) {
+            ssize_t n = TEMP_FAILURE_RETRY(read(connect_fd, buf.data(), buf.size()));
+            if (n < 0) {
+                return ErrnoError() << "Failed to read";
+            }
+            if (n == 0) break;
+            count += n;
+        }
+        std::lock_guard<std::mutex> lock(received_byte_counts_mutex);
+        received_byte_counts.push_back(count);
+        received_byte_counts_cv.notify_all();
+    }
+}
+
+Result<void> start_byte_count_server() {
+    auto server_fd = listen_on_vsock_port(static_cast<uint32_t>(BnTestService::BYTE_COUNT_PORT));
+    if (!server_fd.ok()) {
+        return server_fd.error();
+    }
+
+    std::thread accept_thread{[listening_fd = std::move(*server_fd)] {
+        auto result = run_byte_count_server(listening_fd);
+        if (!result.ok()) {
+            __android_log_write(ANDROID_LOG_ERROR, TAG, result.error().message().c_str());
+            // Make sure the VM exits so the test will fail solidly
+            exit(1);
+        }
+    }};
+    accept_thread.detach();
+
+    return {};
+}
+
+Result<int64_t> take_received_byte_count() {
+    std::unique_lock<std::mutex> lock(received_byte_counts_mutex);
+    if (!received_byte_counts_cv.wait_for(lock, std::chrono::seconds(30),
+                                          [] { return !received_byte_counts.empty(); })) {
+        return Error() << "No connection to the byte count server was closed";
+    }
+    int64_t count = received_byte_counts.front();
+    received_byte_counts.pop_front();
+    return count;
+}
+
+// Accesses to the shared memory bypass the page cache, so must be aligned to this.
+constexpr size_t kSharedMemoryAlignment = 4096;
+
+// Reads or writes the first size bytes of the shared memory through buffer, which holds size
+// bytes rounded up to whole blocks.
+Result<void> access_shared_memory(bool write, char* buffer, size_t aligned_size) {
+    unique_fd fd(AVmPayload_openSharedMemory());
+    if (fd.get() == -1) {
+        return ErrnoError() << "Failed to open shared memory";
+    }
+    ssize_t done = write ? pwrite(fd.get(), buffer, aligned_size, 0)
+                         : pread(fd.get(), buffer, aligned_size, 0);
+    if (done != static_cast<ssize_t>(aligned_size)) {
+        return ErrnoError() << "Failed to access shared memory";
+    }
+    return {};
+}
+
+Result<void> write_shared_memory(const std::string& content) {
+    size_t aligned_size = (content.size() + kSharedMemoryAlignment - 1) /
+            kSharedMemoryAlignment * kSharedMemoryAlignment;
+    void* buffer = aligned_alloc(kSharedMemoryAlignment, aligned_size);
+    if (buffer == nullptr) {
+        return ErrnoError() << "Failed to allocate buffer";
+    }
+    auto guard = make_scope_guard([buffer]() { free(buffer); });
+    memset(buffer, 0, aligned_size);
+    memcpy(buffer, content.data(), content.size());
+    return access_shared_memory(/*write=*/true, static_cast<char*>(buffer), aligned_size);
+}
+
+Result<std::string> read_shared_memory(size_t size) {
+    size_t aligned_size =
+            (size + kSharedMemoryAlignment - 1) / kSharedMemoryAlignment * kSharedMemoryAlignment;
+    void* buffer = aligned_alloc(kSharedMemoryAlignment, aligned_size);
+    if (buffer == nullptr) {
+        return ErrnoError() << "Failed to allocate buffer";
+    }
+    auto guard = make_scope_guard([buffer]() { free(buffer); });
+    if (auto result = access_shared_memory(/*write=*/false, static_cast<char*>(buffer),
+                                           aligned_size);
+        !result.ok()) {
+        return result.error();
+    }
+    return std::string(static_cast<char*>(buffer), size);
+}
+
 Result<void> start_test_service() {
     class VmCallbackImpl : public BnVmCallback {
     private:
@@ -258,6 +377,26 @@ Result<void> start_test_service() {
             }
         }
 
+        ScopedAStatus runByteCountServer() override {
+            auto result = start_byte_count_server();
+            if (result.ok()) {
+                return ScopedAStatus::ok();
+            } else {
+                std::string message = result.error().message();
+                return ScopedAStatus::fromServiceSpecificErrorWithMessage(-1, message.c_str());
+            }
+        }
+
+        ScopedAStatus takeReceivedByteCount(int64_t* out) override {
+            auto count = take_received_byte_count();
+            if (!count.ok()) {
+                std::string message = count.error().message();
+                return ScopedAStatus::fromServiceSpecificErrorWithMessage(-1, message.c_str());
+            }
+            *out = *count;
+            return ScopedAStatus::ok();
+        }
+
         ScopedAStatus writeToFile(const std::string& content, const std::string& path) override {
             if (!android::base::WriteStringToFile(content, path)) {
                 std::string msg = "Failed to write " + content + " to file " + path +
@@ -306,6 +445,41 @@ Result<void> start_test_service() {
             return ScopedAStatus::ok();
         }
 
+        ScopedAStatus hasSharedMemory(bool* out) override {
+            unique_fd fd(AVmPayload_openSharedMemory());
+            if (fd.get() == -1 && errno != ENOENT) {
+                std::string msg =
+                        std::string("Failed to open shared memory: ") + std::strerror(errno);
+                return ScopedAStatus::fromExceptionCodeWithMessage(EX_SERVICE_SPECIFIC,
+                                                                   msg.c_str());
+            }
+            *out = fd.get() != -1;
+            return ScopedAStatus::ok();
+        }
+
+        ScopedAStatus writeToSharedMemory(const std::string& content) override {
+            if (auto result = write_shared_memory(content); !result.ok()) {
+                std::string msg = result.error().message();
+                return ScopedAStatus::fromExceptionCodeWithMessage(EX_SERVICE_SPECIFIC,
+                                                                   msg.c_str());
+            }
+            return ScopedAStatus::ok();
+        }
+
+        ScopedAStatus readFromSharedMemory(int32_t size, std::string* out) override {
+            if (size < 0) {
+                return ScopedAStatus::fromExceptionCode(EX_ILLEGAL_ARGUMENT);
+            }
+            auto content = read_shared_memory(size);
+            if (!content.ok()) {
+                std::string msg = content.error().message();
+                return ScopedAStatus::fromExceptionCodeWithMessage(EX_SERVICE_SPECIFIC,
+                                                                   msg.c_str());
+            }
+            *out = std::move(*content);
+            return ScopedAStatus::ok();
+        }
+
         ScopedAStatus requestCallback(const std::shared_ptr<IAppCallback>& appCallback) {
             auto vmCallback = ndk::SharedRefBase::make<VmCallbackImpl>(appCallback);
             std::thread callback_thread{[=] { appCallback->setVmCallback(vmCallback); }};
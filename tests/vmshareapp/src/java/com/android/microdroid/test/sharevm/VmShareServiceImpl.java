@@ -21,7 +21,6 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.system.virtualmachine.VirtualMachine;
-import android.system.virtualmachine.VirtualMachineCallback;
 import android.system.virtualmachine.VirtualMachineDescriptor;
 import android.system.virtualmachine.VirtualMachineException;
 import android.system.virtualmachine.VirtualMachineManager;
@@ -31,10 +30,8 @@ import com.android.microdroid.test.vmshare.IVmShareTestService;
 import com.android.microdroid.testservice.ITestService;
 import com.android.microdroid.testservice.IAppCallback;
 
+import java.time.Duration;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * A {@link Service} that is used in end-to-end tests of the {@link VirtualMachine} sharing
@@ -103,53 +100,22 @@ public class VmShareServiceImpl extends Service {
         // over each other.
         String vmName = "imported_vm" + UUID.randomUUID();
 
-        final CountDownLatch latch = new CountDownLatch(1);
-        VirtualMachineCallback callback =
-                new VirtualMachineCallback() {
-
-                    @Override
-                    public void onPayloadStarted(VirtualMachine vm) {
-                        // Ignored
-                    }
-
-                    @Override
-                    public void onPayloadReady(VirtualMachine vm) {
-                        latch.countDown();
-                    }
-
-                    @Override
-                    public void onPayloadFinished(VirtualMachine vm, int exitCode) {
-                        // Ignored
-                    }
-
-                    @Override
-                    public void onError(VirtualMachine vm, int errorCode, String message) {
-                        throw new RuntimeException(
-                                "VM failed with error " + errorCode + " : " + message);
-                    }
-
-                    @Override
-                    public void onStopped(VirtualMachine vm, int reason) {
-                        // Ignored
-                    }
-                };
-
         mVirtualMachine = vmm.importFromDescriptor(vmName, vmDesc);
-        mVirtualMachine.setCallback(getMainExecutor(), callback);
 
         Log.i(TAG, "Starting VM " + vmName);
         mVirtualMachine.run();
-        if (!latch.await(1, TimeUnit.MINUTES)) {
-            throw new TimeoutException("Timed out starting VM");
-        }
 
         Log.i(
                 TAG,
-                "Payload is ready, connecting to the vsock service at port "
-                        + ITestService.SERVICE_PORT);
+                "Connecting to the vsock service at port "
+                        + ITestService.SERVICE_PORT
+                        + " once the payload is ready");
         ITestService testService =
                 ITestService.Stub.asInterface(
-                        mVirtualMachine.connectToVsockServer(ITestService.SERVICE_PORT));
+                        mVirtualMachine
+                                .connectToVsockServerAsync(
+                                        ITestService.SERVICE_PORT, Duration.ofMinutes(1))
+                                .get());
         return new RemoteTestServiceDelegate(testService);
     }
 
@@ -215,6 +181,16 @@ public class VmShareServiceImpl extends Service {
             throw new UnsupportedOperationException("Not supported");
         }
 
+        @Override
+        public void runByteCountServer() throws RemoteException {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public long takeReceivedByteCount() throws RemoteException {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
         @Override
         public String[] getEffectiveCapabilities() throws RemoteException {
             throw new UnsupportedOperationException("Not supported");
@@ -240,6 +216,21 @@ public class VmShareServiceImpl extends Service {
             throw new UnsupportedOperationException("Not supported");
         }
 
+        @Override
+        public boolean hasSharedMemory() throws RemoteException {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public void writeToSharedMemory(String content) throws RemoteException {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public String readFromSharedMemory(int size) throws RemoteException {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
         @Override
         public void requestCallback(IAppCallback appCallback) {
             throw new UnsupportedOperationException("Not supported");
@@ -16,26 +16,32 @@
 
 use crate::{get_calling_pid, get_calling_uid};
 use crate::atom::{
-    write_vm_booted_stats, write_vm_creation_stats};
+    get_num_cpus, write_vm_booted_stats, write_vm_creation_stats};
 use crate::composite::make_composite_image;
-use crate::crosvm::{CrosvmConfig, DiskFile, PayloadState, VmContext, VmInstance, VmState};
+use crate::crosvm::{
+    CrosvmConfig, DiskFile, PayloadState, RestoreSnapshot, VmContext, VmInstance, VmState,
+};
 use crate::debug_config::DebugConfig;
 use crate::payload::{add_microdroid_payload_images, add_microdroid_system_images};
 use crate::selinux::{getfilecon, SeContext};
+use crate::snapshot::{self, SavedVm};
 use android_os_permissions_aidl::aidl::android::os::IPermissionController;
 use android_system_virtualizationcommon::aidl::android::system::virtualizationcommon::{
     DeathReason::DeathReason,
     ErrorCode::ErrorCode,
 };
 use android_system_virtualizationservice::aidl::android::system::virtualizationservice::{
+    CpuCluster::CpuCluster,
     CpuTopology::CpuTopology,
     DiskImage::DiskImage,
     IVirtualMachine::{BnVirtualMachine, IVirtualMachine},
     IVirtualMachineCallback::IVirtualMachineCallback,
     IVirtualizationService::IVirtualizationService,
+    MemoryStats::MemoryStats,
     MemoryTrimLevel::MemoryTrimLevel,
     Partition::Partition,
     PartitionType::PartitionType,
+    ResourceUsage::ResourceUsage,
     VirtualMachineAppConfig::{DebugLevel::DebugLevel, Payload::Payload, VirtualMachineAppConfig},
     VirtualMachineConfig::VirtualMachineConfig,
     VirtualMachineDebugInfo::VirtualMachineDebugInfo,
@@ -43,7 +49,9 @@ use android_system_virtualizationservice::aidl::android::system::virtualizations
     VirtualMachineRawConfig::VirtualMachineRawConfig,
     VirtualMachineState::VirtualMachineState,
 };
+use android_system_virtualizationservice_internal::aidl::android::system::virtualizationservice_internal::IGlobalVmContext::IGlobalVmContext;
 use android_system_virtualizationservice_internal::aidl::android::system::virtualizationservice_internal::IVirtualizationServiceInternal::IVirtualizationServiceInternal;
+use android_system_virtualmachineservice::aidl::android::system::virtualmachineservice::IShutdownRequestHandler::IShutdownRequestHandler;
 use android_system_virtualmachineservice::aidl::android::system::virtualmachineservice::IVirtualMachineService::{
         BnVirtualMachineService, IVirtualMachineService,
 };
@@ -53,7 +61,7 @@ use binder::{
     self, wait_for_interface, BinderFeatures, ExceptionCode, Interface, ParcelFileDescriptor,
     Status, StatusCode, Strong,
 };
-use disk::QcowFile;
+use disk::{QcowFile, MAX_NESTING_DEPTH};
 use lazy_static::lazy_static;
 use log::{debug, error, info, warn};
 use microdroid_payload_config::{OsConfig, Task, TaskType, VmPayloadConfig};
@@ -63,8 +71,8 @@ use rustutils::system_properties;
 use semver::VersionReq;
 use std::convert::TryInto;
 use std::ffi::CStr;
-use std::fs::{read_dir, remove_file, File, OpenOptions};
-use std::io::{BufRead, BufReader, Error, ErrorKind, Write};
+use std::fs::{create_dir, read_dir, remove_dir_all, remove_file, File, OpenOptions};
+use std::io::{BufRead, BufReader, Error, ErrorKind, Read, Seek, SeekFrom, Write};
 use std::num::{NonZeroU16, NonZeroU32};
 use std::os::unix::io::{FromRawFd, IntoRawFd};
 use std::os::unix::raw::pid_t;
@@ -93,6 +101,11 @@ const MICRODROID_OS_NAME: &str = "microdroid";
 
 const UNFORMATTED_STORAGE_MAGIC: &str = "UNFORMATTED-STORAGE";
 
+/// Version of the images written by initializeWritablePartition. Clients may cache initialized
+/// images keyed by this, so it must be bumped whenever their contents change, e.g. a change to the
+/// QCOW2 layout or to the magic or version written by format_as_*.
+const WRITABLE_PARTITION_FORMAT_VERSION: i32 = 1;
+
 /// crosvm requires all partitions to be a multiple of 4KiB.
 const PARTITION_GRANULARITY_BYTES: u64 = 4096;
 
@@ -129,7 +142,12 @@ fn get_current_sdk() -> Result<u32> {
 
 pub fn remove_temporary_files(path: &PathBuf) -> Result<()> {
     for dir_entry in read_dir(path)? {
-        remove_file(dir_entry?.path())?;
+        let path = dir_entry?.path();
+        if path.is_dir() {
+            remove_dir_all(path)?;
+        } else {
+            remove_file(path)?;
+        }
     }
     Ok(())
 }
@@ -230,6 +248,64 @@ impl IVirtualizationService for VirtualizationService {
         Ok(())
     }
 
+    /// Initialise a copy of a writable partition image, grown to the given size.
+    fn resizeWritablePartition(
+        &self,
+        source_fd: &ParcelFileDescriptor,
+        target_fd: &ParcelFileDescriptor,
+        size_bytes: i64,
+    ) -> binder::Result<()> {
+        check_manage_access()?;
+        let size_bytes = size_bytes.try_into().map_err(|e| {
+            Status::new_exception_str(
+                ExceptionCode::ILLEGAL_ARGUMENT,
+                Some(format!("Invalid size {}: {:?}", size_bytes, e)),
+            )
+        })?;
+        let size_bytes = round_up(size_bytes, PARTITION_GRANULARITY_BYTES);
+        let mut source = QcowFile::from(clone_file(source_fd)?, MAX_NESTING_DEPTH).map_err(|e| {
+            Status::new_service_specific_error_str(
+                -1,
+                Some(format!("Failed to open QCOW2 image: {:?}", e)),
+            )
+        })?;
+        let source_size = source.virtual_size();
+        if size_bytes < source_size {
+            return Err(Status::new_exception_str(
+                ExceptionCode::ILLEGAL_ARGUMENT,
+                Some(format!("Cannot shrink partition from {} to {}", source_size, size_bytes)),
+            ));
+        }
+        let target = clone_file(target_fd)?;
+        // initialize the file. Any data in the file will be erased.
+        target.set_len(0).map_err(|e| {
+            Status::new_service_specific_error_str(
+                -1,
+                Some(format!("Failed to reset a file: {:?}", e)),
+            )
+        })?;
+        let mut target = QcowFile::new(target, size_bytes).map_err(|e| {
+            Status::new_service_specific_error_str(
+                -1,
+                Some(format!("Failed to create QCOW2 image: {:?}", e)),
+            )
+        })?;
+        copy_partition_contents(&mut source, &mut target, source_size).map_err(|e| {
+            Status::new_service_specific_error_str(
+                -1,
+                Some(format!("Failed to copy partition contents: {:?}", e)),
+            )
+        })?;
+
+        Ok(())
+    }
+
+    /// Returns the version of the images written by initializeWritablePartition.
+    fn getWritablePartitionFormatVersion(&self) -> binder::Result<i32> {
+        check_manage_access()?;
+        Ok(WRITABLE_PARTITION_FORMAT_VERSION)
+    }
+
     /// Creates or update the idsig file by digesting the input APK file.
     fn createOrUpdateIdsigFile(
         &self,
@@ -267,19 +343,10 @@ impl VirtualizationService {
 
         for _ in 0..NUM_ATTEMPTS {
             let vm_context = GLOBAL_SERVICE.allocateGlobalVmContext(requester_debug_pid)?;
-            let cid = vm_context.getCid()? as Cid;
-            let temp_dir: PathBuf = vm_context.getTemporaryDirectory()?.into();
-            let service = VirtualMachineService::new_binder(self.state.clone(), cid).as_binder();
-
-            // Start VM service listening for connections from the new CID on port=CID.
-            let port = cid;
-            match RpcServer::new_vsock(service, cid, port) {
-                Ok(vm_server) => {
-                    vm_server.start();
-                    return Ok((VmContext::new(vm_context, vm_server), cid, temp_dir));
-                }
+            match self.start_vm_server(vm_context) {
+                Ok(result) => return Ok(result),
                 Err(err) => {
-                    warn!("Could not start RpcServer on port {}: {}", port, err);
+                    warn!("{:?}", err);
                 }
             }
         }
@@ -289,6 +356,35 @@ impl VirtualizationService {
         ))
     }
 
+    /// Creates the context of a VM restored from a snapshot taken by this virtmgr. The guest in
+    /// the snapshot already uses its CID, which has been kept reserved since then, so the restored
+    /// VM gets the same CID.
+    fn restore_vm_context(&self, saved_vm: &SavedVm) -> binder::Result<(VmContext, Cid, PathBuf)> {
+        check_manage_access()?;
+        self.start_vm_server(saved_vm.global_context.clone()).map_err(|err| {
+            let message = format!("Failed to create context for restored VM: {:?}", err);
+            error!("{}", message);
+            Status::new_service_specific_error_str(-1, Some(message))
+        })
+    }
+
+    /// Starts the VM service listening for connections from the CID of `vm_context` on
+    /// port=CID.
+    fn start_vm_server(
+        &self,
+        vm_context: Strong<dyn IGlobalVmContext>,
+    ) -> Result<(VmContext, Cid, PathBuf)> {
+        let cid = vm_context.getCid()? as Cid;
+        let temp_dir: PathBuf = vm_context.getTemporaryDirectory()?.into();
+        let service = VirtualMachineService::new_binder(self.state.clone(), cid).as_binder();
+
+        let port = cid;
+        let vm_server = RpcServer::new_vsock(service, cid, port)
+            .with_context(|| format!("Could not start RpcServer on port {}", port))?;
+        vm_server.start();
+        Ok((VmContext::new(vm_context, vm_server), cid, temp_dir))
+    }
+
     fn create_vm_internal(
         &self,
         config: &VirtualMachineConfig,
@@ -299,8 +395,28 @@ impl VirtualizationService {
         let requester_uid = get_calling_uid();
         let requester_debug_pid = get_calling_pid();
 
-        // Allocating VM context checks the MANAGE_VIRTUAL_MACHINE permission.
-        let (vm_context, cid, temporary_directory) = self.create_vm_context(requester_debug_pid)?;
+        let restore_snapshot = match config {
+            VirtualMachineConfig::AppConfig(config) => maybe_clone_file(&config.restoreSnapshot)?,
+            VirtualMachineConfig::RawConfig(_) => None,
+        };
+        // Nothing but the crosvm snapshot is read from the client's file. The rest of the state of
+        // the VM was kept by this virtmgr when it took the snapshot.
+        let saved_vm = restore_snapshot
+            .as_ref()
+            .map(|file| {
+                snapshot::take(file).map_err(|e| {
+                    let message = format!("Can't restore snapshot: {:?}", e);
+                    error!("{}", message);
+                    Status::new_service_specific_error_str(-1, Some(message))
+                })
+            })
+            .transpose()?;
+
+        // Creating VM context checks the MANAGE_VIRTUAL_MACHINE permission.
+        let (vm_context, cid, temporary_directory) = match &saved_vm {
+            Some(saved_vm) => self.restore_vm_context(saved_vm)?,
+            None => self.create_vm_context(requester_debug_pid)?,
+        };
 
         let is_custom = match config {
             VirtualMachineConfig::RawConfig(_) => true,
@@ -311,6 +427,7 @@ impl VirtualizationService {
                 // - specifying a config file in the APK;
                 // - gdbPort is set, meaning that crosvm will start a gdb server.
                 !config.taskProfiles.is_empty()
+                    || config.cpuAffinityMask != 0
                     || matches!(config.payload, Payload::ConfigPath(_))
                     || config.gdbPort > 0
             }
@@ -349,6 +466,36 @@ impl VirtualizationService {
         // child process, and not closed before it is started.
         let mut indirect_files = vec![];
 
+        let shared_memory = match config {
+            VirtualMachineConfig::AppConfig(config) => maybe_clone_file(&config.sharedMemory)?,
+            VirtualMachineConfig::RawConfig(_) => None,
+        };
+
+        let restore_snapshot = match (restore_snapshot, saved_vm) {
+            (Some(file), Some(saved_vm)) => {
+                Some(unpack_snapshot(&file, saved_vm, &temporary_directory).map_err(|e| {
+                    let message = format!("Failed to unpack snapshot: {:?}", e);
+                    error!("{}", message);
+                    Status::new_service_specific_error_str(-1, Some(message))
+                })?)
+            }
+            _ => None,
+        };
+
+        // An explicit vCPU count and placement can only be requested with an app config.
+        let (cpu_count, cpu_affinity) = match config {
+            VirtualMachineConfig::AppConfig(config) => {
+                let cpu_affinity = get_cpu_affinity(config.cpuAffinityMask, config.cpuCluster)
+                    .map_err(|e| {
+                        let message = format!("Invalid CPU affinity: {:?}", e);
+                        error!("{}", message);
+                        Status::new_service_specific_error_str(-1, Some(message))
+                    })?;
+                (config.cpuCount, cpu_affinity)
+            }
+            VirtualMachineConfig::RawConfig(_) => (0, None),
+        };
+
         let (is_app_config, config) = match config {
             VirtualMachineConfig::RawConfig(config) => (false, BorrowedOrOwned::Borrowed(config)),
             VirtualMachineConfig::AppConfig(config) => {
@@ -417,15 +564,29 @@ impl VirtualizationService {
             })
             .collect::<Result<Vec<DiskFile>, _>>()?;
 
-        let (cpus, host_cpu_topology) = match config.cpuTopology {
-            CpuTopology::MATCH_HOST => (None, true),
-            CpuTopology::ONE_CPU => (NonZeroU32::new(1), false),
-            val => {
-                error!("Unexpected value of CPU topology: {:?}", val);
-                return Err(Status::new_service_specific_error_str(
-                    -1,
-                    Some(format!("Failed to parse CPU topology value: {:?}", val)),
-                ));
+        let (cpus, host_cpu_topology) = if cpu_count != 0 {
+            let max_cpus = get_num_cpus().unwrap_or(0);
+            match u32::try_from(cpu_count) {
+                Ok(count) if count as usize <= max_cpus => (NonZeroU32::new(count), false),
+                _ => {
+                    error!("Invalid vCPU count {}; the host has {} CPUs", cpu_count, max_cpus);
+                    return Err(Status::new_service_specific_error_str(
+                        -1,
+                        Some(format!("Invalid vCPU count: {}", cpu_count)),
+                    ));
+                }
+            }
+        } else {
+            match config.cpuTopology {
+                CpuTopology::MATCH_HOST => (None, true),
+                CpuTopology::ONE_CPU => (NonZeroU32::new(1), false),
+                val => {
+                    error!("Unexpected value of CPU topology: {:?}", val);
+                    return Err(Status::new_service_specific_error_str(
+                        -1,
+                        Some(format!("Failed to parse CPU topology value: {:?}", val)),
+                    ));
+                }
             }
         };
 
@@ -442,6 +603,7 @@ impl VirtualizationService {
             debug_config,
             memory_mib: config.memoryMib.try_into().ok().and_then(NonZeroU32::new),
             cpus,
+            cpu_affinity,
             host_cpu_topology,
             task_profiles: config.taskProfiles.clone(),
             console_fd,
@@ -451,6 +613,8 @@ impl VirtualizationService {
             platform_version: parse_platform_version_req(&config.platformVersion)?,
             detect_hangup: is_app_config,
             gdb_port,
+            restore_snapshot,
+            shared_memory,
         };
         let instance = Arc::new(
             VmInstance::new(
@@ -473,6 +637,21 @@ impl VirtualizationService {
     }
 }
 
+/// Extracts the crosvm snapshot from the client's snapshot file into the VM's temporary directory.
+fn unpack_snapshot(
+    file: &File,
+    saved_vm: SavedVm,
+    temporary_directory: &Path,
+) -> Result<RestoreSnapshot> {
+    let dir = temporary_directory.join("restore");
+    create_dir(&dir)?;
+    snapshot::unpack(file, &dir)?;
+    Ok(RestoreSnapshot {
+        path: dir.join(snapshot::CROSVM_SNAPSHOT_NAME),
+        payload_state: saved_vm.payload_state,
+    })
+}
+
 fn write_zero_filler(zero_filler_path: &Path) -> Result<()> {
     let file = OpenOptions::new()
         .create_new(true)
@@ -490,6 +669,29 @@ fn format_as_android_vm_instance(part: &mut dyn Write) -> std::io::Result<()> {
     part.flush()
 }
 
+/// Copies the first `len` bytes of `source` to `target`, skipping chunks that are entirely zero so
+/// that they are left unallocated in `target`.
+fn copy_partition_contents<R: Read, W: Write + Seek>(
+    source: &mut R,
+    target: &mut W,
+    len: u64,
+) -> std::io::Result<()> {
+    const CHUNK_SIZE: u64 = 64 * 1024;
+    let mut buf = vec![0u8; CHUNK_SIZE as usize];
+    let mut remaining = len;
+    while remaining > 0 {
+        let chunk = &mut buf[..remaining.min(CHUNK_SIZE) as usize];
+        source.read_exact(chunk)?;
+        if chunk.iter().all(|&b| b == 0) {
+            target.seek(SeekFrom::Current(chunk.len() as i64))?;
+        } else {
+            target.write_all(chunk)?;
+        }
+        remaining -= chunk.len() as u64;
+    }
+    target.flush()
+}
+
 fn format_as_encryptedstore(part: &mut dyn Write) -> std::io::Result<()> {
     part.write_all(UNFORMATTED_STORAGE_MAGIC.as_bytes())?;
     part.flush()
@@ -714,6 +916,7 @@ fn is_safe_app_partition(label: &str) -> bool {
         || label == "microdroid-apk-idsig"
         || label == "payload-metadata"
         || label.starts_with("extra-idsig-")
+        || label.starts_with("data-disk-")
 }
 
 /// Check that a file SELinux label is acceptable.
@@ -810,6 +1013,27 @@ impl IVirtualMachine for VirtualMachine {
         })
     }
 
+    fn requestShutdown(&self) -> binder::Result<()> {
+        self.instance.request_shutdown().map_err(|e| {
+            error!("Error requesting shutdown of VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })
+    }
+
+    fn pause(&self) -> binder::Result<()> {
+        self.instance.pause().map_err(|e| {
+            error!("Error pausing VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })
+    }
+
+    fn resume(&self) -> binder::Result<()> {
+        self.instance.resume().map_err(|e| {
+            error!("Error resuming VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })
+    }
+
     fn onTrimMemory(&self, level: MemoryTrimLevel) -> binder::Result<()> {
         self.instance.trim_memory(level).map_err(|e| {
             error!("Error trimming VM with CID {}: {:?}", self.instance.cid, e);
@@ -817,6 +1041,47 @@ impl IVirtualMachine for VirtualMachine {
         })
     }
 
+    fn setMemoryTarget(&self, target_bytes: i64) -> binder::Result<()> {
+        let target_bytes = target_bytes.try_into().map_err(|_| {
+            Status::new_exception_str(ExceptionCode::ILLEGAL_ARGUMENT, Some("Negative target"))
+        })?;
+        self.instance.set_memory_target(target_bytes).map_err(|e| {
+            error!("Error setting memory target of VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })
+    }
+
+    fn getMemoryStats(&self) -> binder::Result<MemoryStats> {
+        let stats = self.instance.memory_stats().map_err(|e| {
+            error!("Error getting memory stats of VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })?;
+        let to_i64 = |bytes: u64| bytes.try_into().unwrap_or(i64::MAX);
+        Ok(MemoryStats {
+            totalBytes: to_i64(stats.total_bytes),
+            balloonBytes: to_i64(stats.balloon_bytes),
+            freeBytes: stats.free_bytes.map_or(-1, to_i64),
+            availableBytes: stats.available_bytes.map_or(-1, to_i64),
+        })
+    }
+
+    fn getResourceUsage(&self) -> binder::Result<ResourceUsage> {
+        let usage = self.instance.resource_usage().map_err(|e| {
+            error!("Error getting resource usage of VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })?;
+        Ok(ResourceUsage {
+            guestRssBytes: usage.rss.vm * 1024,
+            hostRssBytes: (usage.rss.crosvm - usage.rss.vm) * 1024,
+            guestPssBytes: usage.pss.vm * 1024,
+            hostPssBytes: (usage.pss.crosvm - usage.pss.vm) * 1024,
+            cpuTimeMillis: usage.cpu_time_millis,
+            vcpuTimeMillis: usage.guest_time_millis,
+            blockReadBytes: usage.read_bytes,
+            blockWriteBytes: usage.write_bytes,
+        })
+    }
+
     fn connectVsock(&self, port: i32) -> binder::Result<ParcelFileDescriptor> {
         if !matches!(&*self.instance.vm_state.lock().unwrap(), VmState::Running { .. }) {
             return Err(Status::new_service_specific_error_str(-1, Some("VM is not running")));
@@ -833,6 +1098,14 @@ impl IVirtualMachine for VirtualMachine {
         })?;
         Ok(vsock_stream_to_pfd(stream))
     }
+
+    fn snapshot(&self, snapshot_fd: &ParcelFileDescriptor) -> binder::Result<()> {
+        let mut output = clone_file(snapshot_fd)?;
+        self.instance.snapshot(&mut output).map_err(|e| {
+            error!("Error taking snapshot of VM with CID {}: {:?}", self.instance.cid, e);
+            Status::new_service_specific_error_str(-1, Some(e.to_string()))
+        })
+    }
 }
 
 impl Drop for VirtualMachine {
@@ -943,6 +1216,7 @@ impl State {
 fn get_state(instance: &VmInstance) -> VirtualMachineState {
     match &*instance.vm_state.lock().unwrap() {
         VmState::NotStarted { .. } => VirtualMachineState::NOT_STARTED,
+        VmState::Running { .. } if instance.is_paused() => VirtualMachineState::PAUSED,
         VmState::Running { .. } => match instance.payload_state() {
             PayloadState::Starting => VirtualMachineState::STARTING,
             PayloadState::Started => VirtualMachineState::STARTED,
@@ -1040,6 +1314,49 @@ fn extract_gdb_port(config: &VirtualMachineConfig) -> Option<NonZeroU16> {
     }
 }
 
+/// Returns the host CPUs that the vCPUs of a VM should be restricted to, if any, given either an
+/// explicit mask of CPUs or a cluster.
+fn get_cpu_affinity(mask: i64, cluster: CpuCluster) -> Result<Option<Vec<usize>>> {
+    let num_cpus = get_num_cpus().context("Failed to get the number of host CPUs")?;
+    if mask != 0 {
+        let cpus: Vec<usize> =
+            (0..i64::BITS as usize).filter(|cpu| (mask >> cpu) & 1 != 0).collect();
+        if let Some(cpu) = cpus.iter().find(|&&cpu| cpu >= num_cpus) {
+            bail!("CPU {} does not exist; the host has {} CPUs", cpu, num_cpus);
+        }
+        return Ok(Some(cpus));
+    }
+    let want_big = match cluster {
+        CpuCluster::ANY => return Ok(None),
+        CpuCluster::LITTLE => false,
+        CpuCluster::BIG => true,
+        val => bail!("Unexpected value of CPU cluster: {:?}", val),
+    };
+    let Some(capacities) = get_cpu_capacities(num_cpus)? else {
+        // All the CPUs are the same, so they all belong to every cluster.
+        return Ok(None);
+    };
+    let target = if want_big { capacities.iter().max() } else { capacities.iter().min() };
+    let cpus = (0..num_cpus).filter(|&cpu| Some(&capacities[cpu]) == target).collect();
+    Ok(Some(cpus))
+}
+
+/// Reads the relative capacity of each host CPU. Returns `None` if the kernel doesn't report it,
+/// which is the case when all the CPUs are the same.
+fn get_cpu_capacities(num_cpus: usize) -> Result<Option<Vec<u32>>> {
+    let mut capacities = Vec::with_capacity(num_cpus);
+    for cpu in 0..num_cpus {
+        let path = format!("/sys/devices/system/cpu/cpu{}/cpu_capacity", cpu);
+        match std::fs::read_to_string(&path) {
+            Ok(capacity) => capacities
+                .push(capacity.trim().parse().with_context(|| format!("Invalid {}", path))?),
+            Err(e) if e.kind() == ErrorKind::NotFound => return Ok(None),
+            Err(e) => return Err(e).with_context(|| format!("Failed to read {}", path)),
+        }
+    }
+    Ok(Some(capacities))
+}
+
 fn clone_or_prepare_logger_fd(
     debug_config: &DebugConfig,
     fd: Option<&ParcelFileDescriptor>,
@@ -1184,6 +1501,24 @@ impl IVirtualMachineService for VirtualMachineService {
             ))
         }
     }
+
+    fn setShutdownRequestHandler(
+        &self,
+        handler: &Strong<dyn IShutdownRequestHandler>,
+    ) -> binder::Result<()> {
+        let cid = self.cid;
+        if let Some(vm) = self.state.lock().unwrap().get_vm(cid) {
+            info!("VM with CID {} registered a shutdown request handler", cid);
+            vm.set_shutdown_request_handler(handler.clone());
+            Ok(())
+        } else {
+            error!("setShutdownRequestHandler is called from an unknown CID {}", cid);
+            Err(Status::new_service_specific_error_str(
+                -1,
+                Some(format!("cannot find a VM with CID {}", cid)),
+            ))
+        }
+    }
 }
 
 impl VirtualMachineService {
@@ -111,11 +111,12 @@ pub fn write_vm_creation_stats(
             binder_exception_code = e.exception_code() as i32;
         }
     }
-    let (vm_identifier, config_type, cpu_topology, memory_mib, apexes) = match config {
+    let (vm_identifier, config_type, cpu_topology, cpu_count, memory_mib, apexes) = match config {
         VirtualMachineConfig::AppConfig(config) => (
             config.name.clone(),
             vm_creation_requested::ConfigType::VirtualMachineAppConfig,
             config.cpuTopology,
+            config.cpuCount,
             config.memoryMib,
             get_apex_list(config),
         ),
@@ -123,19 +124,24 @@ pub fn write_vm_creation_stats(
             config.name.clone(),
             vm_creation_requested::ConfigType::VirtualMachineRawConfig,
             config.cpuTopology,
+            0,
             config.memoryMib,
             String::new(),
         ),
     };
 
-    let num_cpus: i32 = match cpu_topology {
-        CpuTopology::MATCH_HOST => {
-            get_num_cpus().and_then(|v| v.try_into().ok()).unwrap_or_else(|| {
-                warn!("Failed to determine the number of CPUs in the host");
-                INVALID_NUM_CPUS
-            })
+    let num_cpus: i32 = if cpu_count > 0 {
+        cpu_count
+    } else {
+        match cpu_topology {
+            CpuTopology::MATCH_HOST => {
+                get_num_cpus().and_then(|v| v.try_into().ok()).unwrap_or_else(|| {
+                    warn!("Failed to determine the number of CPUs in the host");
+                    INVALID_NUM_CPUS
+                })
+            }
+            _ => 1,
         }
-        _ => 1,
     };
 
     let atom = AtomVmCreationRequested {
@@ -17,6 +17,7 @@
 use crate::aidl::{remove_temporary_files, Cid, VirtualMachineCallbacks};
 use crate::atom::{get_num_cpus, write_vm_exited_stats_sync};
 use crate::debug_config::DebugConfig;
+use crate::snapshot::{self, SavedVm};
 use anyhow::{anyhow, bail, Context, Error, Result};
 use command_fds::CommandFdExt;
 use lazy_static::lazy_static;
@@ -30,7 +31,7 @@ use shared_child::SharedChild;
 use std::borrow::Cow;
 use std::cmp::max;
 use std::fmt;
-use std::fs::{read_to_string, File};
+use std::fs::{create_dir, read_to_string, remove_dir_all, File};
 use std::io::{self, Read};
 use std::mem;
 use std::num::{NonZeroU16, NonZeroU32};
@@ -48,6 +49,7 @@ use android_system_virtualizationservice::aidl::android::system::virtualizations
 };
 use android_system_virtualizationservice_internal::aidl::android::system::virtualizationservice_internal::IGlobalVmContext::IGlobalVmContext;
 use binder::Strong;
+use android_system_virtualmachineservice::aidl::android::system::virtualmachineservice::IShutdownRequestHandler::IShutdownRequestHandler;
 use android_system_virtualmachineservice::aidl::android::system::virtualmachineservice::IVirtualMachineService::IVirtualMachineService;
 use tombstoned_client::{TombstonedConnection, DebuggerdDumpType};
 use rpcbinder::RpcServer;
@@ -55,7 +57,7 @@ use rpcbinder::RpcServer;
 /// external/crosvm
 use base::AsRawDescriptor;
 use base::UnixSeqpacketListener;
-use vm_control::{BalloonControlCommand, VmRequest, VmResponse};
+use vm_control::{BalloonControlCommand, SnapshotCommand, VmRequest, VmResponse};
 
 const CROSVM_PATH: &str = "/apex/com.android.virt/bin/crosvm";
 
@@ -105,6 +107,7 @@ pub struct CrosvmConfig {
     pub debug_config: DebugConfig,
     pub memory_mib: Option<NonZeroU32>,
     pub cpus: Option<NonZeroU32>,
+    pub cpu_affinity: Option<Vec<usize>>,
     pub host_cpu_topology: bool,
     pub task_profiles: Vec<String>,
     pub console_fd: Option<File>,
@@ -114,6 +117,17 @@ pub struct CrosvmConfig {
     pub platform_version: VersionReq,
     pub detect_hangup: bool,
     pub gdb_port: Option<NonZeroU16>,
+    pub restore_snapshot: Option<RestoreSnapshot>,
+    pub shared_memory: Option<File>,
+}
+
+/// A snapshot to restore the VM from, instead of booting it.
+#[derive(Debug)]
+pub struct RestoreSnapshot {
+    /// Path of the crosvm snapshot, unpacked from the client's file.
+    pub path: PathBuf,
+    /// The payload state when the snapshot was taken.
+    pub payload_state: PayloadState,
 }
 
 /// A disk image to pass to crosvm for a VM.
@@ -173,6 +187,25 @@ pub struct VmMetric {
     pub cpu_guest_time: Option<i64>,
     /// Update maximum RSS values periodically from /proc/[crosvm pid]/smaps while VM is running.
     pub rss: Option<Rss>,
+    /// The most recent sample of the resources used by the VM, updated with the values above.
+    pub latest_usage: Option<ResourceUsage>,
+}
+
+/// A sample of the host resources used by a VM, i.e. by its crosvm process.
+#[derive(Copy, Clone, Debug, Default)]
+pub struct ResourceUsage {
+    /// RSS in KiB, from /proc/[crosvm pid]/smaps.
+    pub rss: Rss,
+    /// PSS in KiB, from /proc/[crosvm pid]/smaps.
+    pub pss: Rss,
+    /// CPU time used by crosvm, including running the vCPUs, in milliseconds.
+    pub cpu_time_millis: i64,
+    /// CPU time spent running the vCPUs, in milliseconds.
+    pub guest_time_millis: i64,
+    /// Bytes crosvm caused to be read from storage, from /proc/[crosvm pid]/io.
+    pub read_bytes: i64,
+    /// Bytes crosvm caused to be written to storage, from /proc/[crosvm pid]/io.
+    pub write_bytes: i64,
 }
 
 impl VmState {
@@ -221,7 +254,6 @@ impl VmState {
 /// Internal struct that holds the handles to globally unique resources of a VM.
 #[derive(Debug)]
 pub struct VmContext {
-    #[allow(dead_code)] // Keeps the global context alive
     global_context: Strong<dyn IGlobalVmContext>,
     #[allow(dead_code)] // Keeps the server alive
     vm_server: RpcServer,
@@ -234,6 +266,19 @@ impl VmContext {
     }
 }
 
+/// Memory usage of a VM, as reported by its balloon device.
+#[derive(Clone, Copy, Debug)]
+pub struct MemoryStats {
+    /// The amount of memory the VM was started with.
+    pub total_bytes: u64,
+    /// The amount of memory currently held by the balloon, i.e. reclaimed from the guest.
+    pub balloon_bytes: u64,
+    /// The amount of memory the guest reports as free.
+    pub free_bytes: Option<u64>,
+    /// The amount of memory the guest reports as available without swapping.
+    pub available_bytes: Option<u64>,
+}
+
 /// Information about a particular instance of a VM which may be running.
 #[derive(Debug)]
 pub struct VmInstance {
@@ -250,6 +295,8 @@ pub struct VmInstance {
     pub name: String,
     /// Whether the VM is a protected VM.
     pub protected: bool,
+    /// The amount of memory the VM was configured with, if not the crosvm default.
+    memory_mib: Option<NonZeroU32>,
     /// Directory of temporary files used by the VM while it is running.
     pub temporary_directory: PathBuf,
     /// The UID of the process which requested the VM.
@@ -265,6 +312,10 @@ pub struct VmInstance {
     pub vm_metric: Mutex<VmMetric>,
     /// The latest lifecycle state which the payload reported itself to be in.
     payload_state: Mutex<PayloadState>,
+    /// Whether the vCPUs of the VM have been paused by `pause`.
+    paused: Mutex<bool>,
+    /// The handler which the guest registered for `request_shutdown`, if any.
+    shutdown_request_handler: Mutex<Option<Strong<dyn IShutdownRequestHandler>>>,
     /// Represents the condition that payload_state was updated
     payload_state_updated: Condvar,
     /// The human readable name of requester_uid
@@ -295,6 +346,10 @@ impl VmInstance {
         let cid = config.cid;
         let name = config.name.clone();
         let protected = config.protected;
+        let memory_mib = config.memory_mib;
+        // A restored guest carries on from where it was when the snapshot was taken.
+        let payload_state =
+            config.restore_snapshot.as_ref().map_or(PayloadState::Starting, |s| s.payload_state);
         let requester_uid_name = User::from_uid(Uid::from_raw(requester_uid))
             .ok()
             .flatten()
@@ -306,13 +361,16 @@ impl VmInstance {
             crosvm_control_socket_path: temporary_directory.join("crosvm.sock"),
             name,
             protected,
+            memory_mib,
             temporary_directory,
             requester_uid,
             requester_debug_pid,
             callbacks: Default::default(),
             vm_service: Mutex::new(None),
             vm_metric: Mutex::new(Default::default()),
-            payload_state: Mutex::new(PayloadState::Starting),
+            payload_state: Mutex::new(payload_state),
+            paused: Mutex::new(false),
+            shutdown_request_handler: Mutex::new(None),
             payload_state_updated: Condvar::new(),
             requester_uid_name,
         };
@@ -431,23 +489,38 @@ impl VmInstance {
                 }
 
                 let mut vm_metric = self.vm_metric.lock().unwrap();
+                let mut usage = vm_metric.latest_usage.unwrap_or_default();
 
                 // Get CPU Information
-                if let Ok(guest_time) = get_guest_time(pid) {
-                    vm_metric.cpu_guest_time = Some(guest_time);
+                if let Ok(cpu_times) = get_cpu_times(pid) {
+                    vm_metric.cpu_guest_time = Some(cpu_times.guest_millis);
+                    usage.cpu_time_millis = cpu_times.total_millis;
+                    usage.guest_time_millis = cpu_times.guest_millis;
                 } else {
                     error!("Failed to parse /proc/[pid]/stat");
                 }
 
                 // Get Memory Information
-                if let Ok(rss) = get_rss(pid) {
+                if let Ok((rss, pss)) = get_rss_and_pss(pid) {
                     vm_metric.rss = match &vm_metric.rss {
                         Some(x) => Some(Rss::extract_max(x, &rss)),
                         None => Some(rss),
-                    }
+                    };
+                    usage.rss = rss;
+                    usage.pss = pss;
                 } else {
                     error!("Failed to parse /proc/[pid]/smaps");
                 }
+
+                // Get I/O Information
+                if let Ok((read_bytes, write_bytes)) = get_io_bytes(pid) {
+                    usage.read_bytes = read_bytes;
+                    usage.write_bytes = write_bytes;
+                } else {
+                    error!("Failed to parse /proc/[pid]/io");
+                }
+
+                vm_metric.latest_usage = Some(usage);
             }
 
             thread::sleep(Duration::from_secs(1));
@@ -499,9 +572,78 @@ impl VmInstance {
         Ok(())
     }
 
+    /// Asks the guest OS to shut down cleanly. The VM exits later, if the guest honours the
+    /// request.
+    ///
+    /// Microdroid registers a handler for this, which stops the payload and flushes the storage
+    /// before powering off. Other guests get the virtual power button pressed instead.
+    pub fn request_shutdown(&self) -> Result<(), Error> {
+        let vm_state = self.vm_state.lock().unwrap();
+        if !matches!(&*vm_state, VmState::Running { .. }) {
+            bail!("VM is not running");
+        }
+        if self.is_paused() {
+            // A paused guest can't respond to the request.
+            bail!("VM is paused");
+        }
+        if let Some(handler) = &*self.shutdown_request_handler.lock().unwrap() {
+            handler.onShutdownRequested().context("Failed to deliver shutdown request")?;
+        } else {
+            self.send_vm_request(&VmRequest::Powerbtn)?;
+        }
+        info!("{} asked to shut down", self);
+        Ok(())
+    }
+
+    /// Sets the handler which the guest registered for `request_shutdown`.
+    pub fn set_shutdown_request_handler(&self, handler: Strong<dyn IShutdownRequestHandler>) {
+        *self.shutdown_request_handler.lock().unwrap() = Some(handler);
+    }
+
+    /// Stops running the vCPUs of the VM, leaving its memory and devices intact.
+    pub fn pause(&self) -> Result<(), Error> {
+        let vm_state = self.vm_state.lock().unwrap();
+        if !matches!(&*vm_state, VmState::Running { .. }) {
+            bail!("VM is not running");
+        }
+        let mut paused = self.paused.lock().unwrap();
+        if *paused {
+            bail!("VM is already paused");
+        }
+        self.send_vm_request(&VmRequest::Suspend)?;
+        *paused = true;
+        info!("{} paused", self);
+        Ok(())
+    }
+
+    /// Resumes running the vCPUs of a VM paused by `pause`.
+    pub fn resume(&self) -> Result<(), Error> {
+        let vm_state = self.vm_state.lock().unwrap();
+        if !matches!(&*vm_state, VmState::Running { .. }) {
+            bail!("VM is not running");
+        }
+        let mut paused = self.paused.lock().unwrap();
+        if !*paused {
+            bail!("VM is not paused");
+        }
+        self.send_vm_request(&VmRequest::Resume)?;
+        *paused = false;
+        info!("{} resumed", self);
+        Ok(())
+    }
+
+    /// Returns whether the vCPUs of the VM have been paused by `pause`.
+    pub fn is_paused(&self) -> bool {
+        *self.paused.lock().unwrap()
+    }
+
     /// Responds to memory-trimming notifications by inflating the virtio
     /// balloon to reclaim guest memory.
     pub fn trim_memory(&self, level: MemoryTrimLevel) -> Result<(), Error> {
+        if self.is_paused() {
+            // A paused guest can't respond to the balloon, and uses no more memory than it did.
+            return Ok(());
+        }
         let request = VmRequest::BalloonCommand(BalloonControlCommand::Stats {});
         match vm_control::client::handle_request(&request, &self.crosvm_control_socket_path) {
             Ok(VmResponse::BalloonStats { stats, balloon_actual: _ }) => {
@@ -539,6 +681,138 @@ impl VmInstance {
         Ok(())
     }
 
+    /// Inflates or deflates the balloon so that the guest is left with about `target_bytes` of
+    /// memory.
+    pub fn set_memory_target(&self, target_bytes: u64) -> Result<(), Error> {
+        let stats = self.memory_stats()?;
+        if target_bytes == 0 || target_bytes > stats.total_bytes {
+            bail!("Invalid memory target {}; the VM has {} bytes", target_bytes, stats.total_bytes);
+        }
+        let command = BalloonControlCommand::Adjust { num_bytes: stats.total_bytes - target_bytes };
+        self.send_vm_request(&VmRequest::BalloonCommand(command))?;
+        info!("Set memory target of {} to {} bytes", self, target_bytes);
+        Ok(())
+    }
+
+    /// Returns the memory usage of the VM, as reported by its balloon device.
+    pub fn memory_stats(&self) -> Result<MemoryStats, Error> {
+        if !matches!(&*self.vm_state.lock().unwrap(), VmState::Running { .. }) {
+            bail!("VM is not running");
+        }
+        if self.is_paused() {
+            bail!("A paused VM can't report its memory usage");
+        }
+        let request = VmRequest::BalloonCommand(BalloonControlCommand::Stats {});
+        match vm_control::client::handle_request(&request, &self.crosvm_control_socket_path) {
+            Ok(VmResponse::BalloonStats { stats, balloon_actual }) => {
+                let total_bytes = match self.memory_mib {
+                    Some(mib) => u64::from(mib.get()) * 1024 * 1024,
+                    // The guest's view of its memory excludes what the balloon holds.
+                    None => stats.total_memory.unwrap_or(0) + balloon_actual,
+                };
+                Ok(MemoryStats {
+                    total_bytes,
+                    balloon_bytes: balloon_actual,
+                    free_bytes: stats.free_memory,
+                    available_bytes: stats.available_memory,
+                })
+            }
+            Ok(VmResponse::Err(e)) if e.errno() == libc::ENOTSUP => {
+                bail!("The VM has no balloon device, or the guest hasn't initialized it")
+            }
+            e => bail!("Error requesting balloon stats: {:?}", e),
+        }
+    }
+
+    /// Returns the most recent sample of the resources used by the running VM, which is at most
+    /// about a second old.
+    pub fn resource_usage(&self) -> Result<ResourceUsage, Error> {
+        let pid = match &*self.vm_state.lock().unwrap() {
+            VmState::Running { child, .. } => child.id(),
+            _ => bail!("VM is not running"),
+        };
+        if let Some(usage) = self.vm_metric.lock().unwrap().latest_usage {
+            return Ok(usage);
+        }
+        // The monitor thread hasn't taken its first sample yet.
+        let cpu_times = get_cpu_times(pid)?;
+        let (rss, pss) = get_rss_and_pss(pid)?;
+        let (read_bytes, write_bytes) = get_io_bytes(pid)?;
+        Ok(ResourceUsage {
+            rss,
+            pss,
+            cpu_time_millis: cpu_times.total_millis,
+            guest_time_millis: cpu_times.guest_millis,
+            read_bytes,
+            write_bytes,
+        })
+    }
+
+    /// Sends a request which doesn't return any data to the crosvm control socket.
+    fn send_vm_request(&self, request: &VmRequest) -> Result<(), Error> {
+        match vm_control::client::handle_request(request, &self.crosvm_control_socket_path) {
+            Ok(VmResponse::Ok) => Ok(()),
+            Ok(VmResponse::Err(e)) => bail!("crosvm failed {:?}: {}", request, e),
+            e => bail!("Unexpected response to {:?}: {:?}", request, e),
+        }
+    }
+
+    /// Saves the guest memory and device state of the VM to `output`, and then stops the VM.
+    pub fn snapshot(&self, output: &mut File) -> Result<(), Error> {
+        if self.protected {
+            bail!("Can't snapshot a protected VM");
+        }
+        let payload_state = {
+            let vm_state = self.vm_state.lock().unwrap();
+            if !matches!(&*vm_state, VmState::Running { .. }) {
+                bail!("VM is not running");
+            }
+            // Hold the lock so that the VM can't be paused or resumed meanwhile.
+            let paused = self.paused.lock().unwrap();
+            // A VM paused by the client must stay paused if the snapshot fails.
+            if !*paused {
+                self.send_vm_request(&VmRequest::Suspend)?;
+            }
+            let result = self.take_snapshot(output);
+            if result.is_err() && !*paused {
+                if let Err(e) = self.send_vm_request(&VmRequest::Resume) {
+                    error!("Error resuming {} after failed snapshot: {:?}", self, e);
+                }
+            }
+            result?
+        };
+        info!("Saved a snapshot of {}", self);
+        // The guest must not run on from the snapshotted state, as it would diverge from the
+        // snapshot, e.g. by writing to its disks.
+        self.kill()?;
+        // The snapshot can only be restored by this virtmgr, which keeps the CID reserved for it
+        // meanwhile.
+        let saved_vm =
+            SavedVm { global_context: self.vm_context.global_context.clone(), payload_state };
+        snapshot::save(output, saved_vm).context("Failed to save snapshot")
+    }
+
+    /// Has crosvm write a snapshot of the suspended VM, and packs it into `output`. Returns the
+    /// payload state at that point.
+    fn take_snapshot(&self, output: &mut File) -> Result<PayloadState, Error> {
+        // crosvm can only write the snapshot to a path, and may write more than one file, so have
+        // it write to an empty directory and pack all of that.
+        let snapshot_dir = self.temporary_directory.join("snapshot");
+        if snapshot_dir.exists() {
+            remove_dir_all(&snapshot_dir)?;
+        }
+        create_dir(&snapshot_dir)?;
+        let snapshot_path = snapshot_dir.join(snapshot::CROSVM_SNAPSHOT_NAME);
+        let result = self
+            .send_vm_request(&VmRequest::Snapshot(SnapshotCommand::Take { snapshot_path }))
+            .and_then(|()| snapshot::pack(&snapshot_dir, output).context("Failed to save snapshot"))
+            .map(|()| *self.payload_state.lock().unwrap());
+        if let Err(e) = remove_dir_all(&snapshot_dir) {
+            error!("Error removing snapshot directory {:?}: {:?}", snapshot_dir, e);
+        }
+        result
+    }
+
     /// Checks if ramdump has been created. If so, send it to tombstoned.
     fn handle_ramdump(&self) -> Result<(), Error> {
         let ramdump_path = self.temporary_directory.join("ramdump");
@@ -577,12 +851,21 @@ impl Rss {
     }
 }
 
-// Get guest time from /proc/[crosvm pid]/stat
-fn get_guest_time(pid: u32) -> Result<i64> {
+/// CPU time used by a process, in milliseconds.
+struct CpuTimes {
+    /// User and system time, which includes the guest time.
+    total_millis: i64,
+    /// Time spent running a guest.
+    guest_millis: i64,
+}
+
+// Get CPU times from /proc/[crosvm pid]/stat
+fn get_cpu_times(pid: u32) -> Result<CpuTimes> {
     let file = read_to_string(format!("/proc/{}/stat", pid))?;
     let data_list: Vec<_> = file.split_whitespace().collect();
 
-    // Information about guest_time is at 43th place of the file split with the whitespace.
+    // Information about utime, stime and guest_time is at the 14th, 15th and 43th place of the
+    // file split with the whitespace.
     // Example of /proc/[pid]/stat :
     // 6603 (kworker/104:1H-kblockd) I 2 0 0 0 -1 69238880 0 0 0 0 0 88 0 0 0 -20 1 0 1845 0 0
     // 18446744073709551615 0 0 0 0 0 0 0 2147483647 0 0 0 0 17 104 0 0 0 0 0 0 0 0 0 0 0 0 0
@@ -590,39 +873,68 @@ fn get_guest_time(pid: u32) -> Result<i64> {
         bail!("Failed to parse command result for getting guest time : {}", file);
     }
 
+    let utime_ticks = data_list[13].parse::<i64>()?;
+    let stime_ticks = data_list[14].parse::<i64>()?;
     let guest_time_ticks = data_list[42].parse::<i64>()?;
     // SAFETY : It just returns an integer about CPU tick information.
     let ticks_per_sec = unsafe { sysconf(_SC_CLK_TCK) };
-    Ok(guest_time_ticks * MILLIS_PER_SEC / ticks_per_sec)
+    Ok(CpuTimes {
+        total_millis: (utime_ticks + stime_ticks) * MILLIS_PER_SEC / ticks_per_sec,
+        guest_millis: guest_time_ticks * MILLIS_PER_SEC / ticks_per_sec,
+    })
 }
 
-// Get rss from /proc/[crosvm pid]/smaps
-fn get_rss(pid: u32) -> Result<Rss> {
+// Get rss and pss from /proc/[crosvm pid]/smaps
+fn get_rss_and_pss(pid: u32) -> Result<(Rss, Rss)> {
     let file = read_to_string(format!("/proc/{}/smaps", pid))?;
-    let lines: Vec<_> = file.split('\n').collect();
 
-    let mut rss_vm_total = 0i64;
-    let mut rss_crosvm_total = 0i64;
+    let mut rss = Rss::default();
+    let mut pss = Rss::default();
     let mut is_vm = false;
-    for line in lines {
-        if line.contains("crosvm_guest") {
-            is_vm = true;
-        } else if line.contains("Rss:") {
-            let data_list: Vec<_> = line.split_whitespace().collect();
-            if data_list.len() < 2 {
-                bail!("Failed to parse command result for getting rss :\n{}", line);
-            }
-            let rss = data_list[1].parse::<i64>()?;
-
-            if is_vm {
-                rss_vm_total += rss;
-                is_vm = false;
+    for line in file.split('\n') {
+        let data_list: Vec<_> = line.split_whitespace().collect();
+        let Some(&key) = data_list.first() else {
+            continue;
+        };
+        let total = match key {
+            "Rss:" => &mut rss,
+            "Pss:" => &mut pss,
+            _ if !key.ends_with(':') => {
+                // This is the header of the next mapping.
+                is_vm = line.contains("crosvm_guest");
+                continue;
             }
-            rss_crosvm_total += rss;
+            _ => continue,
+        };
+        if data_list.len() < 2 {
+            bail!("Failed to parse command result for getting rss :\n{}", line);
         }
+        let value = data_list[1].parse::<i64>()?;
+        if is_vm {
+            total.vm += value;
+        }
+        total.crosvm += value;
     }
 
-    Ok(Rss { vm: rss_vm_total, crosvm: rss_crosvm_total })
+    Ok((rss, pss))
+}
+
+// Get the bytes read from and written to storage from /proc/[crosvm pid]/io
+fn get_io_bytes(pid: u32) -> Result<(i64, i64)> {
+    let file = read_to_string(format!("/proc/{}/io", pid))?;
+    let mut read_bytes = None;
+    let mut write_bytes = None;
+    for line in file.lines() {
+        if let Some(value) = line.strip_prefix("read_bytes:") {
+            read_bytes = Some(value.trim().parse::<i64>()?);
+        } else if let Some(value) = line.strip_prefix("write_bytes:") {
+            write_bytes = Some(value.trim().parse::<i64>()?);
+        }
+    }
+    match (read_bytes, write_bytes) {
+        (Some(read_bytes), Some(write_bytes)) => Ok((read_bytes, write_bytes)),
+        _ => bail!("Failed to parse command result for getting io :\n{}", file),
+    }
 }
 
 fn death_reason(result: &Result<ExitStatus, io::Error>, mut failure_reason: &str) -> DeathReason {
@@ -747,6 +1059,11 @@ fn run_vm(
         command.arg("--cpus").arg(cpus.to_string());
     }
 
+    if let Some(cpu_affinity) = &config.cpu_affinity {
+        let cpus: Vec<String> = cpu_affinity.iter().map(|cpu| cpu.to_string()).collect();
+        command.arg("--cpu-affinity").arg(cpus.join(","));
+    }
+
     if config.host_cpu_topology {
         // TODO(b/266664564): replace with --host-cpu-topology once available
         if let Some(cpus) = get_num_cpus() {
@@ -818,6 +1135,16 @@ fn run_vm(
         command.arg(add_preserved_fd(&mut preserved_fds, kernel));
     }
 
+    if let Some(snapshot) = &config.restore_snapshot {
+        command.arg("--restore").arg(&snapshot.path);
+    }
+
+    if let Some(shared_memory) = &config.shared_memory {
+        // crosvm maps the file into the guest physical address space, so both sides see the same
+        // pages without copying.
+        command.arg("--rw-pmem-device").arg(add_preserved_fd(&mut preserved_fds, shared_memory));
+    }
+
     let control_server_socket = UnixSeqpacketListener::bind(crosvm_control_socket_path)
         .context("failed to create control server")?;
     command
@@ -842,6 +1169,12 @@ fn validate_config(config: &CrosvmConfig) -> Result<(), Error> {
     if config.bootloader.is_some() && (config.kernel.is_some() || config.initrd.is_some()) {
         bail!("Can't have both bootloader and kernel/initrd image.");
     }
+    if config.protected && config.restore_snapshot.is_some() {
+        bail!("Can't restore a protected VM from a snapshot.");
+    }
+    if config.protected && config.shared_memory.is_some() {
+        bail!("Can't share memory with a protected VM.");
+    }
     let version = Version::parse(CROSVM_PLATFORM_VERSION).unwrap();
     if !config.platform_version.matches(&version) {
         bail!(
@@ -21,6 +21,7 @@ mod crosvm;
 mod debug_config;
 mod payload;
 mod selinux;
+mod snapshot;
 
 use crate::aidl::{GLOBAL_SERVICE, VirtualizationService};
 use android_system_virtualizationservice::aidl::android::system::virtualizationservice::IVirtualizationService::BnVirtualizationService;
@@ -426,6 +426,17 @@ pub fn add_microdroid_system_images(
         });
     }
 
+    // Data disks are partitions of this disk too, so that the guest finds them by name at
+    // /dev/block/by-name/data-disk-<index> however many disks Microdroid itself has.
+    for (index, disk) in config.dataDisks.iter().enumerate() {
+        let image = disk.image.as_ref().context("Data disk must be an image")?;
+        writable_partitions.push(Partition {
+            label: format!("data-disk-{index}"),
+            image: Some(ParcelFileDescriptor::new(image.as_ref().try_clone()?)),
+            writable: disk.writable,
+        });
+    }
+
     vm_config.disks.push(DiskImage {
         image: None,
         partitions: writable_partitions,
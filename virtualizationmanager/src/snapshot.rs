@@ -0,0 +1,248 @@
+// Copyright 2023, The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+//! Packing of VM snapshots into the single file kept by the client, and the state virtmgr keeps to
+//! restore them.
+//!
+//! crosvm may write a snapshot as several files, which are stored together in an uncompressed zip
+//! archive. The file is writable by the client, so nothing in it is trusted beyond what crosvm
+//! restores into the guest. The state of the VM which virtmgr keeps, such as its CID and payload
+//! state, is held in memory instead, and only for snapshots taken by this virtmgr.
+
+use crate::crosvm::PayloadState;
+use android_system_virtualizationservice_internal::aidl::android::system::virtualizationservice_internal::IGlobalVmContext::IGlobalVmContext;
+use anyhow::{anyhow, bail, Context, Result};
+use binder::Strong;
+use lazy_static::lazy_static;
+use std::collections::VecDeque;
+use std::fs::{create_dir_all, read_dir, File};
+use std::io::{self, Seek, Write};
+use std::os::unix::fs::MetadataExt;
+use std::path::Path;
+use std::sync::Mutex;
+use zip::{write::FileOptions, CompressionMethod, ZipArchive, ZipWriter};
+
+/// Name crosvm is asked to write the snapshot to, within the snapshot directory.
+pub const CROSVM_SNAPSHOT_NAME: &str = "vm";
+
+/// Maximum number of snapshots which are kept restorable. Each of them keeps a CID reserved.
+const MAX_SAVED_VMS: usize = 4;
+
+lazy_static! {
+    /// Snapshots taken by this virtmgr which have not been restored yet.
+    static ref SAVED_VMS: Mutex<SavedVms<SavedVm>> = Mutex::new(SavedVms::new(MAX_SAVED_VMS));
+}
+
+/// State of a snapshotted VM which is not part of the crosvm snapshot, but which must be restored
+/// with it.
+#[derive(Debug)]
+pub struct SavedVm {
+    /// The global context of the VM. Holding it keeps the CID from being given to another VM, as
+    /// the restored guest keeps using it for vsock.
+    pub global_context: Strong<dyn IGlobalVmContext>,
+    /// The payload state when the snapshot was taken.
+    pub payload_state: PayloadState,
+}
+
+/// Records that a snapshot of a VM has been written to `file`, so that it can be restored. This
+/// replaces any snapshot previously written to the same file, and drops the oldest snapshot if
+/// too many are kept.
+pub fn save(file: &File, saved_vm: SavedVm) -> Result<()> {
+    SAVED_VMS.lock().unwrap().insert(FileKey::of(file)?, saved_vm);
+    Ok(())
+}
+
+/// Takes the state saved for the snapshot in `file`. Fails if this virtmgr didn't write a snapshot
+/// to the file, or it has already been restored.
+pub fn take(file: &File) -> Result<SavedVm> {
+    SAVED_VMS.lock().unwrap().remove(FileKey::of(file)?).ok_or_else(|| {
+        anyhow!("Not a snapshot taken by this process, or it has already been restored")
+    })
+}
+
+/// Identifies the file a snapshot was written to, whatever its contents are later.
+#[derive(Clone, Copy, Debug, Eq, PartialEq)]
+struct FileKey {
+    dev: u64,
+    ino: u64,
+}
+
+impl FileKey {
+    fn of(file: &File) -> io::Result<Self> {
+        let metadata = file.metadata()?;
+        Ok(Self { dev: metadata.dev(), ino: metadata.ino() })
+    }
+}
+
+/// A bounded set of values keyed by file, oldest first.
+struct SavedVms<T> {
+    entries: VecDeque<(FileKey, T)>,
+    capacity: usize,
+}
+
+impl<T> SavedVms<T> {
+    fn new(capacity: usize) -> Self {
+        Self { entries: VecDeque::new(), capacity }
+    }
+
+    fn insert(&mut self, key: FileKey, value: T) {
+        self.entries.retain(|(k, _)| *k != key);
+        if self.entries.len() >= self.capacity {
+            self.entries.pop_front();
+        }
+        self.entries.push_back((key, value));
+    }
+
+    fn remove(&mut self, key: FileKey) -> Option<T> {
+        let index = self.entries.iter().position(|(k, _)| *k == key)?;
+        self.entries.remove(index).map(|(_, value)| value)
+    }
+}
+
+/// Writes every file under `dir` to `output`, replacing its contents.
+pub fn pack(dir: &Path, output: &mut File) -> Result<()> {
+    output.set_len(0)?;
+    output.rewind()?;
+    let mut writer = ZipWriter::new(output);
+    add_dir(&mut writer, dir, "")?;
+    writer.finish()?.flush()?;
+    Ok(())
+}
+
+fn entry_options() -> FileOptions {
+    // Most of a snapshot is guest memory, which isn't worth compressing, and may be over 4 GiB.
+    FileOptions::default().compression_method(CompressionMethod::Stored).large_file(true)
+}
+
+fn add_dir<W: Write + Seek>(writer: &mut ZipWriter<W>, dir: &Path, prefix: &str) -> Result<()> {
+    let mut entries = read_dir(dir)?.collect::<io::Result<Vec<_>>>()?;
+    entries.sort_by_key(|entry| entry.file_name());
+    for entry in entries {
+        let file_name = entry.file_name();
+        let file_name =
+            file_name.to_str().ok_or_else(|| anyhow!("Invalid file name {:?}", file_name))?;
+        let name = format!("{prefix}{file_name}");
+        let file_type = entry.file_type()?;
+        if file_type.is_dir() {
+            writer.add_directory(name.as_str(), entry_options())?;
+            add_dir(writer, &entry.path(), &format!("{name}/"))?;
+        } else if file_type.is_file() {
+            writer.start_file(name.as_str(), entry_options())?;
+            io::copy(&mut File::open(entry.path())?, writer)
+                .with_context(|| format!("Failed to pack {:?}", entry.path()))?;
+        } else {
+            bail!("Unexpected file type of {:?} in snapshot", entry.path());
+        }
+    }
+    Ok(())
+}
+
+/// Extracts the crosvm snapshot from a file written by `pack` into `dir`.
+pub fn unpack(input: &File, dir: &Path) -> Result<()> {
+    let mut archive = ZipArchive::new(input).context("Invalid snapshot")?;
+    for i in 0..archive.len() {
+        let mut entry = archive.by_index(i)?;
+        let path = match entry.enclosed_name() {
+            Some(name) => dir.join(name),
+            None => bail!("Invalid entry {:?} in snapshot", entry.name()),
+        };
+        if entry.is_dir() {
+            create_dir_all(&path)?;
+        } else {
+            if let Some(parent) = path.parent() {
+                create_dir_all(parent)?;
+            }
+            io::copy(&mut entry, &mut File::create(&path)?)
+                .with_context(|| format!("Failed to unpack {:?}", path))?;
+        }
+    }
+    Ok(())
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::fs::{create_dir, read, write};
+    use tempfile::{tempdir, tempfile};
+
+    #[test]
+    fn test_pack_and_unpack() -> Result<()> {
+        let source = tempdir()?;
+        write(source.path().join(CROSVM_SNAPSHOT_NAME), b"device state")?;
+        write(source.path().join("vm.mem"), vec![0xab; 64 * 1024])?;
+        create_dir(source.path().join("vm.devices"))?;
+        write(source.path().join("vm.devices/virtio-blk"), b"queue state")?;
+
+        let mut file = tempfile()?;
+        pack(source.path(), &mut file)?;
+
+        let target = tempdir()?;
+        unpack(&file, target.path())?;
+        assert_eq!(read(target.path().join(CROSVM_SNAPSHOT_NAME))?, b"device state");
+        assert_eq!(read(target.path().join("vm.mem"))?, vec![0xab; 64 * 1024]);
+        assert_eq!(read(target.path().join("vm.devices/virtio-blk"))?, b"queue state");
+        Ok(())
+    }
+
+    #[test]
+    fn test_pack_replaces_previous_contents() -> Result<()> {
+        let source = tempdir()?;
+        write(source.path().join(CROSVM_SNAPSHOT_NAME), b"state")?;
+
+        let mut file = tempfile()?;
+        file.write_all(&[0xff; 1024 * 1024])?;
+        pack(source.path(), &mut file)?;
+        assert!(file.metadata()?.len() < 1024 * 1024);
+        Ok(())
+    }
+
+    #[test]
+    fn test_unpack_rejects_other_files() -> Result<()> {
+        let mut file = tempfile()?;
+        file.write_all(b"not a snapshot")?;
+        assert!(unpack(&file, tempdir()?.path()).is_err());
+        Ok(())
+    }
+
+    #[test]
+    fn test_saved_vms_are_keyed_by_file() -> Result<()> {
+        let (first, second) = (tempfile()?, tempfile()?);
+        let mut saved_vms = SavedVms::new(MAX_SAVED_VMS);
+        saved_vms.insert(FileKey::of(&first)?, 1);
+        saved_vms.insert(FileKey::of(&second)?, 2);
+        // Writing another snapshot to the same file replaces the previous one.
+        saved_vms.insert(FileKey::of(&first)?, 3);
+
+        // A file with the same contents is not the same snapshot.
+        assert_eq!(saved_vms.remove(FileKey::of(&tempfile()?)?), None);
+        assert_eq!(saved_vms.remove(FileKey::of(&first)?), Some(3));
+        // Each snapshot can only be restored once.
+        assert_eq!(saved_vms.remove(FileKey::of(&first)?), None);
+        assert_eq!(saved_vms.remove(FileKey::of(&second)?), Some(2));
+        Ok(())
+    }
+
+    #[test]
+    fn test_saved_vms_drops_oldest() -> Result<()> {
+        let files = (0..3).map(|_| tempfile()).collect::<io::Result<Vec<_>>>()?;
+        let mut saved_vms = SavedVms::new(2);
+        for (i, file) in files.iter().enumerate() {
+            saved_vms.insert(FileKey::of(file)?, i);
+        }
+        assert_eq!(saved_vms.remove(FileKey::of(&files[0])?), None);
+        assert_eq!(saved_vms.remove(FileKey::of(&files[1])?), Some(1));
+        assert_eq!(saved_vms.remove(FileKey::of(&files[2])?), Some(2));
+        Ok(())
+    }
+}
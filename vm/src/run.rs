@@ -16,6 +16,7 @@
 
 use crate::create_partition::command_create_partition;
 use android_system_virtualizationservice::aidl::android::system::virtualizationservice::{
+    CpuCluster::CpuCluster,
     CpuTopology::CpuTopology,
     IVirtualizationService::IVirtualizationService,
     PartitionType::PartitionType,
@@ -145,8 +146,14 @@ pub fn command_run_app(
         protectedVm: protected,
         memoryMib: mem.unwrap_or(0) as i32, // 0 means use the VM default
         cpuTopology: cpu_topology,
+        cpuCount: 0, // 0 means use cpuTopology
+        cpuAffinityMask: 0,
+        cpuCluster: CpuCluster::ANY,
         taskProfiles: task_profiles,
         gdbPort: gdb.map(u16::from).unwrap_or(0) as i32, // 0 means no gdb
+        restoreSnapshot: None,
+        sharedMemory: None,
+        dataDisks: vec![],
     });
     run(service, &config, &payload_config_str, console_path, log_path)
 }
@@ -269,6 +276,7 @@ fn state_to_str(vm_state: VirtualMachineState) -> &'static str {
         VirtualMachineState::READY => "READY",
         VirtualMachineState::FINISHED => "FINISHED",
         VirtualMachineState::DEAD => "DEAD",
+        VirtualMachineState::PAUSED => "PAUSED",
         _ => "(invalid state)",
     }
 }
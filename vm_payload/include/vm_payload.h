@@ -112,4 +112,21 @@ const char* _Nonnull AVmPayload_getApkContentsPath(void);
  */
 const char* _Nullable AVmPayload_getEncryptedStoragePath(void);
 
+/**
+ * Opens the memory that the host app shares with the VM, if any. Reads and
+ * writes through the returned file descriptor copy data between the caller's
+ * buffer and the shared memory, bypassing the page cache of the VM, so the data
+ * written by either side is visible to the other as soon as the write returns. As for O_DIRECT, the
+ * offset, size and buffer address of each read or write must be multiples of
+ * 4096 bytes. The size of the memory can be found with lseek(fd, 0, SEEK_END).
+ *
+ * As with any shared memory, the payload and the host app need to agree on how
+ * to synchronize their accesses.
+ *
+ * \return a file descriptor, which the caller owns and must close, or -1 with
+ * errno set on failure. errno is ENOENT if the host app didn't share memory
+ * with the VM.
+ */
+int AVmPayload_openSharedMemory(void);
+
 __END_DECLS
@@ -15,7 +15,8 @@
 //! This module handles the interaction with virtual machine payload service.
 
 use android_system_virtualization_payload::aidl::android::system::virtualization::payload::IVmPayloadService::{
-    ENCRYPTEDSTORE_MOUNTPOINT, IVmPayloadService, VM_PAYLOAD_SERVICE_SOCKET_NAME, VM_APK_CONTENTS_PATH};
+    ENCRYPTEDSTORE_MOUNTPOINT, IVmPayloadService, SHARED_MEMORY_DEVICE,
+    VM_PAYLOAD_SERVICE_SOCKET_NAME, VM_APK_CONTENTS_PATH};
 use anyhow::{ensure, bail, Context, Result};
 use binder::{Strong, unstable_api::{AIBinder, new_spibinder}};
 use lazy_static::lazy_static;
@@ -24,7 +25,10 @@ use rpcbinder::{RpcSession, RpcServer};
 use std::convert::Infallible;
 use std::ffi::CString;
 use std::fmt::Debug;
+use std::fs::OpenOptions;
+use std::io::ErrorKind;
 use std::os::raw::{c_char, c_void};
+use std::os::unix::{fs::OpenOptionsExt, io::IntoRawFd};
 use std::path::Path;
 use std::ptr;
 use std::sync::{Mutex, atomic::{AtomicBool, Ordering}};
@@ -268,3 +272,29 @@ pub extern "C" fn AVmPayload_getEncryptedStoragePath() -> *const c_char {
         ptr::null()
     }
 }
+
+/// Opens the memory shared with the host, if any.
+#[no_mangle]
+pub extern "C" fn AVmPayload_openSharedMemory() -> i32 {
+    initialize_logging();
+    // O_DIRECT keeps the page cache of the VM out of the way, so that both sides see each other's
+    // writes at once.
+    let result = OpenOptions::new()
+        .read(true)
+        .write(true)
+        .custom_flags(libc::O_DIRECT | libc::O_CLOEXEC)
+        .open(SHARED_MEMORY_DEVICE);
+    match result {
+        Ok(file) => file.into_raw_fd(),
+        Err(e) => {
+            // The device only exists if the host app shared memory with the VM.
+            if e.kind() != ErrorKind::NotFound {
+                error!("Failed to open {}: {:?}", SHARED_MEMORY_DEVICE, e);
+            }
+            // Logging may have overwritten errno.
+            // SAFETY: __errno() always returns a valid pointer to the errno of this thread.
+            unsafe { *libc::__errno() = e.raw_os_error().unwrap_or(libc::EIO) };
+            -1
+        }
+    }
+}
@@ -5,3 +5,4 @@ void AVmPayload_getDiceAttestationChain() {}
 void AVmPayload_getDiceAttestationCdi() {}
 void AVmPayload_getApkContentsPath() {}
 void AVmPayload_getEncryptedStoragePath() {}
+void AVmPayload_openSharedMemory() {}